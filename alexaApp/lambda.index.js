@@ -7,10 +7,84 @@
 var AWS = require('aws-sdk');
 var iotdata = new AWS.IotData({endpoint: 'YourIOT_ID.iot.region.amazonaws.com'});
 
+// Sequence number of the published commands, per Lambda container.
+// Together with the publication timestamp it lets the drone app measure latency and losses.
+var commandSequence = 0;
+
+// Id of the published commands, unique across the Lambda containers: the drone app drops a
+// command it already got, when AWS IoT delivers it again (QoS 1) or when a publication is retried.
+var CONTAINER_ID = Math.floor(Math.random() * 0x7fffffff);
+var MAX_PUBLISH_ATTEMPTS = 2;
+
+// Every drone of a fleet executes a command this long after its publication, on the clock of
+// this function: longer than the delivery to the slowest device, short enough not to be noticed.
+var EXECUTION_DELAY_MS = 500;
+// true when the drones are flown from several devices at once: the commands then carry their
+// execution time ("at"). A single device executes them as soon as they arrive.
+var FLEET = false;
+
+// The vocabulary lives in speechAssets/customSlotTypes/LIST_OF_COMMANDS alone: the interaction
+// model and the vocabulary below are generated from it (gradle interactionmodel, in
+// androidApp/pilotcore) and the drone app compiles it. A value Alexa matched is published as its
+// opcode, with the default magnitude and duration; a value it could not match, like
+// "up 30 percent for 2 seconds", is parsed here as the app would parse it. Anything outside the
+// vocabulary is answered as an unknown command and never published.
+// 'json' publishes the commands as { "op": 3, "mag": 50, "dur": 1000, ... }, 'binary' in the
+// compact binary form of the drone app (BinaryCommand.java).
+var WIRE_FORMAT = 'json';
+
+// ---- generated from LIST_OF_COMMANDS by InteractionModelGenerator (gradle interactionmodel), do not edit ----
+// The opcodes of the drone app (Commands.java), by phrase and by id of the LIST_OF_COMMANDS
+// slot values. Emergency is not one of them: it is the button of the app, never a voice command
+var PHRASES = {
+    'take off': 1, 'land': 2, 'go up': 3, 'fly up': 3, 'up': 3, 'down': 4, 'go down': 4,
+    'fly down': 4, 'right': 7, 'left': 8, 'forward': 5, 'backward': 6, 'spin right': 9,
+    'spin left': 10, 'picture': 12, 'take picture': 12, 'flip': 11
+};
+var OPCODE_IDS = {
+    'TAKE_OFF': 1, 'LAND': 2, 'UP': 3, 'DOWN': 4, 'RIGHT': 7, 'LEFT': 8, 'FORWARD': 5,
+    'BACKWARD': 6, 'SPIN_RIGHT': 9, 'SPIN_LEFT': 10, 'PICTURE': 12, 'FLIP': 11
+};
+var MAX_PHRASE_WORDS = 2;
+// The commands that move the drone, the only ones taking a magnitude and a duration
+var MOVEMENTS = [3, 4, 7, 8, 5, 6, 9, 10];
+// The words of the parameters, as CommandTable.java parses them
+var PERCENT_WORDS = ['percent', 'pct'];
+var SECOND_WORDS = ['seconds', 'second', 'sec'];
+var MILLISECOND_WORDS = ['milliseconds', 'millisecond', 'ms'];
+var FILLER_WORDS = ['for', 'at', 'and'];
+var NUMBER_WORDS = [
+    'zero', 'one', 'two', 'three', 'four', 'five', 'six', 'seven', 'eight', 'nine', 'ten', 'eleven',
+    'twelve', 'thirteen', 'fourteen', 'fifteen', 'sixteen', 'seventeen', 'eighteen', 'nineteen'
+];
+var TENS_WORDS = [
+    null, null, 'twenty', 'thirty', 'forty', 'fifty', 'sixty', 'seventy', 'eighty', 'ninety'
+];
+var HUNDRED_WORD = 'hundred';
+var DEFAULT_MAGNITUDE = 50;
+var MAX_MAGNITUDE = 100;
+var DEFAULT_DURATION_MS = 1000;
+var MAX_DURATION_MS = 10000;
+// ---- end of the generated vocabulary ----
+
+var BINARY_MAGIC = 0xD7;
+var BINARY_VERSION = 1;
+
+// The AWS IoT thing the commands are published to. "Drone" flies every drone of the app,
+// a thing named after a drone (like "Mambo_123456") flies that drone alone.
+var THING_NAME = 'Drone';
+
 // Route the incoming request based on type (LaunchRequest, IntentRequest,
 // etc.) The JSON body of the request is provided in the event parameter.
 exports.handler = function (event, context) {
     try {
+        // Clock pings of the drone apps, forwarded by an AWS IoT rule like:
+        // SELECT *, timestamp() AS t1 FROM 'drone/time/ping'
+        if (event.t0 !== undefined && event.client) {
+            answerClockPing(event, context);
+            return;
+        }
+
         console.log("event.session.application.applicationId=" + event.session.application.applicationId);
 
         /**
@@ -141,8 +215,9 @@ function sendCommand(intent, session, callback) {
     
     console.log("Received command", command);
     
-    if (command) {
-        droneApi(command.value, function(speechOutput){
+    var resolved = command ? resolveCommand(command) : null;
+    if (resolved) {
+        droneApi(resolved, function(speechOutput){
             callback(sessionAttributes,
                 buildSpeechletResponse(intent.name, speechOutput, repromptText, shouldEndSession));
         });
@@ -155,27 +230,207 @@ function sendCommand(intent, session, callback) {
     }
 }
 
-
 function droneApi(command, callback) {
     console.log("Calling IOTData ...");
     
+    commandSequence++;
+    var now = Date.now();
+    // below 2^53: the container in the high bits, the sequence in the low 20 bits
+    var id = CONTAINER_ID * 0x100000 + (commandSequence % 0x100000);
+    var executeAt = FLEET ? now + EXECUTION_DELAY_MS : null;
     var params = {
-        topic: '$aws/things/Drone/shadow/update', // required
-        payload: '{ "command": "'+ command + '" }',
-        qos: 0
+        topic: '$aws/things/' + THING_NAME + '/shadow/update', // required
+        payload: (WIRE_FORMAT === 'binary') ?
+            encodeBinaryCommand(command, id, commandSequence, now, executeAt) :
+            '{ "op": ' + command.opcode + ', "mag": ' + command.magnitude + ', "dur": ' + command.durationMs +
+            ', "id": ' + id + ', "seq": ' + commandSequence + ', "ts": ' + now +
+            ((executeAt !== null) ? ', "at": ' + executeAt : '') + ' }',
+        qos: 1
     };
 
+    publishCommand(params, 1, callback);
+}
+
+/**
+ * Resolves the Command slot to the command the drone app executes. Alexa matches the spoken
+ * value to a slot value id, synonyms included ("fly up" is UP); a value it could not match,
+ * like "up 30 percent for 2 seconds", is parsed here: the longest phrase of the vocabulary,
+ * then for a movement a magnitude in percent and a duration.
+ * @return { opcode, magnitude, durationMs }, null for anything outside the vocabulary
+ */
+function resolveCommand(slot) {
+    var authorities = (slot.resolutions && slot.resolutions.resolutionsPerAuthority) || [];
+    for (var i = 0; i < authorities.length; i++) {
+        var authority = authorities[i];
+        if (authority.status && authority.status.code === 'ER_SUCCESS_MATCH' && authority.values.length > 0) {
+            var matched = OPCODE_IDS[authority.values[0].value.id];
+            if (matched) {
+                return { opcode: matched, magnitude: DEFAULT_MAGNITUDE, durationMs: DEFAULT_DURATION_MS };
+            }
+        }
+    }
+    if (!slot.value || !slot.value.trim()) {
+        return null;
+    }
+
+    var words = slot.value.trim().toLowerCase().split(/\s+/);
+    // the longest phrase first, "spin right" before "right", as the trie of the app
+    for (var length = Math.min(words.length, MAX_PHRASE_WORDS); length > 0; length--) {
+        var opcode = PHRASES[words.slice(0, length).join(' ')];
+        if (opcode) {
+            return resolveParameters(opcode, words.slice(length));
+        }
+    }
+    return null;
+}
+
+/**
+ * The parameters after the phrase, as CommandTable.java parses them: "30 percent", "30%",
+ * "for 2 seconds", "500 ms", "thirty five percent". A magnitude or a duration out of range
+ * rejects the command.
+ */
+function resolveParameters(opcode, words) {
+    var command = { opcode: opcode, magnitude: DEFAULT_MAGNITUDE, durationMs: DEFAULT_DURATION_MS };
+    if (words.length > 0 && MOVEMENTS.indexOf(opcode) < 0) {
+        return null;
+    }
+    var i = 0;
+    while (i < words.length) {
+        if (FILLER_WORDS.indexOf(words[i]) >= 0) {
+            i++;
+            continue;
+        }
+        var number = -1;
+        var unit = null;
+        var digits = /^(\d+)(%?)$/.exec(words[i]);
+        if (digits) {
+            number = parseInt(digits[1], 10);
+            unit = digits[2] || null;
+            i++;
+        }
+        else {
+            var total = 0;
+            for (; i < words.length && numberWord(words[i]) >= 0; i++) {
+                var value = numberWord(words[i]);
+                total = (value === 100) ? ((total === 0) ? 1 : total) * 100 : total + value;
+                if (total > MAX_DURATION_MS) {
+                    return null;
+                }
+                number = total;
+            }
+        }
+        if (number < 0) {
+            return null;
+        }
+        if (!unit) {
+            if (i >= words.length) {
+                return null;    // a number without unit
+            }
+            unit = words[i++];
+        }
+
+        if (unit === '%' || PERCENT_WORDS.indexOf(unit) >= 0) {
+            if (number > MAX_MAGNITUDE) {
+                return null;
+            }
+            command.magnitude = number;
+        }
+        else if (SECOND_WORDS.indexOf(unit) >= 0) {
+            if (number * 1000 > MAX_DURATION_MS) {
+                return null;
+            }
+            command.durationMs = number * 1000;
+        }
+        else if (MILLISECOND_WORDS.indexOf(unit) >= 0) {
+            if (number > MAX_DURATION_MS) {
+                return null;
+            }
+            command.durationMs = number;
+        }
+        else {
+            return null;
+        }
+    }
+    return command;
+}
+
+// the value of a number word, 100 for "hundred", -1 for any other word
+function numberWord(word) {
+    if (word === HUNDRED_WORD) {
+        return 100;
+    }
+    var unit = NUMBER_WORDS.indexOf(word);
+    if (unit >= 0) {
+        return unit;
+    }
+    var tens = TENS_WORDS.indexOf(word);
+    return (tens >= 2) ? tens * 10 : -1;
+}
+
+/**
+ * The binary form of a command: magic, version and flags (id, seq, ts present, at if given),
+ * opcode, magnitude, duration (2 bytes), then the id, the sequence number, the timestamp
+ * and the execution delay as LEB128 varints
+ */
+function encodeBinaryCommand(command, id, sequence, timestamp, executeAt) {
+    var fields = [id, sequence, timestamp];
+    if (executeAt !== null) {
+        fields.push(executeAt - timestamp);
+    }
+    var bytes = [BINARY_MAGIC, (BINARY_VERSION << 4) | ((executeAt !== null) ? 0x0F : 0x07), command.opcode,
+        command.magnitude, command.durationMs >> 8, command.durationMs & 0xFF];
+    fields.forEach(function (value) {
+        // arithmetic rather than bitwise operators, those are 32 bits
+        while (value >= 128) {
+            bytes.push((value % 128) + 128);
+            value = Math.floor(value / 128);
+        }
+        bytes.push(value);
+    });
+    return Buffer.from(bytes);
+}
+
+// The same payload, id included, is published again on error: the app executes it once
+function publishCommand(params, attempt, callback) {
     iotdata.publish(params, function(err, data) {
         if (err) {   // an error occurred
             console.log(err, err.stack);
-            callback("Error when sending command to drone");
+            if (attempt < MAX_PUBLISH_ATTEMPTS) {
+                publishCommand(params, attempt + 1, callback);
+            }
+            else {
+                callback("Error when sending command to drone");
+            }
         }
         else {  // successful response
             console.log(data);
             callback(""); //Executed " + command);
         }    
     });
+}
+
+/**
+ * Answers a clock ping of a drone app with the reception (t1) and answer (t2) times, so
+ * that the app can estimate the offset of its clock to this function.
+ * t1 is set by the IoT rule when the broker got the ping, the time of this function otherwise.
+ */
+function answerClockPing(ping, context) {
+    var receivedAt = (ping.t1 !== undefined) ? ping.t1 : Date.now();
+    var params = {
+        topic: 'drone/time/pong/' + ping.client,
+        payload: '{ "id": ' + ping.id + ', "t0": ' + ping.t0 + ', "t1": ' + receivedAt + ', "t2": ' + Date.now() + ' }',
+        qos: 0
+    };
 
+    iotdata.publish(params, function(err, data) {
+        if (err) {
+            console.log(err, err.stack);
+            context.fail("Exception: " + err);
+        }
+        else {
+            context.succeed();
+        }
+    });
 }
 
 function endSession(callback) {
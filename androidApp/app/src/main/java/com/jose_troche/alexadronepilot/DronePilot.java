@@ -0,0 +1,200 @@
+package com.jose_troche.alexadronepilot;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.jose_troche.alexadronepilot.pilot.CommandPipeline;
+import com.jose_troche.alexadronepilot.pilot.Commands;
+import com.jose_troche.alexadronepilot.pilot.DroneController;
+import com.jose_troche.alexadronepilot.pilot.DronePool;
+import com.jose_troche.alexadronepilot.pilot.LatencyRecorder;
+import com.jose_troche.alexadronepilot.pilot.PackedCommand;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Owns every piloting call made to a {@link DroneController}.
+ * Commands go through a {@link CommandPipeline} run on a dedicated high priority
+ * thread, so that a busy main looper (layout, dialogs, text updates) never delays
+ * flight control. Land and emergency skip the queue and go to the drone immediately.
+ * The UI only gets the last dispatched command, at most once per
+ * {@link #UI_UPDATE_INTERVAL_MS}.
+ */
+public class DronePilot {
+    private static final String TAG = "DronePilot";
+
+    private static final long UI_UPDATE_INTERVAL_MS = 100;
+
+    private static final int MSG_DRAIN = 1;
+    private static final int MSG_TICK = 2;
+    private static final int MSG_PREEMPTED = 3;
+
+    public interface Listener {
+        /**
+         * Called when a command has been sent to the drone
+         * Called in the main thread, throttled: intermediate commands may be skipped
+         * @param command the last dispatched command opcode
+         */
+        void onCommandDispatched(int command);
+    }
+
+    private final Listener mListener;
+    private final CommandPipeline mPipeline;
+
+    private final HandlerThread mControlThread;
+    private final Handler mControlHandler;
+    private final Handler mUiHandler;
+
+    private volatile int mLastDispatchedCommand = Commands.UNKNOWN;
+    private final AtomicBoolean mUiUpdatePending = new AtomicBoolean();
+
+    /**
+     * @param listener informed of the dispatched commands, may be null
+     */
+    public DronePilot(DroneController drone, Looper uiLooper, Listener listener) {
+        mListener = listener;
+        mUiHandler = new Handler(uiLooper);
+
+        mControlThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mControlThread.start();
+        mControlHandler = new Handler(mControlThread.getLooper(), mControlCallback);
+
+        mPipeline = new CommandPipeline(drone, mControlLoop, mPipelineListener);
+    }
+
+    /**
+     * Queue a command for the drone
+     * Can be called from any thread
+     * @param command the command, packed as a {@link PackedCommand}
+     */
+    public void submit(long command) {
+        submit(command, System.nanoTime());
+    }
+
+    /**
+     * Queue a command for the drone
+     * Can be called from any thread
+     * @param command the command, packed as a {@link PackedCommand}
+     * @param receivedAt when the command was received, from {@link System#nanoTime()}
+     */
+    public void submit(long command, long receivedAt) {
+        mPipeline.submit(command, receivedAt);
+    }
+
+    /**
+     * @return the latencies of the commands, from their reception to the drone
+     */
+    public LatencyRecorder getLatencyRecorder() {
+        return mPipeline.getLatencyRecorder();
+    }
+
+    /**
+     * @return the command pipeline of the drone, to make it part of a {@link DronePool}
+     */
+    public CommandPipeline getPipeline() {
+        return mPipeline;
+    }
+
+    /**
+     * Cut the motors
+     * Can be called from any thread
+     */
+    public void emergency() {
+        submit(PackedCommand.of(Commands.EMERGENCY));
+    }
+
+    /**
+     * Hover in place, dropping the queued movements
+     * Can be called from any thread
+     */
+    public void hold() {
+        mPipeline.hold();
+    }
+
+    /**
+     * Stop the control thread
+     * Queued commands are dropped
+     */
+    public void quit() {
+        mControlHandler.removeCallbacksAndMessages(null);
+        mUiHandler.removeCallbacks(mUiUpdateRunnable);
+        mControlThread.quit();
+        Log.i(TAG, mPipeline.report());
+    }
+
+    private final Handler.Callback mControlCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_DRAIN:
+                    mPipeline.drain();
+                    return true;
+
+                case MSG_PREEMPTED:
+                    mPipeline.preempted();
+                    return true;
+
+                case MSG_TICK:
+                    mPipeline.tick();
+                    return true;
+
+                default:
+                    return false;
+            }
+        }
+    };
+
+    private final CommandPipeline.Loop mControlLoop = new CommandPipeline.Loop() {
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void requestDrain() {
+            mControlHandler.sendEmptyMessage(MSG_DRAIN);
+        }
+
+        @Override
+        public void requestPreempted() {
+            mControlHandler.sendMessageAtFrontOfQueue(mControlHandler.obtainMessage(MSG_PREEMPTED));
+        }
+
+        @Override
+        public void scheduleTick(long atMillis) {
+            mControlHandler.removeMessages(MSG_TICK);
+            mControlHandler.sendEmptyMessageAtTime(MSG_TICK, atMillis);
+        }
+
+        @Override
+        public void cancelTick() {
+            mControlHandler.removeMessages(MSG_TICK);
+        }
+    };
+
+    private final CommandPipeline.Listener mPipelineListener = new CommandPipeline.Listener() {
+        @Override
+        public void onCommandDispatched(int command) {
+            if (mListener == null) {
+                return;
+            }
+            mLastDispatchedCommand = command;
+            if (mUiUpdatePending.compareAndSet(false, true)) {
+                mUiHandler.postDelayed(mUiUpdateRunnable, UI_UPDATE_INTERVAL_MS);
+            }
+        }
+    };
+
+    private final Runnable mUiUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mUiUpdatePending.set(false);
+            mListener.onCommandDispatched(mLastDispatchedCommand);
+        }
+    };
+}
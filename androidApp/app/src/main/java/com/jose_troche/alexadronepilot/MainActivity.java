@@ -1,54 +1,90 @@
 package com.jose_troche.alexadronepilot;
 
 import android.app.ProgressDialog;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
-import android.os.Handler;
+import android.content.ServiceConnection;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
 
+import com.jose_troche.alexadronepilot.aws_iot.DroneSession;
 import com.jose_troche.alexadronepilot.aws_iot.IotDroneSubscriber;
+import com.jose_troche.alexadronepilot.aws_iot.IotService;
+import com.jose_troche.alexadronepilot.aws_iot.ThingRoutes;
+import com.jose_troche.alexadronepilot.parrot.DroneEvents;
 import com.jose_troche.alexadronepilot.parrot.DroneListActivity;
 import com.jose_troche.alexadronepilot.parrot.MiniDrone;
+import com.jose_troche.alexadronepilot.pilot.CommandTimer;
+import com.jose_troche.alexadronepilot.pilot.Commands;
+import com.jose_troche.alexadronepilot.pilot.DronePool;
+import com.jose_troche.alexadronepilot.pilot.PackedCommand;
 
 import com.parrot.arsdk.arcommands.ARCOMMANDS_MINIDRONE_MEDIARECORDEVENT_PICTUREEVENTCHANGED_ERROR_ENUM;
 import com.parrot.arsdk.arcommands.ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM;
 import com.parrot.arsdk.arcontroller.ARCONTROLLER_DEVICE_STATE_ENUM;
 import com.parrot.arsdk.ardiscovery.ARDiscoveryDeviceService;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "MainActivity";
 
     // Drone Variables
     private MiniDrone mMiniDrone;
+    private DronePilot mDronePilot;
+    // the other drones of a fleet, the UI follows mMiniDrone only
+    private final List<MiniDrone> mFollowers = new ArrayList<>();
+    private final List<DronePilot> mFollowerPilots = new ArrayList<>();
+    private DronePool mDronePool;
     private ProgressDialog mConnectionProgressDialog;
     private TextView mBatteryLabel;
     private Button mTakeOffLandBt;
-    private Handler mHandler;
 
     // AWS IoT Variables
     private TextView iotCommand;
     private TextView iotStatus;
 
-    private IotDroneSubscriber mIotSubscriber;
+    // the IoT connection outlives the activity, it is kept by the service
+    private IotService mIotService;
+    private String[] mThingNames;
+    // holds the voice commands until the time set for the whole fleet
+    private CommandTimer mCommandTimer;
+    // the pilot of each thing route, null for the whole fleet
+    private final ThingRoutes mThingRoutes = new ThingRoutes();
+    private DronePilot[] mRoutePilots;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        initAwsIot();
-
         initIHM();
 
-        mHandler = new Handler();
         Intent intent = getIntent();
-        ARDiscoveryDeviceService service = intent.getParcelableExtra(DroneListActivity.EXTRA_DEVICE_SERVICE);
-        mMiniDrone = new MiniDrone(this, service);
+        List<ARDiscoveryDeviceService> services =
+                intent.getParcelableArrayListExtra(DroneListActivity.EXTRA_DEVICE_SERVICES);
+        if (services == null) {
+            services = Collections.singletonList(
+                    (ARDiscoveryDeviceService) intent.getParcelableExtra(DroneListActivity.EXTRA_DEVICE_SERVICE));
+        }
+        mMiniDrone = new MiniDrone(this, services.get(0));
         mMiniDrone.addListener(mMiniDroneListener);
+        mDronePilot = new DronePilot(mMiniDrone, getMainLooper(), mDronePilotListener);
+        if (services.size() > 1) {
+            initFleet(services);
+        }
+        initRoutes(services);
+
+        // commands may arrive as soon as the subscriber is created
+        initAwsIot();
     }
 
     @Override
@@ -69,12 +105,56 @@ public class MainActivity extends AppCompatActivity {
                 finish();
             }
         }
+
+        // a follower that cannot connect only leaves the fleet smaller
+        for (MiniDrone follower : mFollowers) {
+            if (!ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING.equals(follower.getConnectionState())
+                    && !follower.connect()) {
+                Log.e(TAG, "Cannot connect to a drone of the fleet");
+            }
+        }
     }
 
 
+    @Override
+    protected void onDestroy() {
+        // the commands arriving until the next activity are buffered by the service
+        if (mIotService != null) {
+            mIotService.setListener(null);
+        }
+        if (isFinishing()) {
+            endIotSession();
+        }
+        unbindService(mIotServiceConnection);
+        mIotService = null;
+        try {
+            mCommandTimer.quit();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted while stopping the command timer", e);
+        }
+        Log.i(TAG, mCommandTimer.report());
+        mDronePilot.quit();
+        for (DronePilot pilot : mFollowerPilots) {
+            pilot.quit();
+        }
+        if (mDronePool != null) {
+            Log.i(TAG, "Fleet:\n" + mDronePool.report());
+        }
+        if (mMiniDrone != null) {
+            Log.i(TAG, mMiniDrone.getTelemetry().report());
+            Log.i(TAG, mMiniDrone.getSnapshotPublisher().report());
+            Log.i(TAG, "Command acks:\n" + mMiniDrone.getAcks().report());
+        }
+        Log.i(TAG, DroneEvents.getBus().report());
+        super.onDestroy();
+    }
+
     @Override
     public void onBackPressed() {
-        mIotSubscriber.disconnect();
+        endIotSession();
+        for (MiniDrone follower : mFollowers) {
+            follower.disconnect();
+        }
 
         if (mMiniDrone != null)
         {
@@ -92,18 +172,120 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Fly the other drones along with mMiniDrone, each one on its own control thread
+     */
+    private void initFleet(List<ARDiscoveryDeviceService> services) {
+        mDronePool = new DronePool();
+        mDronePool.add(services.get(0).getName(), mDronePilot.getPipeline());
+        for (int i = 1; i < services.size(); i++) {
+            MiniDrone follower = new MiniDrone(this, services.get(i));
+            DronePilot pilot = new DronePilot(follower, getMainLooper(), null);
+            mFollowers.add(follower);
+            mFollowerPilots.add(pilot);
+            mDronePool.add(services.get(i).getName(), pilot.getPipeline());
+        }
+    }
+
+    /**
+     * The "Drone" thing flies every drone, the thing named after a drone flies it alone
+     */
+    private void initRoutes(List<ARDiscoveryDeviceService> services) {
+        mThingNames = new String[services.size() + 1];
+        mThingNames[0] = DroneSession.DRONE_THING;
+        mThingRoutes.add(mThingNames[0]);
+        mRoutePilots = new DronePilot[services.size() + 1];
+        for (int i = 0; i < services.size(); i++) {
+            // two drones whose names differ only by characters not allowed in a thing name
+            // would share a thing: the second one gets a thing of its own
+            String thingName = ThingRoutes.toThingName(services.get(i).getName());
+            mThingNames[i + 1] = mThingRoutes.uniqueName(thingName);
+            if (!mThingNames[i + 1].equals(thingName)) {
+                Log.w(TAG, "Thing " + thingName + " taken, " + services.get(i).getName() + " flies as "
+                        + mThingNames[i + 1]);
+            }
+            // the service numbers the routes the same way, from the same names
+            int route = mThingRoutes.add(mThingNames[i + 1]);
+            mRoutePilots[route] = (i == 0) ? mDronePilot : mFollowerPilots.get(i - 1);
+        }
+    }
+
+    /**
+     * Send a command to the drone, or to every drone of the fleet
+     * Can be called from any thread
+     */
+    private void submit(long command, long receivedAt) {
+        if (mDronePool != null) {
+            mDronePool.submit(command, receivedAt);
+        } else {
+            mDronePilot.submit(command, receivedAt);
+        }
+    }
+
+    /**
+     * Send a command of the buttons to every drone, through the timer like the IoT commands:
+     * a land or an emergency cancels the commands it still holds for later
+     * Called in the main thread
+     */
+    private void submitButton(int opcode) {
+        long now = System.nanoTime();
+        mCommandTimer.schedule(PackedCommand.of(opcode), now, now);
+    }
+
     private void initAwsIot() {
         iotCommand = (TextView) findViewById(R.id.iotMessage);
         iotStatus =  (TextView) findViewById(R.id.iotStatus);
 
-        mIotSubscriber = new IotDroneSubscriber(this, mIotDroneSubscriberListener);
+        mCommandTimer = new CommandTimer("CommandTimer", new CommandTimer.Target() {
+            @Override
+            public void submit(long command, long receivedAt) {
+                DronePilot pilot = mRoutePilots[PackedCommand.route(command)];
+                command = PackedCommand.withRoute(command, 0);
+                if (pilot != null) {
+                    pilot.submit(command, receivedAt);
+                } else {
+                    MainActivity.this.submit(command, receivedAt);
+                }
+            }
+        });
+        mCommandTimer.start();
+
+        // starts the flight session, or keeps the running one when the activity is recreated
+        Intent intent = new Intent(this, IotService.class);
+        intent.setAction(IotService.ACTION_START);
+        intent.putExtra(IotService.EXTRA_THING_NAMES, mThingNames);
+        startService(intent);
+        bindService(new Intent(this, IotService.class), mIotServiceConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    /**
+     * End the flight session, the IoT connection is closed
+     */
+    private void endIotSession() {
+        if (mIotService != null) {
+            mIotService.endSession();
+        }
+        stopService(new Intent(this, IotService.class));
     }
 
+    private final ServiceConnection mIotServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mIotService = ((IotService.LocalBinder) service).getService();
+            mIotService.setListener(mIotDroneSubscriberListener);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mIotService = null;
+        }
+    };
+
     private void initIHM() {
 
         findViewById(R.id.emergencyBt).setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
-            mMiniDrone.emergency();
+            submitButton(Commands.EMERGENCY);
             }
         });
 
@@ -112,11 +294,11 @@ public class MainActivity extends AppCompatActivity {
             public void onClick(View v) {
             switch (mMiniDrone.getFlyingState()) {
                 case ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_LANDED:
-                    mMiniDrone.takeOff();
+                    submitButton(Commands.TAKE_OFF);
                     break;
                 case ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_FLYING:
                 case ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_HOVERING:
-                    mMiniDrone.land();
+                    submitButton(Commands.LAND);
                     break;
                 default:
             }
@@ -134,112 +316,28 @@ public class MainActivity extends AppCompatActivity {
         }
 
         @Override
-        public void onCommandReceived(String command, long duration) {
-            Handler handler = new Handler();
-            iotCommand.setText(command);
-
-            switch (command.toLowerCase().trim()){
-                case "take off":
-                    mMiniDrone.takeOff();
-                    break;
-
-                case "land":
-                    mMiniDrone.land();
-                    break;
-
-                case "fly up":
-                case "go up":
-                case "up":
-                    setGaz(50, duration);
-                    break;
-
-                case "fly down":
-                case "go down":
-                case "down":
-                    setGaz(-50, duration);
-                    break;
-
-                case "forward":
-                    setPitch(50, duration);
-                    break;
-
-                case "backward":
-                    setPitch(-50, duration);
-                    break;
-
-                case "right":
-                    setRoll(50, duration);
-                    break;
-
-                case "left":
-                    setRoll(-50, duration);
-                    break;
-
-                case "spin right":
-                    setYaw(50, duration);
-                    break;
-
-                case "spin left":
-                    setYaw(-50, duration);
-                    break;
-
-                case "flip":
-                    mMiniDrone.flip();
-                    break;
+        public void onCommandReceived(long command, long receivedAt, long executeAt) {
+            mCommandTimer.schedule(command, receivedAt, executeAt);
+        }
 
-                case "take picture":
-                case "picture":
-                    mMiniDrone.takePicture();
-                    break;
+        @Override
+        public void onConnectionLost() {
+            // the commands on their way are lost too, stop the drones where they are
+            mCommandTimer.cancel();
+            if (mDronePool != null) {
+                mDronePool.hold();
+            } else {
+                mDronePilot.hold();
             }
         }
     };
 
-    private void setPitch(int pct, long duration){
-        mMiniDrone.setPitch((byte) pct);
-        mMiniDrone.setFlag((byte) 1);
-        mHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                mMiniDrone.setPitch((byte) 0);
-                mMiniDrone.setFlag((byte) 0);
-            }
-        }, duration);
-    }
-
-    private void setRoll(int pct, long duration){
-        mMiniDrone.setRoll((byte) pct);
-        mMiniDrone.setFlag((byte) 1);
-        mHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                mMiniDrone.setRoll((byte) 0);
-                mMiniDrone.setFlag((byte) 0);
-            }
-        }, duration);
-    }
-
-    private void setYaw(int pct, long duration){
-        mMiniDrone.setYaw((byte) pct);
-        mHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                mMiniDrone.setYaw((byte) 0);
-            }
-        }, duration);
-    }
-
-    private void setGaz(int pct, long duration){
-        mMiniDrone.setGaz((byte) pct);
-        mHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                mMiniDrone.setGaz((byte) 0);
-            }
-        }, duration);
-    }
-
-
+    private final DronePilot.Listener mDronePilotListener = new DronePilot.Listener() {
+        @Override
+        public void onCommandDispatched(int command) {
+            iotCommand.setText(Commands.name(command));
+        }
+    };
 
     private final MiniDrone.Listener mMiniDroneListener = new MiniDrone.Listener() {
         @Override
@@ -0,0 +1,64 @@
+package com.jose_troche.alexadronepilot.aws_iot;
+
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttClientStatusCallback;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttManager;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttNewMessageCallback;
+import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
+
+import java.security.KeyStore;
+
+/**
+ * {@link MqttTransport} over the MQTT client of the AWS IoT SDK
+ */
+public class AwsIotTransport implements MqttTransport {
+
+    private final AWSIotMqttManager mMqttManager;
+
+    public AwsIotTransport(AWSIotMqttManager mqttManager) {
+        mMqttManager = mqttManager;
+    }
+
+    @Override
+    public void connect(KeyStore keyStore, final StatusCallback callback) {
+        mMqttManager.connect(keyStore, new AWSIotMqttClientStatusCallback() {
+            @Override
+            public void onStatusChanged(AWSIotMqttClientStatus status, Throwable throwable) {
+                if (status == AWSIotMqttClientStatus.Connecting) {
+                    callback.onStatusChanged(STATUS_CONNECTING, throwable);
+                } else if (status == AWSIotMqttClientStatus.Connected) {
+                    callback.onStatusChanged(STATUS_CONNECTED, throwable);
+                } else if (status == AWSIotMqttClientStatus.Reconnecting) {
+                    callback.onStatusChanged(STATUS_RECONNECTING, throwable);
+                } else {
+                    callback.onStatusChanged(STATUS_CONNECTION_LOST, throwable);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void setKeepAlive(int seconds) {
+        mMqttManager.setKeepAlive(seconds);
+    }
+
+    @Override
+    public void subscribe(String topicFilter, int qos, final MessageCallback callback) {
+        AWSIotMqttQos mqttQos = (qos == QOS_AT_LEAST_ONCE) ? AWSIotMqttQos.QOS1 : AWSIotMqttQos.QOS0;
+        mMqttManager.subscribeToTopic(topicFilter, mqttQos, new AWSIotMqttNewMessageCallback() {
+            @Override
+            public void onMessageArrived(String topic, byte[] data) {
+                callback.onMessageArrived(topic, data);
+            }
+        });
+    }
+
+    @Override
+    public void publish(String topic, byte[] data) {
+        mMqttManager.publishData(data, topic, AWSIotMqttQos.QOS0);
+    }
+
+    @Override
+    public void disconnect() {
+        mMqttManager.disconnect();
+    }
+}
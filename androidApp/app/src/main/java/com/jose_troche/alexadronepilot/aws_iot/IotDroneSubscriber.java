@@ -1,26 +1,26 @@
 package com.jose_troche.alexadronepilot.aws_iot;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.amazonaws.auth.CognitoCachingCredentialsProvider;
 import com.amazonaws.mobileconnectors.iot.AWSIotKeystoreHelper;
-import com.amazonaws.mobileconnectors.iot.AWSIotMqttClientStatusCallback;
 import com.amazonaws.mobileconnectors.iot.AWSIotMqttManager;
-import com.amazonaws.mobileconnectors.iot.AWSIotMqttNewMessageCallback;
-import com.amazonaws.mobileconnectors.iot.AWSIotMqttQos;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.iot.AWSIotClient;
 import com.amazonaws.services.iot.model.AttachPrincipalPolicyRequest;
 import com.amazonaws.services.iot.model.CreateKeysAndCertificateRequest;
 import com.amazonaws.services.iot.model.CreateKeysAndCertificateResult;
+import com.jose_troche.alexadronepilot.pilot.CommandTable;
+import com.jose_troche.alexadronepilot.pilot.Commands;
+import com.jose_troche.alexadronepilot.pilot.LatencyRecorder;
+import com.jose_troche.alexadronepilot.pilot.PackedCommand;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 import java.security.KeyStore;
 import java.util.UUID;
 
@@ -54,22 +54,59 @@ public class IotDroneSubscriber {
     private static final String KEYSTORE_PASSWORD = "password";
     // Certificate and key aliases in the KeyStore
     private static final String CERTIFICATE_ID = "default";
-    // The IoT Drone Topic
-    private static final String MQTT_DRONE_TOPIC = "$aws/things/Drone/shadow/update";
+    // The command vocabulary, the Alexa LIST_OF_COMMANDS slot type packaged as an asset
+    private static final String COMMANDS_ASSET = "LIST_OF_COMMANDS";
+    // The keepalive the link called for in the last session, the start of the next one
+    private static final String PREFERENCES_NAME = "iot";
+    private static final String KEEPALIVE_PREFERENCE = "keepalive";
 
     // ---- End of AWS IoT Constants ---
 
     private AWSIotMqttManager mqttManager;
 
+    private final DroneSession mSession;
+    private final ClockSync mClockSync;
+    private final KeepAliveController mKeepAliveController;
+
     private String mqttKeyStorePath;
 
+    // parsed once per process: reading and decrypting the keystore file takes long
+    private static KeyStore sMqttKeyStore; // guarded by IotDroneSubscriber.class
+
+    // startup trace
+    private final long mCreatedAt = SystemClock.elapsedRealtime();
+    private volatile long mKeyStoreReadyAt;
+    private volatile boolean mConnectedOnce;
+    private boolean mDisconnected; // guarded by mConnectionLock
+    private final Object mConnectionLock = new Object();
+
     public interface Listener {
         void onConnectionStatusChanged(String status);
         
-        void onCommandReceived(String command, long duration);
+        /**
+         * Called when a known command arrives
+         * Called on the MQTT client thread, implementations should hand the
+         * command off quickly and must not touch the UI
+         * @param command the command, packed as a {@link PackedCommand} with the route of its thing
+         * @param receivedAt when the message arrived, from {@link System#nanoTime()}
+         * @param executeAt when the command should be executed, from {@link System#nanoTime()};
+         *                  receivedAt when as soon as possible
+         */
+        void onCommandReceived(long command, long receivedAt, long executeAt);
+
+        /**
+         * Called when the connection is lost, no command comes until it is back: the drones
+         * should hold their position
+         * Called on the MQTT client thread
+         */
+        void onConnectionLost();
     }
 
-    public IotDroneSubscriber(Context context, Listener listener) {
+    /**
+     * @param routes the things of the drones, all served by one subscription
+     */
+    public IotDroneSubscriber(Context context, Listener listener, LatencyRecorder latencyRecorder,
+                              ThingRoutes routes) {
         mContext = context;
         mListener = listener;
 
@@ -85,106 +122,204 @@ public class IotDroneSubscriber {
         // MQTT Client
         mqttManager = new AWSIotMqttManager(clientId, region, CUSTOMER_SPECIFIC_ENDPOINT_PREFIX);
 
-        // Set keepalive to 10 seconds.  Will recognize disconnects more quickly but will also send
-        // MQTT pings every 10 seconds.
-        mqttManager.setKeepAlive(10);
+        // the keepalive follows the link: short on a flaky one to notice disconnects quickly,
+        // long on a good one to spare the radio
+        mKeepAliveController = new KeepAliveController(getPreferences().getInt(KEEPALIVE_PREFERENCE,
+                KeepAliveController.DEFAULT_KEEPALIVE_S), ClockSync.SYSTEM_CLOCK);
+
+        // the session reconnects at once then backs off, the SDK waits seconds before its first try
+        mqttManager.setAutoReconnect(false);
+
+        // the clock of the Lambda sets when the fleet executes the commands
+        AwsIotTransport transport = new AwsIotTransport(mqttManager);
+        mClockSync = new ClockSync(transport, clientId, ClockSync.SYSTEM_CLOCK);
+        // the decoder is set once the vocabulary is compiled, before connecting
+        mSession = new DroneSession(transport, null, latencyRecorder, mClockSync, routes,
+                mSessionListener);
+        mSession.setReconnectPolicy(new ReconnectPolicy());
+        mSession.setKeepAliveController(mKeepAliveController);
+        // a land must not vanish: acknowledged delivery, the redelivered commands are dropped by id
+        mSession.setQos(MqttTransport.QOS_AT_LEAST_ONCE);
 
         // The path to the keystore that contains the credentials to connect to IoT
         mqttKeyStorePath = mContext.getFilesDir().getPath();
 
-        initializeConnection();
+        // the vocabulary is compiled and the credentials are read off the main thread,
+        // while the drones connect
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                initializeConnection();
+            }
+        }, "IotCredentials").start();
+    }
+
+    /**
+     * Read the keystore into the process cache in the background, ahead of the first subscriber
+     * Can be called from any thread
+     */
+    public static void prefetchKeyStore(Context context) {
+        final String keyStorePath = context.getFilesDir().getPath();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loadKeyStore(keyStorePath);
+            }
+        }, "IotCredentials").start();
     }
 
     public void disconnect(){
-        mqttManager.disconnect();
+        synchronized (mConnectionLock) {
+            // no connection may start after this one is closed
+            mDisconnected = true;
+            mSession.disconnect();
+        }
+        Log.i(TAG, "Messages received: " + mSession.getReceivedCount()
+                + ", unknown: " + mSession.getUnknownCount()
+                + ", for other things: " + mSession.getUnroutedCount()
+                + ", missing from the sequence: " + mSession.getSequenceGapCount()
+                + ", duplicates: " + mSession.getDuplicateCount()
+                + ", reconnects: " + mSession.getReconnectCount()
+                + ", longest blackout: " + mSession.getMaxBlackoutMillis() + " ms"
+                + ", clock offset: " + mClockSync.getOffsetMillis() + " ms"
+                + " (round trip " + mClockSync.getRoundTripMillis() + " ms)");
+        getPreferences().edit()
+                .putInt(KEEPALIVE_PREFERENCE, mKeepAliveController.nextKeepAliveSeconds())
+                .apply();
+        Log.i(TAG, mKeepAliveController.report());
     }
 
-    private void subscribeToTopic(String topic){
-        Log.d(TAG, "Mqtt topic = " + topic);
+    /**
+     * @return the keepalive of the current connection, in seconds
+     */
+    public int getKeepAliveSeconds() {
+        return mKeepAliveController.getKeepAliveSeconds();
+    }
 
-        try {
-            mqttManager.subscribeToTopic(topic, AWSIotMqttQos.QOS0,
-                new AWSIotMqttNewMessageCallback() {
-                    @Override
-                    public void onMessageArrived(final String topic, final byte[] data) {
-                        try {
-                            String message = new String(data, "UTF-8");
-                            final String command = (new JSONObject(message)).getString("command");
-                            Log.d(TAG, "Command arrived:");
-                            Log.d(TAG, "   Topic: " + topic);
-                            Log.d(TAG, " Command: " + command);
-
-                            mUiThreadHandler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    mListener.onCommandReceived(command, 1000 /* duration = 1 sec*/);
-                                }
-                            });
-
-                        } catch (UnsupportedEncodingException e) {
-                            Log.e(TAG, "Message encoding error.", e);
-                        } catch (JSONException e) {
-                            Log.e(TAG, "JSON Message decoding error.", e);
-                        }
-                    }
-                });
-        } catch (Exception e) {
-            Log.e(TAG, "Subscription error.", e);
-        }
+    /**
+     * @return the longest a dead connection goes unnoticed, in milliseconds
+     */
+    public long getDetectionLatencyMillis() {
+        return mKeepAliveController.getDetectionLatencyMillis();
+    }
+
+    private SharedPreferences getPreferences() {
+        return mContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the number of times the connection to AWS IoT came back up after the first one
+     */
+    public int getReconnectCount() {
+        return mSession.getReconnectCount();
     }
 
     private void connectToIoTAndSubscribe(KeyStore mqttKeyStore){
-        Log.d(TAG, "Connecting to IoT...");
+        mKeyStoreReadyAt = SystemClock.elapsedRealtime();
+        synchronized (mConnectionLock) {
+            if (mDisconnected) {
+                return;
+            }
+            Log.d(TAG, "Connecting to IoT...");
+            mSession.connectAndSubscribe(mqttKeyStore);
+        }
+    }
 
-        try {
-            mqttManager.connect(mqttKeyStore, new AWSIotMqttClientStatusCallback() {
-                @Override
-                public void onStatusChanged(final AWSIotMqttClientStatus status,
-                                            final Throwable throwable) {
-                    final String connectionStatus;
-                    Log.d(TAG, "Status = " + String.valueOf(status));
-                    
-                    if (status == AWSIotMqttClientStatus.Connecting) {
-                        connectionStatus = "Connecting...";
-                    } else if (status == AWSIotMqttClientStatus.Connected) {
-                        connectionStatus = "Connected";
-                        subscribeToTopic(MQTT_DRONE_TOPIC);
-                    } else if (status == AWSIotMqttClientStatus.Reconnecting) {
-                        if (throwable != null) {
-                            Log.e(TAG, "Connection error.", throwable);
-                        }
-                        connectionStatus = "Reconnecting";
-                    } else if (status == AWSIotMqttClientStatus.ConnectionLost) {
-                        if (throwable != null) {
-                            Log.e(TAG, "Connection error.", throwable);
-                        }
-                        connectionStatus = "Disconnected";
-                    } else {
-                        connectionStatus = "Disconnected";
-                    }
-
-                    mUiThreadHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            mListener.onConnectionStatusChanged(connectionStatus);
-                        }
-                    });
+    private final DroneSession.Listener mSessionListener = new DroneSession.Listener() {
+        @Override
+        public void onConnectionStatusChanged(int status, Throwable throwable) {
+            final String connectionStatus;
+            Log.d(TAG, "Status = " + status);
+
+            if (status == MqttTransport.STATUS_CONNECTING) {
+                connectionStatus = "Connecting...";
+            } else if (status == MqttTransport.STATUS_CONNECTED) {
+                connectionStatus = "Connected";
+                if (!mConnectedOnce) {
+                    mConnectedOnce = true;
+                    long now = SystemClock.elapsedRealtime();
+                    Log.i(TAG, "Time to connected: " + (now - mCreatedAt) + " ms, keystore ready after "
+                            + (mKeyStoreReadyAt - mCreatedAt) + " ms");
+                }
+            } else if (status == MqttTransport.STATUS_RECONNECTING) {
+                if (throwable != null) {
+                    Log.e(TAG, "Connection error.", throwable);
+                }
+                connectionStatus = "Reconnecting";
+            } else {
+                if (throwable != null) {
+                    Log.e(TAG, "Connection error.", throwable);
+                }
+                connectionStatus = "Disconnected";
+            }
 
+            mUiThreadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onConnectionStatusChanged(connectionStatus);
                 }
             });
-        } catch (final Exception e) {
-            Log.e(TAG, "Connection error.", e);
+        }
+
+        @Override
+        public void onError(String message, final Throwable throwable) {
+            Log.e(TAG, message, throwable);
             mUiThreadHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    mListener.onConnectionStatusChanged("IoT connection error: " + e.getMessage());
+                    mListener.onConnectionStatusChanged("IoT connection error: " + throwable.getMessage());
                 }
             });
         }
-    }
 
+        @Override
+        public void onCommandReceived(long command, long receivedAt, long executeAt) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Command arrived: " + Commands.name(PackedCommand.opcode(command)));
+            }
+            mListener.onCommandReceived(command, receivedAt, executeAt);
+        }
+
+        @Override
+        public void onConnectionLost() {
+            Log.w(TAG, "Connection lost, holding position");
+            mListener.onConnectionLost();
+        }
+
+        @Override
+        public void onConnectionRestored(long blackoutMs) {
+            Log.i(TAG, "Connection restored after " + blackoutMs + " ms, keepalive now "
+                    + mKeepAliveController.getKeepAliveSeconds() + " s");
+        }
+    };
+
+    // Called in a background thread
     private void initializeConnection(){
-        KeyStore mqttKeyStore = null;
+        try {
+            mSession.setCommandDecoder(new CommandDecoder(
+                    CommandTable.compile(mContext.getAssets().open(COMMANDS_ASSET))));
+        } catch (IOException e) {
+            mSessionListener.onError("Cannot load the command vocabulary", e);
+            return;
+        }
+
+        KeyStore mqttKeyStore = loadKeyStore(mqttKeyStorePath);
+
+        if (mqttKeyStore != null) {
+            connectToIoTAndSubscribe(mqttKeyStore);
+        }
+        else {
+            createMqttKeyStoreAndConnect();
+        }
+    }
+
+    /**
+     * @return the keystore of the cache, or read from the file; null if there is none yet
+     */
+    private static synchronized KeyStore loadKeyStore(String mqttKeyStorePath){
+        if (sMqttKeyStore != null) {
+            return sMqttKeyStore;
+        }
         try { // Try to get the mqtt keystore that has the credentials to connect to IoT
             if (AWSIotKeystoreHelper.isKeystorePresent(mqttKeyStorePath, KEYSTORE_NAME)) {
                 if (AWSIotKeystoreHelper.keystoreContainsAlias(CERTIFICATE_ID, mqttKeyStorePath,
@@ -192,7 +327,7 @@ public class IotDroneSubscriber {
                     Log.i(TAG, "Certificate " + CERTIFICATE_ID
                             + " found in keystore - using for MQTT.");
                     // load keystore from file into memory to pass on connection
-                    mqttKeyStore = AWSIotKeystoreHelper.getIotKeystore(CERTIFICATE_ID,
+                    sMqttKeyStore = AWSIotKeystoreHelper.getIotKeystore(CERTIFICATE_ID,
                             mqttKeyStorePath, KEYSTORE_NAME, KEYSTORE_PASSWORD);
                 } else {
                     Log.i(TAG, "Key/cert " + CERTIFICATE_ID + " not found in keystore.");
@@ -203,81 +338,75 @@ public class IotDroneSubscriber {
         } catch (Exception e) {
             Log.e(TAG, "An error occurred retrieving cert/key from keystore.", e);
         }
-
-        if (mqttKeyStore != null) {
-            connectToIoTAndSubscribe(mqttKeyStore);
-        }
-        else {
-            asyncCreateMqttKeyStoreAndConnect();
-        }
+        return sMqttKeyStore;
     }
 
     // Create a key and certificate, and store them in key store
-    private void asyncCreateMqttKeyStoreAndConnect(){
+    // Called in a background thread
+    private void createMqttKeyStoreAndConnect(){
         Log.i(TAG, "Cert/key not found in keystore - creating new key and certificate.");
 
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-            try {
-                KeyStore mqttKeyStore = null;
-
-                // Initialize the AWS Cognito credentials provider
-                CognitoCachingCredentialsProvider credentialsProvider = new CognitoCachingCredentialsProvider(
-                        mContext.getApplicationContext(), // context
-                        COGNITO_POOL_ID, // Identity Pool ID
-                        MY_REGION // Region
-                );
-
-                // IoT Client for creation of key and certificate
-                AWSIotClient mIotAndroidClient = new AWSIotClient(credentialsProvider);
-                mIotAndroidClient.setRegion(Region.getRegion(MY_REGION));
-
-                // Create a new private key and certificate. This call
-                // creates both on the server and returns them to the
-                // device.
-                CreateKeysAndCertificateRequest createKeysAndCertificateRequest =
-                        new CreateKeysAndCertificateRequest();
-                createKeysAndCertificateRequest.setSetAsActive(true);
-                final CreateKeysAndCertificateResult createKeysAndCertificateResult;
-                createKeysAndCertificateResult =
-                        mIotAndroidClient.createKeysAndCertificate(createKeysAndCertificateRequest);
-                Log.i(TAG, "Cert ID: " +
-                        createKeysAndCertificateResult.getCertificateId() + " created.");
-
-                // Attach a policy to the newly created certificate.
-                // This flow assumes the policy was already created in
-                // AWS IoT and we are now just attaching it to the
-                // certificate.
-                AttachPrincipalPolicyRequest policyAttachRequest =
-                        new AttachPrincipalPolicyRequest();
-                policyAttachRequest.setPolicyName(AWS_IOT_POLICY_NAME);
-                policyAttachRequest.setPrincipal(createKeysAndCertificateResult
-                        .getCertificateArn());
-                mIotAndroidClient.attachPrincipalPolicy(policyAttachRequest);
-                Log.i(TAG, "Policy attached to certificate");
-
-
-                // store in keystore for use in MQTT client
-                // saved as alias "default" so a new certificate isn't
-                // generated each run of this application
-                AWSIotKeystoreHelper.saveCertificateAndPrivateKey(CERTIFICATE_ID,
-                        createKeysAndCertificateResult.getCertificatePem(),
-                        createKeysAndCertificateResult.getKeyPair().getPrivateKey(),
-                        mqttKeyStorePath, KEYSTORE_NAME, KEYSTORE_PASSWORD);
-
-                // load keystore from file into memory to pass on
-                // connection
-                mqttKeyStore = AWSIotKeystoreHelper.getIotKeystore(CERTIFICATE_ID,
-                        mqttKeyStorePath, KEYSTORE_NAME, KEYSTORE_PASSWORD);
-
-                // Now connect to IoT with new mqttKeyStore
-                connectToIoTAndSubscribe(mqttKeyStore);
-
-            } catch (Exception e) {
-                Log.e(TAG, "Exception occurred when generating new private key and certificate.", e);
-            }
+        try {
+            KeyStore mqttKeyStore = null;
+
+            // Initialize the AWS Cognito credentials provider
+            CognitoCachingCredentialsProvider credentialsProvider = new CognitoCachingCredentialsProvider(
+                    mContext.getApplicationContext(), // context
+                    COGNITO_POOL_ID, // Identity Pool ID
+                    MY_REGION // Region
+            );
+
+            // IoT Client for creation of key and certificate
+            AWSIotClient mIotAndroidClient = new AWSIotClient(credentialsProvider);
+            mIotAndroidClient.setRegion(Region.getRegion(MY_REGION));
+
+            // Create a new private key and certificate. This call
+            // creates both on the server and returns them to the
+            // device.
+            CreateKeysAndCertificateRequest createKeysAndCertificateRequest =
+                    new CreateKeysAndCertificateRequest();
+            createKeysAndCertificateRequest.setSetAsActive(true);
+            final CreateKeysAndCertificateResult createKeysAndCertificateResult;
+            createKeysAndCertificateResult =
+                    mIotAndroidClient.createKeysAndCertificate(createKeysAndCertificateRequest);
+            Log.i(TAG, "Cert ID: " +
+                    createKeysAndCertificateResult.getCertificateId() + " created.");
+
+            // Attach a policy to the newly created certificate.
+            // This flow assumes the policy was already created in
+            // AWS IoT and we are now just attaching it to the
+            // certificate.
+            AttachPrincipalPolicyRequest policyAttachRequest =
+                    new AttachPrincipalPolicyRequest();
+            policyAttachRequest.setPolicyName(AWS_IOT_POLICY_NAME);
+            policyAttachRequest.setPrincipal(createKeysAndCertificateResult
+                    .getCertificateArn());
+            mIotAndroidClient.attachPrincipalPolicy(policyAttachRequest);
+            Log.i(TAG, "Policy attached to certificate");
+
+
+            // store in keystore for use in MQTT client
+            // saved as alias "default" so a new certificate isn't
+            // generated each run of this application
+            AWSIotKeystoreHelper.saveCertificateAndPrivateKey(CERTIFICATE_ID,
+                    createKeysAndCertificateResult.getCertificatePem(),
+                    createKeysAndCertificateResult.getKeyPair().getPrivateKey(),
+                    mqttKeyStorePath, KEYSTORE_NAME, KEYSTORE_PASSWORD);
+
+            // load keystore from file into memory to pass on
+            // connection
+            mqttKeyStore = AWSIotKeystoreHelper.getIotKeystore(CERTIFICATE_ID,
+                    mqttKeyStorePath, KEYSTORE_NAME, KEYSTORE_PASSWORD);
+
+            synchronized (IotDroneSubscriber.class) {
+                sMqttKeyStore = mqttKeyStore;
             }
-        }).start();
+
+            // Now connect to IoT with new mqttKeyStore
+            connectToIoTAndSubscribe(mqttKeyStore);
+
+        } catch (Exception e) {
+            Log.e(TAG, "Exception occurred when generating new private key and certificate.", e);
+        }
     }
 }
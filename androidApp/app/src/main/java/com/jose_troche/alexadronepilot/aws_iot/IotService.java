@@ -0,0 +1,239 @@
+package com.jose_troche.alexadronepilot.aws_iot;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import com.jose_troche.alexadronepilot.R;
+import com.jose_troche.alexadronepilot.pilot.LatencyRecorder;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the AWS IoT connection of a flight session in the foreground, across the
+ * recreations of the activity (rotation...): the keystore, the TLS handshake and the
+ * subscription are paid once per session instead of once per activity.
+ * The activity binds to the service and attaches its listener; while none is attached,
+ * the commands are buffered and given to the next listener. Buffered commands older than
+ * {@link #MAX_BUFFERED_AGE_MS} are dropped, land included: a stale land could ground a
+ * drone taken off again since.
+ * The listener is always called outside the lock of the service.
+ * The session starts with the first {@link #ACTION_START} for a set of things, and ends
+ * with {@link #endSession()} or a start for other things.
+ */
+public class IotService extends Service {
+    private static final String TAG = "IotService";
+
+    public static final String ACTION_START = "com.jose_troche.alexadronepilot.aws_iot.START";
+    /** The names of the things to subscribe to, a String array, route 0 first */
+    public static final String EXTRA_THING_NAMES = "EXTRA_THING_NAMES";
+
+    private static final int NOTIFICATION_ID = 1;
+
+    private static final int BUFFER_CAPACITY = 64;
+    private static final long MAX_BUFFERED_AGE_MS = 3000;
+
+    private final IBinder mBinder = new LocalBinder();
+
+    private IotDroneSubscriber mIotSubscriber;
+    private String[] mThingNames;
+    private final LatencyRecorder mLatencyRecorder = new LatencyRecorder();
+
+    // guarded by the service
+    private IotDroneSubscriber.Listener mListener;
+    private String mLastStatus;
+    private final long[] mBufferedCommands = new long[BUFFER_CAPACITY];
+    private final long[] mBufferedReceivedAt = new long[BUFFER_CAPACITY];
+    private final long[] mBufferedExecuteAt = new long[BUFFER_CAPACITY];
+    private int mBufferedCount;
+    private long mBufferedTotal;
+    private long mDroppedCount;
+
+    // the buffered commands being given to a new listener, only touched by the main thread
+    private final long[] mReplayCommands = new long[BUFFER_CAPACITY];
+    private final long[] mReplayReceivedAt = new long[BUFFER_CAPACITY];
+    private final long[] mReplayExecuteAt = new long[BUFFER_CAPACITY];
+
+    public class LocalBinder extends Binder {
+        public IotService getService() {
+            return IotService.this;
+        }
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if ((intent != null) && ACTION_START.equals(intent.getAction())) {
+            String[] thingNames = intent.getStringArrayExtra(EXTRA_THING_NAMES);
+            if ((mIotSubscriber == null) || !Arrays.equals(thingNames, mThingNames)) {
+                endSession();
+                startSession(thingNames);
+            }
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        endSession();
+        super.onDestroy();
+    }
+
+    /**
+     * Attach the listener of the activity, the buffered commands and the last connection
+     * status are given to it at once
+     * Called in the main thread
+     * @param listener the listener, null to buffer the commands until the next one
+     */
+    public void setListener(IotDroneSubscriber.Listener listener) {
+        if (listener == null) {
+            synchronized (this) {
+                mListener = null;
+            }
+            return;
+        }
+        String lastStatus;
+        synchronized (this) {
+            lastStatus = mLastStatus;
+        }
+        if (lastStatus != null) {
+            listener.onConnectionStatusChanged(lastStatus);
+        }
+        // the commands arriving during a replay are buffered behind it, the listener is
+        // attached once the buffer is empty: the commands keep their order
+        while (true) {
+            int count;
+            synchronized (this) {
+                count = takeBuffered();
+                if (count == 0) {
+                    mListener = listener;
+                    return;
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                listener.onCommandReceived(mReplayCommands[i], mReplayReceivedAt[i], mReplayExecuteAt[i]);
+            }
+        }
+    }
+
+    // move the buffered commands that are recent enough to the replay arrays, guarded by the service
+    private int takeBuffered() {
+        long now = System.nanoTime();
+        int count = 0;
+        for (int i = 0; i < mBufferedCount; i++) {
+            if ((now - mBufferedReceivedAt[i]) > MAX_BUFFERED_AGE_MS * 1000000L) {
+                mDroppedCount++;
+                continue;
+            }
+            mReplayCommands[count] = mBufferedCommands[i];
+            mReplayReceivedAt[count] = mBufferedReceivedAt[i];
+            mReplayExecuteAt[count] = mBufferedExecuteAt[i];
+            count++;
+        }
+        mBufferedCount = 0;
+        return count;
+    }
+
+    /**
+     * Disconnect from AWS IoT and drop the buffered commands, the service can then be stopped
+     * Called in the main thread
+     */
+    public void endSession() {
+        if (mIotSubscriber == null) {
+            return;
+        }
+        mIotSubscriber.disconnect();
+        synchronized (this) {
+            Log.i(TAG, "Flight session over: " + mIotSubscriber.getReconnectCount() + " reconnects, "
+                    + mBufferedTotal + " commands buffered, " + (mDroppedCount + mBufferedCount)
+                    + " dropped\n" + mLatencyRecorder.report());
+            mBufferedCount = 0;
+            mBufferedTotal = 0;
+            mDroppedCount = 0;
+            mLastStatus = null;
+        }
+        mIotSubscriber = null;
+        mThingNames = null;
+        stopForeground(true);
+    }
+
+    private void startSession(String[] thingNames) {
+        mThingNames = thingNames;
+        ThingRoutes routes = new ThingRoutes();
+        for (String thingName : thingNames) {
+            routes.add(thingName);
+        }
+        mLatencyRecorder.reset();
+
+        startForeground(NOTIFICATION_ID, new NotificationCompat.Builder(this)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText("Listening to the voice commands")
+                .build());
+
+        mIotSubscriber = new IotDroneSubscriber(this, mSubscriberListener, mLatencyRecorder, routes);
+    }
+
+    // guarded by the service
+    private void buffer(long command, long receivedAt, long executeAt) {
+        if (mBufferedCount == BUFFER_CAPACITY) {
+            // keep the latest commands
+            mDroppedCount++;
+            mBufferedCount--;
+            System.arraycopy(mBufferedCommands, 1, mBufferedCommands, 0, mBufferedCount);
+            System.arraycopy(mBufferedReceivedAt, 1, mBufferedReceivedAt, 0, mBufferedCount);
+            System.arraycopy(mBufferedExecuteAt, 1, mBufferedExecuteAt, 0, mBufferedCount);
+        }
+        mBufferedCommands[mBufferedCount] = command;
+        mBufferedReceivedAt[mBufferedCount] = receivedAt;
+        mBufferedExecuteAt[mBufferedCount] = executeAt;
+        mBufferedCount++;
+        mBufferedTotal++;
+    }
+
+    private final IotDroneSubscriber.Listener mSubscriberListener = new IotDroneSubscriber.Listener() {
+        @Override
+        public void onConnectionStatusChanged(String status) {
+            IotDroneSubscriber.Listener listener;
+            synchronized (IotService.this) {
+                mLastStatus = status;
+                listener = mListener;
+            }
+            if (listener != null) {
+                listener.onConnectionStatusChanged(status);
+            }
+        }
+
+        @Override
+        public void onCommandReceived(long command, long receivedAt, long executeAt) {
+            IotDroneSubscriber.Listener listener;
+            synchronized (IotService.this) {
+                listener = mListener;
+                if (listener == null) {
+                    buffer(command, receivedAt, executeAt);
+                }
+            }
+            if (listener != null) {
+                listener.onCommandReceived(command, receivedAt, executeAt);
+            }
+        }
+
+        @Override
+        public void onConnectionLost() {
+            IotDroneSubscriber.Listener listener;
+            synchronized (IotService.this) {
+                listener = mListener;
+            }
+            if (listener != null) {
+                listener.onConnectionLost();
+            }
+        }
+    };
+}
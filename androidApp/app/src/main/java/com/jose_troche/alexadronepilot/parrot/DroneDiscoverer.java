@@ -13,6 +13,7 @@ import android.os.IBinder;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
+import com.jose_troche.alexadronepilot.pilot.EventBus;
 import com.parrot.arsdk.ardiscovery.ARDiscoveryDeviceService;
 import com.parrot.arsdk.ardiscovery.ARDiscoveryService;
 import com.parrot.arsdk.ardiscovery.receivers.ARDiscoveryServicesDevicesListUpdatedReceiver;
@@ -35,7 +36,15 @@ public class DroneDiscoverer
         void onDronesListUpdated(List<ARDiscoveryDeviceService> dronesList);
     }
 
-    private final List<Listener> mListeners;
+    private static final EventBus.Event<Listener> DRONES_LIST_UPDATED = new EventBus.Event<Listener>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public void deliver(Listener listener, long arg, Object obj) {
+            listener.onDronesListUpdated((List<ARDiscoveryDeviceService>) obj);
+        }
+    };
+
+    private final EventBus.Channel<Listener> mListeners;
 
 
     private final Context mCtx;
@@ -51,7 +60,7 @@ public class DroneDiscoverer
     public DroneDiscoverer(Context ctx) {
         mCtx = ctx;
 
-        mListeners = new ArrayList<>();
+        mListeners = DroneEvents.getBus().newChannel();
 
         mMatchingDrones = new ArrayList<>();
 
@@ -65,7 +74,19 @@ public class DroneDiscoverer
      * @param listener an object that implements the {@link Listener} interface
      */
     public void addListener(Listener listener) {
-        mListeners.add(listener);
+        addListener(listener, EventBus.DELIVER_INLINE);
+    }
+
+    /**
+     * Add a listener, called where it chooses
+     * Should be called in the main thread
+     * @param listener an object that implements the {@link Listener} interface
+     * @param delivery EventBus.DELIVER_INLINE for the main thread, DELIVER_BACKGROUND for the
+     *                 background thread of {@link DroneEvents}, DELIVER_UI for a later message
+     *                 of the main thread
+     */
+    public void addListener(Listener listener, int delivery) {
+        mListeners.add(listener, delivery);
 
         notifyServiceDiscovered(mMatchingDrones);
     }
@@ -169,10 +190,7 @@ public class DroneDiscoverer
     }
 
     private void notifyServiceDiscovered(List<ARDiscoveryDeviceService> dronesList) {
-        List<Listener> listenersCpy = new ArrayList<>(mListeners);
-        for (Listener listener : listenersCpy) {
-            listener.onDronesListUpdated(dronesList);
-        }
+        mListeners.publish(DRONES_LIST_UPDATED, 0, dronesList);
     }
 
     private final ARDiscoveryServicesDevicesListUpdatedReceiverDelegate mDiscoveryListener =
@@ -0,0 +1,53 @@
+package com.jose_troche.alexadronepilot.parrot;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import com.jose_troche.alexadronepilot.pilot.EventBus;
+
+import java.util.concurrent.Executor;
+
+/**
+ * The {@link EventBus} of the drones of this process, shared by the {@link MiniDrone}s,
+ * their {@link SDCardModule}s and the {@link DroneDiscoverer}s.
+ * Its UI executor posts to the main looper, its background executor to a thread of its own,
+ * apart from the UI and from the control threads of the DronePilots, which never run a
+ * listener. Both post to a Handler, whose messages are pooled: a queued delivery does not
+ * allocate either.
+ */
+public final class DroneEvents {
+    private static final String TAG = "DroneEvents";
+
+    private static EventBus sBus; // guarded by DroneEvents.class
+
+    private DroneEvents() {}
+
+    /**
+     * Can be called from any thread
+     * @return the bus, created at the first call
+     */
+    public static synchronized EventBus getBus() {
+        if (sBus == null) {
+            HandlerThread backgroundThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_DEFAULT);
+            backgroundThread.start();
+            sBus = new EventBus(new HandlerExecutor(new Handler(backgroundThread.getLooper())),
+                    new HandlerExecutor(new Handler(Looper.getMainLooper())));
+        }
+        return sBus;
+    }
+
+    private static final class HandlerExecutor implements Executor {
+        private final Handler mHandler;
+
+        HandlerExecutor(Handler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public void execute(Runnable runnable) {
+            mHandler.post(runnable);
+        }
+    }
+}
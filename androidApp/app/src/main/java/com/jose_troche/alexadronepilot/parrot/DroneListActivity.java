@@ -17,6 +17,7 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import com.jose_troche.alexadronepilot.MainActivity;
+import com.jose_troche.alexadronepilot.aws_iot.IotDroneSubscriber;
 import com.parrot.arsdk.ARSDK;
 import com.parrot.arsdk.ardiscovery.ARDISCOVERY_PRODUCT_ENUM;
 import com.parrot.arsdk.ardiscovery.ARDiscoveryDeviceService;
@@ -28,6 +29,7 @@ import java.util.List;
 
 public class DroneListActivity extends AppCompatActivity {
     public static final String EXTRA_DEVICE_SERVICE = "EXTRA_DEVICE_SERVICE";
+    public static final String EXTRA_DEVICE_SERVICES = "EXTRA_DEVICE_SERVICES";
 
     private static final String TAG = "DroneListActivity";
 
@@ -46,6 +48,9 @@ public class DroneListActivity extends AppCompatActivity {
     {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_drone_list);
+
+        // the IoT credentials are ready by the time a drone is picked
+        IotDroneSubscriber.prefetchKeyStore(this);
         final ListView listView = (ListView) findViewById(R.id.list);
 
         // Assign adapter to ListView
@@ -79,9 +84,44 @@ public class DroneListActivity extends AppCompatActivity {
             }
         });
 
+        // a long click flies every discovered MiniDrone as a fleet
+        listView.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener()
+        {
+            @Override
+            public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id)
+            {
+                ArrayList<ARDiscoveryDeviceService> fleet = new ArrayList<>();
+                for (ARDiscoveryDeviceService service : mDronesList) {
+                    if (isMiniDrone(service)) {
+                        fleet.add(service);
+                    }
+                }
+                if (fleet.isEmpty()) {
+                    return false;
+                }
+
+                Intent intent = new Intent(DroneListActivity.this, MainActivity.class);
+                intent.putParcelableArrayListExtra(EXTRA_DEVICE_SERVICES, fleet);
+                startActivity(intent);
+                return true;
+            }
+        });
+
         mDroneDiscoverer = new DroneDiscoverer(this);
     }
 
+    private static boolean isMiniDrone(ARDiscoveryDeviceService service) {
+        switch (ARDiscoveryService.getProductFromProductID(service.getProductID())) {
+            case ARDISCOVERY_PRODUCT_MINIDRONE:
+            case ARDISCOVERY_PRODUCT_MINIDRONE_EVO_BRICK:
+            case ARDISCOVERY_PRODUCT_MINIDRONE_EVO_LIGHT:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
     @Override
     protected void onResume()
     {
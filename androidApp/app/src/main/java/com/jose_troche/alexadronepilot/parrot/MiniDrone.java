@@ -6,9 +6,18 @@ package com.jose_troche.alexadronepilot.parrot;
  */
 import android.os.Handler;
 import android.content.Context;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
+import com.jose_troche.alexadronepilot.pilot.AckTracker;
+import com.jose_troche.alexadronepilot.pilot.Commands;
+import com.jose_troche.alexadronepilot.pilot.DroneController;
+import com.jose_troche.alexadronepilot.pilot.DroneSnapshot;
+import com.jose_troche.alexadronepilot.pilot.EventBus;
+import com.jose_troche.alexadronepilot.pilot.SnapshotPublisher;
+import com.jose_troche.alexadronepilot.pilot.Telemetry;
+import com.jose_troche.alexadronepilot.pilot.TelemetryStore;
 import com.parrot.arsdk.arcommands.ARCOMMANDS_MINIDRONE_ANIMATIONS_FLIP_DIRECTION_ENUM;
 import com.parrot.arsdk.arcommands.ARCOMMANDS_MINIDRONE_MEDIARECORDEVENT_PICTUREEVENTCHANGED_ERROR_ENUM;
 import com.parrot.arsdk.arcommands.ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM;
@@ -33,88 +42,199 @@ import com.parrot.arsdk.arsal.ARSALBLEManager;
 import com.parrot.arsdk.arutils.ARUtilsException;
 import com.parrot.arsdk.arutils.ARUtilsManager;
 
-import java.util.ArrayList;
-import java.util.List;
-
-public class MiniDrone {
+public class MiniDrone implements DroneController {
     private static final String TAG = "MiniDrone";
 
     private static final int DEVICE_PORT = 21;
 
+    // an ARSDK state recorded as telemetry: its argument (null for none) goes to a channel
+    private static final class TelemetryKey {
+        final ARCONTROLLER_DICTIONARY_KEY_ENUM mCommandKey;
+        final String mArgumentKey;
+        final int mChannel;
+
+        TelemetryKey(ARCONTROLLER_DICTIONARY_KEY_ENUM commandKey, String argumentKey, int channel) {
+            mCommandKey = commandKey;
+            mArgumentKey = argumentKey;
+            mChannel = channel;
+        }
+    }
+
+    // every state the minidrones stream: they do not report their altitude, speed or
+    // attitude, those channels are only recorded by the SimulatedMiniDrone
+    private static final TelemetryKey[] TELEMETRY_KEYS = {
+            new TelemetryKey(ARCONTROLLER_DICTIONARY_KEY_ENUM.ARCONTROLLER_DICTIONARY_KEY_COMMON_COMMONSTATE_BATTERYSTATECHANGED,
+                    ARFeatureCommon.ARCONTROLLER_DICTIONARY_KEY_COMMON_COMMONSTATE_BATTERYSTATECHANGED_PERCENT, Telemetry.BATTERY),
+            new TelemetryKey(ARCONTROLLER_DICTIONARY_KEY_ENUM.ARCONTROLLER_DICTIONARY_KEY_COMMON_COMMONSTATE_WIFISIGNALCHANGED,
+                    ARFeatureCommon.ARCONTROLLER_DICTIONARY_KEY_COMMON_COMMONSTATE_WIFISIGNALCHANGED_RSSI, Telemetry.WIFI_RSSI),
+            new TelemetryKey(ARCONTROLLER_DICTIONARY_KEY_ENUM.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED,
+                    ARFeatureMiniDrone.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE, Telemetry.FLYING_STATE),
+            new TelemetryKey(ARCONTROLLER_DICTIONARY_KEY_ENUM.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_PILOTINGSTATE_ALERTSTATECHANGED,
+                    ARFeatureMiniDrone.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_PILOTINGSTATE_ALERTSTATECHANGED_STATE, Telemetry.ALERT_STATE),
+            new TelemetryKey(ARCONTROLLER_DICTIONARY_KEY_ENUM.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_PILOTINGSTATE_AUTOTAKEOFFMODECHANGED,
+                    ARFeatureMiniDrone.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_PILOTINGSTATE_AUTOTAKEOFFMODECHANGED_STATE, Telemetry.AUTO_TAKE_OFF),
+            new TelemetryKey(ARCONTROLLER_DICTIONARY_KEY_ENUM.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_PILOTINGSTATE_FLATTRIMCHANGED,
+                    null, Telemetry.FLAT_TRIM),
+            new TelemetryKey(ARCONTROLLER_DICTIONARY_KEY_ENUM.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_PILOTINGSETTINGSSTATE_MAXALTITUDECHANGED,
+                    ARFeatureMiniDrone.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_PILOTINGSETTINGSSTATE_MAXALTITUDECHANGED_CURRENT, Telemetry.MAX_ALTITUDE),
+            new TelemetryKey(ARCONTROLLER_DICTIONARY_KEY_ENUM.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_PILOTINGSETTINGSSTATE_MAXTILTCHANGED,
+                    ARFeatureMiniDrone.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_PILOTINGSETTINGSSTATE_MAXTILTCHANGED_CURRENT, Telemetry.MAX_TILT),
+            new TelemetryKey(ARCONTROLLER_DICTIONARY_KEY_ENUM.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_SPEEDSETTINGSSTATE_MAXVERTICALSPEEDCHANGED,
+                    ARFeatureMiniDrone.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_SPEEDSETTINGSSTATE_MAXVERTICALSPEEDCHANGED_CURRENT, Telemetry.MAX_VERTICAL_SPEED),
+            new TelemetryKey(ARCONTROLLER_DICTIONARY_KEY_ENUM.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_SPEEDSETTINGSSTATE_MAXROTATIONSPEEDCHANGED,
+                    ARFeatureMiniDrone.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_SPEEDSETTINGSSTATE_MAXROTATIONSPEEDCHANGED_CURRENT, Telemetry.MAX_ROTATION_SPEED),
+            new TelemetryKey(ARCONTROLLER_DICTIONARY_KEY_ENUM.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_SPEEDSETTINGSSTATE_WHEELSCHANGED,
+                    ARFeatureMiniDrone.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_SPEEDSETTINGSSTATE_WHEELSCHANGED_PRESENT, Telemetry.WHEELS),
+            new TelemetryKey(ARCONTROLLER_DICTIONARY_KEY_ENUM.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_MEDIARECORDSTATE_PICTURESTATECHANGEDV2,
+                    ARFeatureMiniDrone.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_MEDIARECORDSTATE_PICTURESTATECHANGEDV2_STATE, Telemetry.PICTURE_STATE),
+            new TelemetryKey(ARCONTROLLER_DICTIONARY_KEY_ENUM.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_MEDIARECORDEVENT_PICTUREEVENTCHANGED,
+                    ARFeatureMiniDrone.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_MEDIARECORDEVENT_PICTUREEVENTCHANGED_ERROR, Telemetry.PICTURE_EVENT),
+    };
+
     public interface Listener {
         /**
          * Called when the connection to the drone changes
-         * Called in the main thread
+         * Called in the main thread, at most once per display frame with the latest state
          * @param state the state of the drone
          */
         void onDroneConnectionChanged(ARCONTROLLER_DEVICE_STATE_ENUM state);
 
         /**
          * Called when the battery charge changes
-         * Called in the main thread
+         * Called in the main thread, at most once per display frame with the latest charge
          * @param batteryPercentage the battery remaining (in percent)
          */
         void onBatteryChargeChanged(int batteryPercentage);
 
         /**
          * Called when the piloting state changes
-         * Called in the main thread
+         * Called in the main thread, at most once per display frame with the latest state
          * @param state the piloting state of the drone
          */
         void onPilotingStateChanged(ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM state);
 
         /**
          * Called when a picture is taken
-         * Called on a separate thread
-         * @param error ERROR_OK if picture has been taken, otherwise describe the error
+         * Called in the main thread, once per display frame in which pictures were taken
+         * @param error ERROR_OK if the last picture has been taken, otherwise describe the error
          */
         void onPictureTaken(ARCOMMANDS_MINIDRONE_MEDIARECORDEVENT_PICTUREEVENTCHANGED_ERROR_ENUM error);
 
         /**
          * Called before medias will be downloaded
-         * Called in the main thread
+         * Called in the main thread, at the display frame following the search
          * @param nbMedias the number of medias that will be downloaded
          */
         void onMatchingMediasFound(int nbMedias);
 
         /**
-         * Called each time the progress of a download changes
-         * Called in the main thread
+         * Called when the progress of a download changes
+         * Called in the main thread, at most once per display frame with the latest progress
          * @param mediaName the name of the media
          * @param progress the progress of its download (from 0 to 100)
          */
         void onDownloadProgressed(String mediaName, int progress);
 
         /**
-         * Called when a media download has ended
-         * Called in the main thread
-         * @param mediaName the name of the media
+         * Called when media downloads have ended
+         * Called in the main thread, once per display frame in which downloads ended
+         * @param mediaName the name of the last media downloaded
          */
         void onDownloadComplete(String mediaName);
     }
 
-    private final List<Listener> mListeners;
+    //region events of the Listener, shared with the SimulatedMiniDrone
+    static final EventBus.Event<Listener> CONNECTION_CHANGED = new EventBus.Event<Listener>() {
+        @Override
+        public void deliver(Listener listener, long arg, Object obj) {
+            listener.onDroneConnectionChanged((ARCONTROLLER_DEVICE_STATE_ENUM) obj);
+        }
+    };
+
+    static final EventBus.Event<Listener> BATTERY_CHANGED = new EventBus.Event<Listener>() {
+        @Override
+        public void deliver(Listener listener, long arg, Object obj) {
+            listener.onBatteryChargeChanged((int) arg);
+        }
+    };
+
+    static final EventBus.Event<Listener> PILOTING_STATE_CHANGED = new EventBus.Event<Listener>() {
+        @Override
+        public void deliver(Listener listener, long arg, Object obj) {
+            listener.onPilotingStateChanged((ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM) obj);
+        }
+    };
+
+    static final EventBus.Event<Listener> PICTURE_TAKEN = new EventBus.Event<Listener>() {
+        @Override
+        public void deliver(Listener listener, long arg, Object obj) {
+            listener.onPictureTaken((ARCOMMANDS_MINIDRONE_MEDIARECORDEVENT_PICTUREEVENTCHANGED_ERROR_ENUM) obj);
+        }
+    };
+
+    static final EventBus.Event<Listener> MATCHING_MEDIAS_FOUND = new EventBus.Event<Listener>() {
+        @Override
+        public void deliver(Listener listener, long arg, Object obj) {
+            listener.onMatchingMediasFound((int) arg);
+        }
+    };
+
+    static final EventBus.Event<Listener> DOWNLOAD_PROGRESSED = new EventBus.Event<Listener>() {
+        @Override
+        public void deliver(Listener listener, long arg, Object obj) {
+            listener.onDownloadProgressed((String) obj, (int) arg);
+        }
+    };
+
+    static final EventBus.Event<Listener> DOWNLOAD_COMPLETE = new EventBus.Event<Listener>() {
+        @Override
+        public void deliver(Listener listener, long arg, Object obj) {
+            listener.onDownloadComplete((String) obj);
+        }
+    };
+    //endregion events
+
+    private final EventBus.Channel<Listener> mListeners;
 
     private final Handler mHandler;
 
+    // the state updates of the ARSDK threads, merged into one main thread message per frame
+    private final SnapshotPublisher mSnapshots;
+
     private final Context mContext;
 
+    // the connection state and, while running, the feature the piloting commands go to,
+    // swapped as one by the ARSDK thread: a piloting call reads them in one volatile read
+    private static final class Link {
+        final ARCONTROLLER_DEVICE_STATE_ENUM mState;
+        final ARFeatureMiniDrone mFeature;
+
+        Link(ARCONTROLLER_DEVICE_STATE_ENUM state, ARFeatureMiniDrone feature) {
+            mState = state;
+            mFeature = feature;
+        }
+    }
+
+    private static final Link STOPPED = new Link(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_STOPPED, null);
+
     private ARDeviceController mDeviceController;
     private SDCardModule mSDCardModule;
-    private ARCONTROLLER_DEVICE_STATE_ENUM mState;
+    private volatile Link mLink = STOPPED;
     private ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM mFlyingState;
-    private String mCurrentRunId;
+    private volatile String mCurrentRunId;
     private ARDISCOVERY_PRODUCT_ENUM mProductType;
 
+    private final TelemetryStore mTelemetry = new TelemetryStore();
+    private final AckTracker mAcks = new AckTracker();
+
     public MiniDrone(Context context, @NonNull ARDiscoveryDeviceService deviceService) {
 
         mContext = context;
-        mListeners = new ArrayList<>();
+        mListeners = DroneEvents.getBus().newChannel();
 
         // needed because some callbacks will be called on the main thread
         mHandler = new Handler(context.getMainLooper());
-
-        mState = ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_STOPPED;
+        mSnapshots = new SnapshotPublisher(mSnapshotLoop, mSnapshotListener);
 
         // if the product type of the deviceService match with the types supported
         mProductType = ARDiscoveryService.getProductFromProductID(deviceService.getProductID());
@@ -132,10 +252,25 @@ public class MiniDrone {
     }
 
     //region Listener functions
+    /**
+     * Add a listener, called in the main thread
+     * Can be called from any thread
+     */
     public void addListener(Listener listener) {
         mListeners.add(listener);
     }
 
+    /**
+     * Add a listener, called where it chooses
+     * Can be called from any thread
+     * @param delivery EventBus.DELIVER_INLINE for the main thread, DELIVER_BACKGROUND for the
+     *                 background thread of {@link DroneEvents}, DELIVER_UI for a later message
+     *                 of the main thread
+     */
+    public void addListener(Listener listener, int delivery) {
+        mListeners.add(listener, delivery);
+    }
+
     public void removeListener(Listener listener) {
         mListeners.remove(listener);
     }
@@ -149,7 +284,7 @@ public class MiniDrone {
      */
     public boolean connect() {
         boolean success = false;
-        if ((mDeviceController != null) && (ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_STOPPED.equals(mState))) {
+        if ((mDeviceController != null) && (ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_STOPPED.equals(mLink.mState))) {
             ARCONTROLLER_ERROR_ENUM error = mDeviceController.start();
             if (error == ARCONTROLLER_ERROR_ENUM.ARCONTROLLER_OK) {
                 success = true;
@@ -166,7 +301,7 @@ public class MiniDrone {
      */
     public boolean disconnect() {
         boolean success = false;
-        if ((mDeviceController != null) && (ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING.equals(mState))) {
+        if ((mDeviceController != null) && (ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING.equals(mLink.mState))) {
             ARCONTROLLER_ERROR_ENUM error = mDeviceController.stop();
             if (error == ARCONTROLLER_ERROR_ENUM.ARCONTROLLER_OK) {
                 success = true;
@@ -177,10 +312,11 @@ public class MiniDrone {
 
     /**
      * Get the current connection state
+     * Can be called from any thread
      * @return the connection state of the drone
      */
     public ARCONTROLLER_DEVICE_STATE_ENUM getConnectionState() {
-        return mState;
+        return mLink.mState;
     }
 
     /**
@@ -191,31 +327,64 @@ public class MiniDrone {
         return mFlyingState;
     }
 
+    /**
+     * @return the publisher of the state shown by the UI, with its counters
+     */
+    public SnapshotPublisher getSnapshotPublisher() {
+        return mSnapshots;
+    }
+
+    /**
+     * Get the recent telemetry, times from {@link SystemClock#elapsedRealtime()}
+     * Can be read from any thread
+     * @return the store of every state the drone streams
+     */
+    public TelemetryStore getTelemetry() {
+        return mTelemetry;
+    }
+
+    /**
+     * Get the latency from the commands to their report by the drone, times from {@link System#nanoTime()}
+     * Can be read from any thread
+     * @return the latencies of the commands the drone reports
+     */
+    public AckTracker getAcks() {
+        return mAcks;
+    }
+
     public void takeOff() {
-        if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
-            mDeviceController.getFeatureMiniDrone().sendPilotingTakeOff();
+        ARFeatureMiniDrone feature = mLink.mFeature;
+        if (feature != null) {
+            mAcks.onSent(Commands.TAKE_OFF, System.nanoTime());
+            feature.sendPilotingTakeOff();
         }
     }
 
     public void land() {
-        if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
-            mDeviceController.getFeatureMiniDrone().sendPilotingLanding();
+        ARFeatureMiniDrone feature = mLink.mFeature;
+        if (feature != null) {
+            mAcks.onSent(Commands.LAND, System.nanoTime());
+            feature.sendPilotingLanding();
         }
     }
 
     public void emergency() {
-        if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
-            mDeviceController.getFeatureMiniDrone().sendPilotingEmergency();
+        ARFeatureMiniDrone feature = mLink.mFeature;
+        if (feature != null) {
+            mAcks.onSent(Commands.EMERGENCY, System.nanoTime());
+            feature.sendPilotingEmergency();
         }
     }
 
     public void takePicture() {
-        if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
+        ARFeatureMiniDrone feature = mLink.mFeature;
+        if (feature != null) {
+            mAcks.onSent(Commands.PICTURE, System.nanoTime());
             // RollingSpider (not evo) are still using old deprecated command
             if (ARDISCOVERY_PRODUCT_ENUM.ARDISCOVERY_PRODUCT_MINIDRONE.equals(mProductType)) {
-                mDeviceController.getFeatureMiniDrone().sendMediaRecordPicture((byte)0);
+                feature.sendMediaRecordPicture((byte)0);
             } else {
-                mDeviceController.getFeatureMiniDrone().sendMediaRecordPictureV2();
+                feature.sendMediaRecordPictureV2();
             }
         }
     }
@@ -226,8 +395,9 @@ public class MiniDrone {
      * @param pitch value in percentage from -100 to 100
      */
     public void setPitch(byte pitch) {
-        if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
-            mDeviceController.getFeatureMiniDrone().setPilotingPCMDPitch(pitch);
+        ARFeatureMiniDrone feature = mLink.mFeature;
+        if (feature != null) {
+            feature.setPilotingPCMDPitch(pitch);
         }
     }
 
@@ -237,26 +407,30 @@ public class MiniDrone {
      * @param roll value in percentage from -100 to 100
      */
     public void setRoll(byte roll) {
-        if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
-            mDeviceController.getFeatureMiniDrone().setPilotingPCMDRoll(roll);
+        ARFeatureMiniDrone feature = mLink.mFeature;
+        if (feature != null) {
+            feature.setPilotingPCMDRoll(roll);
         }
     }
 
     public void setYaw(byte yaw) {
-        if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
-            mDeviceController.getFeatureMiniDrone().setPilotingPCMDYaw(yaw);
+        ARFeatureMiniDrone feature = mLink.mFeature;
+        if (feature != null) {
+            feature.setPilotingPCMDYaw(yaw);
         }
     }
 
     public void setGaz(byte gaz) {
-        if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
-            mDeviceController.getFeatureMiniDrone().setPilotingPCMDGaz(gaz);
+        ARFeatureMiniDrone feature = mLink.mFeature;
+        if (feature != null) {
+            feature.setPilotingPCMDGaz(gaz);
         }
     }
 
     public void flip(){
-        if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
-            mDeviceController.getFeatureMiniDrone().sendAnimationsFlip(
+        ARFeatureMiniDrone feature = mLink.mFeature;
+        if (feature != null) {
+            feature.sendAnimationsFlip(
                     ARCOMMANDS_MINIDRONE_ANIMATIONS_FLIP_DIRECTION_ENUM.ARCOMMANDS_MINIDRONE_ANIMATIONS_FLIP_DIRECTION_LEFT);
         }
     }
@@ -266,8 +440,9 @@ public class MiniDrone {
      * @param flag 1 if the pitch and roll values should be used, 0 otherwise
      */
     public void setFlag(byte flag) {
-        if ((mDeviceController != null) && (mState.equals(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING))) {
-            mDeviceController.getFeatureMiniDrone().setPilotingPCMDFlag(flag);
+        ARFeatureMiniDrone feature = mLink.mFeature;
+        if (feature != null) {
+            feature.setPilotingPCMDFlag(flag);
         }
     }
 
@@ -337,104 +512,136 @@ public class MiniDrone {
         return deviceController;
     }
 
+    // the ARSDK may call from its event and navigation data threads, one record at a time
+    private void recordTelemetry(ARCONTROLLER_DICTIONARY_KEY_ENUM commandKey, ARControllerDictionary elementDictionary) {
+        ARControllerArgumentDictionary<Object> args = null;
+        for (TelemetryKey key : TELEMETRY_KEYS) {
+            if (key.mCommandKey != commandKey) {
+                continue;
+            }
+            if (args == null) {
+                args = elementDictionary.get(ARControllerDictionary.ARCONTROLLER_DICTIONARY_SINGLE_KEY);
+                if (args == null) {
+                    return;
+                }
+            }
+            // enums and integers come as Integer, floats as Double
+            Object value = (key.mArgumentKey != null) ? args.get(key.mArgumentKey) : 1;
+            if (value instanceof Number) {
+                synchronized (mTelemetry) {
+                    mTelemetry.record(key.mChannel, SystemClock.elapsedRealtime(), ((Number) value).floatValue());
+                }
+            }
+        }
+    }
+
     //region notify listener block
     private void notifyConnectionChanged(ARCONTROLLER_DEVICE_STATE_ENUM state) {
-        List<Listener> listenersCpy = new ArrayList<>(mListeners);
-        for (Listener listener : listenersCpy) {
-            listener.onDroneConnectionChanged(state);
-        }
+        mListeners.publish(CONNECTION_CHANGED, 0, state);
     }
 
     private void notifyBatteryChanged(int battery) {
-        List<Listener> listenersCpy = new ArrayList<>(mListeners);
-        for (Listener listener : listenersCpy) {
-            listener.onBatteryChargeChanged(battery);
-        }
+        mListeners.publish(BATTERY_CHANGED, battery, null);
     }
 
     private void notifyPilotingStateChanged(ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM state) {
-        List<Listener> listenersCpy = new ArrayList<>(mListeners);
-        for (Listener listener : listenersCpy) {
-            listener.onPilotingStateChanged(state);
-        }
+        mListeners.publish(PILOTING_STATE_CHANGED, 0, state);
     }
 
     private void notifyPictureTaken(ARCOMMANDS_MINIDRONE_MEDIARECORDEVENT_PICTUREEVENTCHANGED_ERROR_ENUM error) {
-        List<Listener> listenersCpy = new ArrayList<>(mListeners);
-        for (Listener listener : listenersCpy) {
-            listener.onPictureTaken(error);
-        }
+        mListeners.publish(PICTURE_TAKEN, 0, error);
     }
 
     private void notifyMatchingMediasFound(int nbMedias) {
-        List<Listener> listenersCpy = new ArrayList<>(mListeners);
-        for (Listener listener : listenersCpy) {
-            listener.onMatchingMediasFound(nbMedias);
-        }
+        mListeners.publish(MATCHING_MEDIAS_FOUND, nbMedias, null);
     }
 
     private void notifyDownloadProgressed(String mediaName, int progress) {
-        List<Listener> listenersCpy = new ArrayList<>(mListeners);
-        for (Listener listener : listenersCpy) {
-            listener.onDownloadProgressed(mediaName, progress);
-        }
+        mListeners.publish(DOWNLOAD_PROGRESSED, progress, mediaName);
     }
 
     private void notifyDownloadComplete(String mediaName) {
-        List<Listener> listenersCpy = new ArrayList<>(mListeners);
-        for (Listener listener : listenersCpy) {
-            listener.onDownloadComplete(mediaName);
-        }
+        mListeners.publish(DOWNLOAD_COMPLETE, 0, mediaName);
     }
     //endregion notify listener block
 
     private final SDCardModule.Listener mSDCardModuleListener = new SDCardModule.Listener() {
         @Override
-        public void onMatchingMediasFound(final int nbMedias) {
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    notifyMatchingMediasFound(nbMedias);
-                }
-            });
+        public void onMatchingMediasFound(int nbMedias) {
+            mSnapshots.addMediaSearch(nbMedias);
         }
 
         @Override
-        public void onDownloadProgressed(final String mediaName, final int progress) {
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    notifyDownloadProgressed(mediaName, progress);
-                }
-            });
+        public void onDownloadProgressed(String mediaName, int progress) {
+            mSnapshots.setDownloadProgress(mediaName, progress);
         }
 
         @Override
-        public void onDownloadComplete(final String mediaName) {
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    notifyDownloadComplete(mediaName);
-                }
-            });
+        public void onDownloadComplete(String mediaName) {
+            mSnapshots.addDownloaded(mediaName);
+        }
+    };
+
+    private final SnapshotPublisher.Loop mSnapshotLoop = new SnapshotPublisher.Loop() {
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+
+        @Override
+        public void scheduleFrame(long atMillis) {
+            mHandler.postAtTime(mFrameRunnable, atMillis);
+        }
+    };
+
+    private final Runnable mFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mSnapshots.deliverFrame();
+        }
+    };
+
+    // the listeners hear about what changed since the previous frame, in the main thread
+    private final SnapshotPublisher.Listener mSnapshotListener = new SnapshotPublisher.Listener() {
+        @Override
+        public void onSnapshot(DroneSnapshot snapshot, DroneSnapshot previous) {
+            if (snapshot.getConnectionState() != previous.getConnectionState()) {
+                notifyConnectionChanged(ARCONTROLLER_DEVICE_STATE_ENUM.getFromValue(snapshot.getConnectionState()));
+            }
+            if (snapshot.getBattery() != previous.getBattery()) {
+                notifyBatteryChanged(snapshot.getBattery());
+            }
+            if (snapshot.getFlyingState() != previous.getFlyingState()) {
+                mFlyingState = ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM.getFromValue(snapshot.getFlyingState());
+                notifyPilotingStateChanged(mFlyingState);
+            }
+            if (snapshot.getPictureCount() != previous.getPictureCount()) {
+                notifyPictureTaken(ARCOMMANDS_MINIDRONE_MEDIARECORDEVENT_PICTUREEVENTCHANGED_ERROR_ENUM.getFromValue(snapshot.getPictureError()));
+            }
+            if (snapshot.getMediaSearchCount() != previous.getMediaSearchCount()) {
+                notifyMatchingMediasFound(snapshot.getMediaCount());
+            }
+            if ((snapshot.getDownloadName() != null) && ((snapshot.getDownloadProgress() != previous.getDownloadProgress())
+                    || !snapshot.getDownloadName().equals(previous.getDownloadName()))) {
+                notifyDownloadProgressed(snapshot.getDownloadName(), snapshot.getDownloadProgress());
+            }
+            if (snapshot.getDownloadedCount() != previous.getDownloadedCount()) {
+                notifyDownloadComplete(snapshot.getLastDownloadedName());
+            }
         }
     };
 
     private final ARDeviceControllerListener mDeviceControllerListener = new ARDeviceControllerListener() {
         @Override
         public void onStateChanged(ARDeviceController deviceController, ARCONTROLLER_DEVICE_STATE_ENUM newState, ARCONTROLLER_ERROR_ENUM error) {
-            mState = newState;
-            if (ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_STOPPED.equals(mState)) {
+            boolean running = ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING.equals(newState);
+            mLink = new Link(newState, running ? deviceController.getFeatureMiniDrone() : null);
+            if (ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_STOPPED.equals(newState)) {
                 if (mSDCardModule != null) {
                     mSDCardModule.cancelGetFlightMedias();
                 }
             }
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    notifyConnectionChanged(mState);
-                }
-            });
+            mSnapshots.setConnectionState(newState.getValue());
         }
 
         @Override
@@ -443,58 +650,42 @@ public class MiniDrone {
 
         @Override
         public void onCommandReceived(ARDeviceController deviceController, ARCONTROLLER_DICTIONARY_KEY_ENUM commandKey, ARControllerDictionary elementDictionary) {
+            if (elementDictionary != null) {
+                recordTelemetry(commandKey, elementDictionary);
+            }
+
             // if event received is the battery update
             if ((commandKey == ARCONTROLLER_DICTIONARY_KEY_ENUM.ARCONTROLLER_DICTIONARY_KEY_COMMON_COMMONSTATE_BATTERYSTATECHANGED) && (elementDictionary != null)) {
                 ARControllerArgumentDictionary<Object> args = elementDictionary.get(ARControllerDictionary.ARCONTROLLER_DICTIONARY_SINGLE_KEY);
                 if (args != null) {
-                    final int battery = (Integer) args.get(ARFeatureCommon.ARCONTROLLER_DICTIONARY_KEY_COMMON_COMMONSTATE_BATTERYSTATECHANGED_PERCENT);
-                    mHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            notifyBatteryChanged(battery);
-                        }
-                    });
+                    int battery = (Integer) args.get(ARFeatureCommon.ARCONTROLLER_DICTIONARY_KEY_COMMON_COMMONSTATE_BATTERYSTATECHANGED_PERCENT);
+                    mSnapshots.setBattery(battery);
                 }
             }
             // if event received is the flying state update
             else if ((commandKey == ARCONTROLLER_DICTIONARY_KEY_ENUM.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED) && (elementDictionary != null)) {
                 ARControllerArgumentDictionary<Object> args = elementDictionary.get(ARControllerDictionary.ARCONTROLLER_DICTIONARY_SINGLE_KEY);
                 if (args != null) {
-                    final ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM state = ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM.getFromValue((Integer) args.get(ARFeatureMiniDrone.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE));
-
-                    mHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            mFlyingState = state;
-                            notifyPilotingStateChanged(state);
-                        }
-                    });
+                    int state = (Integer) args.get(ARFeatureMiniDrone.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE);
+                    mAcks.onFlyingState(state, System.nanoTime());
+                    mSnapshots.setFlyingState(state);
                 }
             }
             // if event received is the picture notification
             else if ((commandKey == ARCONTROLLER_DICTIONARY_KEY_ENUM.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_MEDIARECORDEVENT_PICTUREEVENTCHANGED) && (elementDictionary != null)){
                 ARControllerArgumentDictionary<Object> args = elementDictionary.get(ARControllerDictionary.ARCONTROLLER_DICTIONARY_SINGLE_KEY);
                 if (args != null) {
-                    final ARCOMMANDS_MINIDRONE_MEDIARECORDEVENT_PICTUREEVENTCHANGED_ERROR_ENUM error = ARCOMMANDS_MINIDRONE_MEDIARECORDEVENT_PICTUREEVENTCHANGED_ERROR_ENUM.getFromValue((Integer)args.get(ARFeatureMiniDrone.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_MEDIARECORDEVENT_PICTUREEVENTCHANGED_ERROR));
-                    mHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            notifyPictureTaken(error);
-                        }
-                    });
+                    int error = (Integer) args.get(ARFeatureMiniDrone.ARCONTROLLER_DICTIONARY_KEY_MINIDRONE_MEDIARECORDEVENT_PICTUREEVENTCHANGED_ERROR);
+                    mAcks.onAcked(Commands.PICTURE, System.nanoTime());
+                    mSnapshots.addPicture(error);
                 }
             }
             // if event received is the run id
             else if ((commandKey == ARCONTROLLER_DICTIONARY_KEY_ENUM.ARCONTROLLER_DICTIONARY_KEY_COMMON_RUNSTATE_RUNIDCHANGED) && (elementDictionary != null)){
                 ARControllerArgumentDictionary<Object> args = elementDictionary.get(ARControllerDictionary.ARCONTROLLER_DICTIONARY_SINGLE_KEY);
                 if (args != null) {
-                    final String runID = (String) args.get(ARFeatureCommon.ARCONTROLLER_DICTIONARY_KEY_COMMON_RUNSTATE_RUNIDCHANGED_RUNID);
-                    mHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            mCurrentRunId = runID;
-                        }
-                    });
+                    // read by the main thread when downloading the medias, no need to post it
+                    mCurrentRunId = (String) args.get(ARFeatureCommon.ARCONTROLLER_DICTIONARY_KEY_COMMON_RUNSTATE_RUNIDCHANGED_RUNID);
                 }
             }
         }
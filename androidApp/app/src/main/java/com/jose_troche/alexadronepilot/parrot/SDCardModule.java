@@ -9,6 +9,7 @@ import android.os.Environment;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
+import com.jose_troche.alexadronepilot.pilot.EventBus;
 import com.parrot.arsdk.ardatatransfer.ARDATATRANSFER_ERROR_ENUM;
 import com.parrot.arsdk.ardatatransfer.ARDataTransferException;
 import com.parrot.arsdk.ardatatransfer.ARDataTransferManager;
@@ -25,7 +26,6 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
-import java.util.List;
 import java.util.Locale;
 
 public class SDCardModule {
@@ -59,7 +59,28 @@ public class SDCardModule {
         void onDownloadComplete(String mediaName);
     }
 
-    private final List<Listener> mListeners;
+    private static final EventBus.Event<Listener> MATCHING_MEDIAS_FOUND = new EventBus.Event<Listener>() {
+        @Override
+        public void deliver(Listener listener, long arg, Object obj) {
+            listener.onMatchingMediasFound((int) arg);
+        }
+    };
+
+    private static final EventBus.Event<Listener> DOWNLOAD_PROGRESSED = new EventBus.Event<Listener>() {
+        @Override
+        public void deliver(Listener listener, long arg, Object obj) {
+            listener.onDownloadProgressed((String) obj, (int) arg);
+        }
+    };
+
+    private static final EventBus.Event<Listener> DOWNLOAD_COMPLETE = new EventBus.Event<Listener>() {
+        @Override
+        public void deliver(Listener listener, long arg, Object obj) {
+            listener.onDownloadComplete((String) obj);
+        }
+    };
+
+    private final EventBus.Channel<Listener> mListeners;
 
     private ARDataTransferManager mDataTransferManager;
     private ARUtilsManager mFtpList;
@@ -74,7 +95,7 @@ public class SDCardModule {
     public SDCardModule(@NonNull ARUtilsManager ftpListManager, @NonNull ARUtilsManager ftpQueueManager) {
 
         mThreadIsRunning = false;
-        mListeners = new ArrayList<>();
+        mListeners = DroneEvents.getBus().newChannel();
 
         mFtpList = ftpListManager;
         mFtpQueue = ftpQueueManager;
@@ -115,10 +136,24 @@ public class SDCardModule {
     }
 
     //region Listener functions
+    /**
+     * Add a listener, called on the download thread
+     * Can be called from any thread
+     */
     public void addListener(Listener listener) {
         mListeners.add(listener);
     }
 
+    /**
+     * Add a listener, called where it chooses
+     * Can be called from any thread
+     * @param delivery EventBus.DELIVER_INLINE for the download thread, DELIVER_BACKGROUND for
+     *                 the background thread of {@link DroneEvents}, DELIVER_UI for the main thread
+     */
+    public void addListener(Listener listener, int delivery) {
+        mListeners.add(listener, delivery);
+    }
+
     public void removeListener(Listener listener) {
         mListeners.remove(listener);
     }
@@ -306,24 +341,15 @@ public class SDCardModule {
 
     //region notify listener block
     private void notifyMatchingMediasFound(int nbMedias) {
-        List<Listener> listenersCpy = new ArrayList<>(mListeners);
-        for (Listener listener : listenersCpy) {
-            listener.onMatchingMediasFound(nbMedias);
-        }
+        mListeners.publish(MATCHING_MEDIAS_FOUND, nbMedias, null);
     }
 
     private void notifyDownloadProgressed(String mediaName, int progress) {
-        List<Listener> listenersCpy = new ArrayList<>(mListeners);
-        for (Listener listener : listenersCpy) {
-            listener.onDownloadProgressed(mediaName, progress);
-        }
+        mListeners.publish(DOWNLOAD_PROGRESSED, progress, mediaName);
     }
 
     private void notifyDownloadComplete(String mediaName) {
-        List<Listener> listenersCpy = new ArrayList<>(mListeners);
-        for (Listener listener : listenersCpy) {
-            listener.onDownloadComplete(mediaName);
-        }
+        mListeners.publish(DOWNLOAD_COMPLETE, 0, mediaName);
     }
     //endregion notify listener block
 
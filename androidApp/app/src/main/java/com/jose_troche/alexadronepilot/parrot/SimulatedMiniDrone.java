@@ -0,0 +1,226 @@
+package com.jose_troche.alexadronepilot.parrot;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.jose_troche.alexadronepilot.pilot.AckTracker;
+import com.jose_troche.alexadronepilot.pilot.Commands;
+import com.jose_troche.alexadronepilot.pilot.DroneController;
+import com.jose_troche.alexadronepilot.pilot.EventBus;
+import com.jose_troche.alexadronepilot.pilot.FlightModel;
+import com.jose_troche.alexadronepilot.pilot.TelemetryStore;
+import com.parrot.arsdk.arcommands.ARCOMMANDS_MINIDRONE_MEDIARECORDEVENT_PICTUREEVENTCHANGED_ERROR_ENUM;
+import com.parrot.arsdk.arcommands.ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM;
+import com.parrot.arsdk.arcontroller.ARCONTROLLER_DEVICE_STATE_ENUM;
+
+/**
+ * A {@link MiniDrone} without a drone, flying a {@link FlightModel} instead.
+ * It has the piloting operations of a MiniDrone and reports the connection, flying
+ * state, battery and pictures through the same {@link MiniDrone.Listener}.
+ * Once connected, the model flies in real time, advanced on the given looper; the
+ * listeners are called in that looper. Benchmarks can leave it disconnected and
+ * drive {@link #getFlightModel()} on a virtual clock instead.
+ * The model records its telemetry, altitude, speed and attitude included, on its own time.
+ */
+public class SimulatedMiniDrone implements DroneController {
+
+    private static final long STEP_MS = 20;
+
+    private static final ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM[] FLYING_STATES = {
+            ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM.ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_LANDED,
+            ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM.ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_TAKINGOFF,
+            ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM.ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_HOVERING,
+            ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM.ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_FLYING,
+            ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM.ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_LANDING,
+            ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM.ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_EMERGENCY,
+    };
+
+    private final EventBus.Channel<MiniDrone.Listener> mListeners;
+
+    private final Handler mHandler;
+
+    private final FlightModel mFlightModel = new FlightModel();
+    private final TelemetryStore mTelemetry = new TelemetryStore();
+    private final AckTracker mAcks = new AckTracker();
+
+    private ARCONTROLLER_DEVICE_STATE_ENUM mState;
+    private ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM mFlyingState;
+    private long mLastStepAt;
+
+    public SimulatedMiniDrone(Looper looper) {
+        mListeners = DroneEvents.getBus().newChannel();
+        mHandler = new Handler(looper);
+        mState = ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_STOPPED;
+        mFlyingState = FLYING_STATES[FlightModel.STATE_LANDED];
+        mFlightModel.setListener(mFlightModelListener);
+        mFlightModel.setTelemetryStore(mTelemetry);
+    }
+
+    //region Listener functions
+    public void addListener(MiniDrone.Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * @param delivery EventBus.DELIVER_INLINE for the thread of its looper, DELIVER_BACKGROUND
+     *                 for the background thread of {@link DroneEvents}, DELIVER_UI for the main thread
+     */
+    public void addListener(MiniDrone.Listener listener, int delivery) {
+        mListeners.add(listener, delivery);
+    }
+
+    public void removeListener(MiniDrone.Listener listener) {
+        mListeners.remove(listener);
+    }
+    //endregion Listener
+
+    /**
+     * Start flying the model in real time
+     * @return true, the connection is reported through {@link MiniDrone.Listener#onDroneConnectionChanged}
+     */
+    public boolean connect() {
+        if (ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_STOPPED.equals(mState)) {
+            mLastStepAt = SystemClock.uptimeMillis();
+            mHandler.post(mStepRunnable);
+            setConnectionState(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING);
+        }
+        return true;
+    }
+
+    /**
+     * Stop flying the model
+     * @return true, the disconnection is reported through {@link MiniDrone.Listener#onDroneConnectionChanged}
+     */
+    public boolean disconnect() {
+        if (ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_RUNNING.equals(mState)) {
+            mHandler.removeCallbacks(mStepRunnable);
+            setConnectionState(ARCONTROLLER_DEVICE_STATE_ENUM.ARCONTROLLER_DEVICE_STATE_STOPPED);
+        }
+        return true;
+    }
+
+    public ARCONTROLLER_DEVICE_STATE_ENUM getConnectionState() {
+        return mState;
+    }
+
+    public ARCOMMANDS_MINIDRONE_PILOTINGSTATE_FLYINGSTATECHANGED_STATE_ENUM getFlyingState() {
+        return mFlyingState;
+    }
+
+    /**
+     * Can be read from any thread
+     * @return the telemetry of the model, times from {@link FlightModel#getTimeMs()}
+     */
+    public TelemetryStore getTelemetry() {
+        return mTelemetry;
+    }
+
+    /**
+     * Can be read from any thread
+     * @return the latency from the commands to their report by the model, on System.nanoTime():
+     *          the model reports at its next step
+     */
+    public AckTracker getAcks() {
+        return mAcks;
+    }
+
+    /**
+     * @return the simulated drone, to inspect it or advance it on a virtual clock
+     */
+    public FlightModel getFlightModel() {
+        return mFlightModel;
+    }
+
+    //region DroneController
+    @Override
+    public void takeOff() {
+        mAcks.onSent(Commands.TAKE_OFF, System.nanoTime());
+        mFlightModel.takeOff();
+    }
+
+    @Override
+    public void land() {
+        mAcks.onSent(Commands.LAND, System.nanoTime());
+        mFlightModel.land();
+    }
+
+    @Override
+    public void emergency() {
+        mAcks.onSent(Commands.EMERGENCY, System.nanoTime());
+        mFlightModel.emergency();
+    }
+
+    @Override
+    public void takePicture() {
+        mAcks.onSent(Commands.PICTURE, System.nanoTime());
+        mFlightModel.takePicture();
+    }
+
+    @Override
+    public void flip() {
+        mFlightModel.flip();
+    }
+
+    @Override
+    public void setPitch(byte pitch) {
+        mFlightModel.setPitch(pitch);
+    }
+
+    @Override
+    public void setRoll(byte roll) {
+        mFlightModel.setRoll(roll);
+    }
+
+    @Override
+    public void setYaw(byte yaw) {
+        mFlightModel.setYaw(yaw);
+    }
+
+    @Override
+    public void setGaz(byte gaz) {
+        mFlightModel.setGaz(gaz);
+    }
+
+    @Override
+    public void setFlag(byte flag) {
+        mFlightModel.setFlag(flag);
+    }
+    //endregion DroneController
+
+    private void setConnectionState(ARCONTROLLER_DEVICE_STATE_ENUM state) {
+        mState = state;
+        mListeners.publish(MiniDrone.CONNECTION_CHANGED, 0, state);
+    }
+
+    private final Runnable mStepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.uptimeMillis();
+            mFlightModel.advance(now - mLastStepAt);
+            mLastStepAt = now;
+            mHandler.postAtTime(this, now + STEP_MS);
+        }
+    };
+
+    private final FlightModel.Listener mFlightModelListener = new FlightModel.Listener() {
+        @Override
+        public void onFlyingStateChanged(int state) {
+            mAcks.onFlyingState(state, System.nanoTime());
+            mFlyingState = FLYING_STATES[state];
+            mListeners.publish(MiniDrone.PILOTING_STATE_CHANGED, 0, mFlyingState);
+        }
+
+        @Override
+        public void onBatteryChargeChanged(int batteryPercentage) {
+            mListeners.publish(MiniDrone.BATTERY_CHANGED, batteryPercentage, null);
+        }
+
+        @Override
+        public void onPictureTaken() {
+            mAcks.onAcked(Commands.PICTURE, System.nanoTime());
+            mListeners.publish(MiniDrone.PICTURE_TAKEN, 0,
+                    ARCOMMANDS_MINIDRONE_MEDIARECORDEVENT_PICTUREEVENTCHANGED_ERROR_ENUM.ARCOMMANDS_MINIDRONE_MEDIARECORDEVENT_PICTUREEVENTCHANGED_ERROR_OK);
+        }
+    };
+}
@@ -0,0 +1,101 @@
+package com.jose_troche.alexadronepilot.aws_iot;
+
+import com.jose_troche.alexadronepilot.pilot.PackedCommand;
+
+/**
+ * The compact binary form of a drone message, next to the JSON one: the command comes
+ * already parsed, and the numbers take a few bytes instead of their decimal text.
+ * <pre>
+ * byte 0     {@link #MAGIC}, never the first byte of a JSON text
+ * byte 1     version (high nibble), then the flags of the optional fields (low nibble)
+ * byte 2     opcode
+ * byte 3     magnitude, percent
+ * bytes 4-5  duration, milliseconds, unsigned big endian
+ * then the optional fields present, in this order, as unsigned LEB128 varints:
+ *            id, sequence number, timestamp (ms since epoch), execution time minus timestamp
+ * </pre>
+ * A command with an id, a sequence number, a timestamp and an execution time, as the Lambda
+ * publishes it, is 23 bytes; its JSON is about 100.
+ * {@link CommandDecoder} tells the two apart by the first byte.
+ */
+public final class BinaryCommand {
+
+    public static final int MAGIC = 0xD7;
+    public static final int VERSION = 1;
+
+    static final int FLAG_ID = 1;
+    static final int FLAG_SEQUENCE = 2;
+    static final int FLAG_TIMESTAMP = 4;
+    // requires FLAG_TIMESTAMP, the execution time is relative to it
+    static final int FLAG_EXECUTE_AT = 8;
+
+    static final int HEADER_SIZE = 6;
+    // the longest varint of a long
+    private static final int MAX_VARINT_SIZE = 10;
+
+    private BinaryCommand() {}
+
+    /**
+     * @param command the command, packed as a {@link PackedCommand}; the route is not sent
+     * @param id the message id, {@link CommandDecoder#NO_VALUE} for none
+     * @param sequence the sequence number, {@link CommandDecoder#NO_VALUE} for none
+     * @param timestamp the publication time, {@link CommandDecoder#NO_VALUE} for none
+     * @param executeAt the execution time, not before the timestamp, {@link CommandDecoder#NO_VALUE}
+     *                  for as soon as possible
+     * @return the message
+     */
+    public static byte[] encode(long command, long id, long sequence, long timestamp, long executeAt) {
+        if ((executeAt != CommandDecoder.NO_VALUE)
+                && ((timestamp == CommandDecoder.NO_VALUE) || (executeAt < timestamp))) {
+            throw new IllegalArgumentException("The execution time needs an earlier timestamp");
+        }
+        int flags = 0;
+        if (id != CommandDecoder.NO_VALUE) {
+            flags |= FLAG_ID;
+        }
+        if (sequence != CommandDecoder.NO_VALUE) {
+            flags |= FLAG_SEQUENCE;
+        }
+        if (timestamp != CommandDecoder.NO_VALUE) {
+            flags |= FLAG_TIMESTAMP;
+        }
+        if (executeAt != CommandDecoder.NO_VALUE) {
+            flags |= FLAG_EXECUTE_AT;
+        }
+
+        byte[] buffer = new byte[HEADER_SIZE + 4 * MAX_VARINT_SIZE];
+        long durationMs = Math.min(PackedCommand.durationMs(command), 0xFFFF);
+        buffer[0] = (byte) MAGIC;
+        buffer[1] = (byte) ((VERSION << 4) | flags);
+        buffer[2] = (byte) PackedCommand.opcode(command);
+        buffer[3] = (byte) PackedCommand.magnitude(command);
+        buffer[4] = (byte) (durationMs >>> 8);
+        buffer[5] = (byte) durationMs;
+        int size = HEADER_SIZE;
+        if ((flags & FLAG_ID) != 0) {
+            size = writeVarint(buffer, size, id);
+        }
+        if ((flags & FLAG_SEQUENCE) != 0) {
+            size = writeVarint(buffer, size, sequence);
+        }
+        if ((flags & FLAG_TIMESTAMP) != 0) {
+            size = writeVarint(buffer, size, timestamp);
+        }
+        if ((flags & FLAG_EXECUTE_AT) != 0) {
+            size = writeVarint(buffer, size, executeAt - timestamp);
+        }
+
+        byte[] message = new byte[size];
+        System.arraycopy(buffer, 0, message, 0, size);
+        return message;
+    }
+
+    private static int writeVarint(byte[] buffer, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+}
@@ -0,0 +1,201 @@
+package com.jose_troche.alexadronepilot.aws_iot;
+
+import java.nio.charset.Charset;
+
+/**
+ * Estimates the offset between the local clock and the clock of the command publisher
+ * (the Lambda), NTP style, over MQTT.
+ * A ping <code>{ "id": 3, "client": "...", "t0": ... }</code> goes to {@link #PING_TOPIC};
+ * the publisher answers on {@link #PONG_TOPIC_PREFIX} + client id with the ping, plus
+ * its own reception (t1) and answer (t2) times. With t3 the reception time of the pong:
+ * <ul>
+ * <li>offset = ((t1 - t0) + (t2 - t3)) / 2</li>
+ * <li>round trip = (t3 - t0) - (t2 - t1)</li>
+ * </ul>
+ * The offset is wrong by at most half the round trip, so the sample with the shortest
+ * round trip of the last {@link #SAMPLES} is kept.
+ * Pings and pongs run on the MQTT client thread; the estimate can be read from any thread.
+ */
+public class ClockSync {
+
+    public static final String PING_TOPIC = "drone/time/ping";
+    public static final String PONG_TOPIC_PREFIX = "drone/time/pong/";
+
+    // pings sent back to back after each connection
+    private static final int SAMPLES = 8;
+    // a ping without a pong after this long is considered lost
+    private static final long PING_TIMEOUT_MS = 2000;
+
+    private static final byte[] ID_KEY = CommandDecoder.ascii("\"id\"");
+    private static final byte[] T0_KEY = CommandDecoder.ascii("\"t0\"");
+    private static final byte[] T1_KEY = CommandDecoder.ascii("\"t1\"");
+    private static final byte[] T2_KEY = CommandDecoder.ascii("\"t2\"");
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public interface Clock {
+        /**
+         * @return the wall clock time, in milliseconds since epoch
+         */
+        long currentTimeMillis();
+    }
+
+    public interface RoundTripListener {
+        /**
+         * Called for every pong
+         * Called on the MQTT client thread
+         * @param roundTripMs the round trip of the ping, the time of the publisher apart
+         */
+        void onRoundTrip(long roundTripMs);
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private final MqttTransport mTransport;
+    private final String mClientId;
+    private final Clock mClock;
+
+    // only used on the MQTT client thread
+    private final long[] mOffsets = new long[SAMPLES];
+    private final long[] mRoundTrips = new long[SAMPLES];
+    private int mSampleCount;
+    private long mPingId;
+    private long mPingSentAt;
+
+    private volatile RoundTripListener mRoundTripListener;
+
+    private volatile boolean mSynchronized;
+    private volatile long mOffset;
+    private volatile long mRoundTrip;
+
+    /**
+     * @param clientId the MQTT client id, unique per device, it names the pong topic
+     * @param clock the local clock
+     */
+    public ClockSync(MqttTransport transport, String clientId, Clock clock) {
+        mTransport = transport;
+        mClientId = clientId;
+        mClock = clock;
+    }
+
+    /**
+     * @param listener given the round trip of every ping, null for none
+     */
+    public void setRoundTripListener(RoundTripListener listener) {
+        mRoundTripListener = listener;
+    }
+
+    /**
+     * Subscribe to the pongs and start a new estimate
+     * Called on the MQTT client thread, once connected; the previous estimate is kept
+     * until the first pong
+     */
+    public void start() throws Exception {
+        mSampleCount = 0;
+        // a late pong is of no use
+        mTransport.subscribe(PONG_TOPIC_PREFIX + mClientId, MqttTransport.QOS_AT_MOST_ONCE, mPongCallback);
+        ping();
+    }
+
+    /**
+     * Ping again if the last ping got lost before the estimate was complete
+     * Called on the MQTT client thread
+     */
+    public void resume() {
+        if ((mSampleCount < SAMPLES) && (mClock.currentTimeMillis() - mPingSentAt > PING_TIMEOUT_MS)) {
+            ping();
+        }
+    }
+
+    /**
+     * @return true once at least one pong came back
+     */
+    public boolean isSynchronized() {
+        return mSynchronized;
+    }
+
+    /**
+     * @return the publisher clock minus the local clock, in milliseconds
+     */
+    public long getOffsetMillis() {
+        return mOffset;
+    }
+
+    /**
+     * @return the round trip of the sample the offset comes from, in milliseconds
+     */
+    public long getRoundTripMillis() {
+        return mRoundTrip;
+    }
+
+    /**
+     * @return the local clock, in milliseconds since epoch
+     */
+    public long currentTimeMillis() {
+        return mClock.currentTimeMillis();
+    }
+
+    /**
+     * @param publisherMillis a time on the clock of the publisher
+     * @return the same time on the local clock
+     */
+    public long toLocalMillis(long publisherMillis) {
+        return publisherMillis - mOffset;
+    }
+
+    private void ping() {
+        mPingId++;
+        mPingSentAt = mClock.currentTimeMillis();
+        String payload = "{ \"id\": " + mPingId + ", \"client\": \"" + mClientId + "\", \"t0\": " + mPingSentAt + " }";
+        try {
+            mTransport.publish(PING_TOPIC, payload.getBytes(UTF8));
+        } catch (Exception e) {
+            // the next command message pings again
+        }
+    }
+
+    private final MqttTransport.MessageCallback mPongCallback = new MqttTransport.MessageCallback() {
+        @Override
+        public void onMessageArrived(String topic, byte[] data) {
+            long t3 = mClock.currentTimeMillis();
+            long id = CommandDecoder.readNumber(data, ID_KEY);
+            long t0 = CommandDecoder.readNumber(data, T0_KEY);
+            long t1 = CommandDecoder.readNumber(data, T1_KEY);
+            long t2 = CommandDecoder.readNumber(data, T2_KEY);
+            if ((id != mPingId) || (t0 != mPingSentAt) || (t1 == CommandDecoder.NO_VALUE)
+                    || (t2 == CommandDecoder.NO_VALUE)) {
+                // a late pong, its ping has already been replaced
+                return;
+            }
+
+            int slot = mSampleCount % SAMPLES;
+            mOffsets[slot] = ((t1 - t0) + (t2 - t3)) / 2;
+            mRoundTrips[slot] = Math.max(0, (t3 - t0) - (t2 - t1));
+            mSampleCount++;
+            RoundTripListener listener = mRoundTripListener;
+            if (listener != null) {
+                listener.onRoundTrip(mRoundTrips[slot]);
+            }
+
+            int best = 0;
+            int count = Math.min(mSampleCount, SAMPLES);
+            for (int i = 1; i < count; i++) {
+                if (mRoundTrips[i] < mRoundTrips[best]) {
+                    best = i;
+                }
+            }
+            mOffset = mOffsets[best];
+            mRoundTrip = mRoundTrips[best];
+            mSynchronized = true;
+
+            if (mSampleCount < SAMPLES) {
+                ping();
+            }
+        }
+    };
+}
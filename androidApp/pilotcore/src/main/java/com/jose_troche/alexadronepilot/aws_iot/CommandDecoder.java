@@ -0,0 +1,263 @@
+package com.jose_troche.alexadronepilot.aws_iot;
+
+import com.jose_troche.alexadronepilot.pilot.CommandTable;
+import com.jose_troche.alexadronepilot.pilot.Commands;
+import com.jose_troche.alexadronepilot.pilot.PackedCommand;
+
+/**
+ * Decodes the command of an MQTT drone message straight from its raw bytes.
+ * The message looks like
+ * <code>{ "op": 3, "mag": 50, "dur": 1000, "id": 75431002, "seq": 12, "ts": 1462563000000,
+ * "at": 1462563000500 }</code>:
+ * the Lambda resolves the spoken command to its opcode ({@link Commands}), which is checked
+ * against the table of opcodes, and the optional magnitude and duration default as in a phrase.
+ * A message of an older Lambda, or of the MqttLoadGenerator, carries the phrase instead,
+ * <code>"command": "go up 30 percent"</code>, and its value is parsed in place by the {@link CommandTable}.
+ * Decoding a message does not allocate anything. The optional message id, sequence
+ * number, publication timestamp and execution time are kept until the next message is decoded.
+ * A message starting with {@link BinaryCommand#MAGIC} is in the {@link BinaryCommand} form
+ * instead, its fields are read as they are; JSON stays the form of every other message.
+ * Not thread safe: one decoder per MQTT client thread.
+ */
+public final class CommandDecoder {
+
+    private static final byte[] OPCODE_KEY = ascii("\"op\"");
+    private static final byte[] MAGNITUDE_KEY = ascii("\"mag\"");
+    private static final byte[] DURATION_KEY = ascii("\"dur\"");
+    private static final byte[] COMMAND_KEY = ascii("\"command\"");
+    private static final byte[] MESSAGE_ID_KEY = ascii("\"id\"");
+    private static final byte[] SEQUENCE_KEY = ascii("\"seq\"");
+    private static final byte[] TIMESTAMP_KEY = ascii("\"ts\"");
+    private static final byte[] EXECUTE_AT_KEY = ascii("\"at\"");
+
+    public static final long NO_VALUE = -1;
+    // a number with more digits than a long always holds, the message is rejected
+    private static final long TOO_LONG = -2;
+    private static final int MAX_DIGITS = 18;
+
+    private final CommandTable mCommandTable;
+
+    private long mMessageId = NO_VALUE;
+    private long mSequence = NO_VALUE;
+    private long mTimestamp = NO_VALUE;
+    private long mExecuteAt = NO_VALUE;
+    // read position in a binary message, -1 once past its end
+    private int mOffset;
+
+    public CommandDecoder(CommandTable commandTable) {
+        mCommandTable = commandTable;
+    }
+
+    /**
+     * Decode the command of a message
+     * @param data the raw (UTF-8) message
+     * @return the {@link PackedCommand}, {@link PackedCommand#NONE} if there is no valid command
+     */
+    public long decode(byte[] data) {
+        mMessageId = NO_VALUE;
+        mSequence = NO_VALUE;
+        mTimestamp = NO_VALUE;
+        mExecuteAt = NO_VALUE;
+        if (data == null) {
+            return PackedCommand.NONE;
+        }
+        if ((data.length > 0) && ((data[0] & 0xFF) == BinaryCommand.MAGIC)) {
+            return decodeBinary(data);
+        }
+        mMessageId = readNumber(data, MESSAGE_ID_KEY);
+        mSequence = readNumber(data, SEQUENCE_KEY);
+        mTimestamp = readNumber(data, TIMESTAMP_KEY);
+        mExecuteAt = readNumber(data, EXECUTE_AT_KEY);
+        if ((mMessageId == TOO_LONG) || (mSequence == TOO_LONG) || (mTimestamp == TOO_LONG)
+                || (mExecuteAt == TOO_LONG)) {
+            mMessageId = NO_VALUE;
+            mSequence = NO_VALUE;
+            mTimestamp = NO_VALUE;
+            mExecuteAt = NO_VALUE;
+            return PackedCommand.NONE;
+        }
+
+        long opcode = readNumber(data, OPCODE_KEY);
+        if (opcode != NO_VALUE) {
+            long magnitude = readNumber(data, MAGNITUDE_KEY);
+            long durationMs = readNumber(data, DURATION_KEY);
+            return toCommand(opcode, (magnitude == NO_VALUE) ? PackedCommand.DEFAULT_MAGNITUDE : magnitude,
+                    (durationMs == NO_VALUE) ? PackedCommand.DEFAULT_DURATION_MS : durationMs);
+        }
+
+        int keyEnd = indexAfter(data, 0, data.length, COMMAND_KEY);
+        if (keyEnd < 0) {
+            return PackedCommand.NONE;
+        }
+
+        // skip the separator up to the opening quote of the value
+        int i = skipBlanks(data, keyEnd, data.length);
+        if ((i >= data.length) || (data[i] != ':')) {
+            return PackedCommand.NONE;
+        }
+        i = skipBlanks(data, i + 1, data.length);
+        if ((i >= data.length) || (data[i] != '"')) {
+            return PackedCommand.NONE;
+        }
+        int valueStart = i + 1;
+
+        // find the closing quote, escaped values are never valid commands
+        int valueEnd = valueStart;
+        while ((valueEnd < data.length) && (data[valueEnd] != '"')) {
+            if (data[valueEnd] == '\\') {
+                return PackedCommand.NONE;
+            }
+            valueEnd++;
+        }
+        if (valueEnd >= data.length) {
+            return PackedCommand.NONE;
+        }
+
+        return mCommandTable.parse(data, valueStart, valueEnd);
+    }
+
+    private long decodeBinary(byte[] data) {
+        if ((data.length < BinaryCommand.HEADER_SIZE) || ((data[1] & 0xFF) >>> 4 != BinaryCommand.VERSION)) {
+            return PackedCommand.NONE;
+        }
+        int flags = data[1] & 0x0F;
+        int opcode = data[2] & 0xFF;
+        int magnitude = data[3] & 0xFF;
+        long durationMs = ((data[4] & 0xFF) << 8) | (data[5] & 0xFF);
+
+        mOffset = BinaryCommand.HEADER_SIZE;
+        long id = ((flags & BinaryCommand.FLAG_ID) != 0) ? readVarint(data) : NO_VALUE;
+        long sequence = ((flags & BinaryCommand.FLAG_SEQUENCE) != 0) ? readVarint(data) : NO_VALUE;
+        long timestamp = ((flags & BinaryCommand.FLAG_TIMESTAMP) != 0) ? readVarint(data) : NO_VALUE;
+        long delay = ((flags & BinaryCommand.FLAG_EXECUTE_AT) != 0) ? readVarint(data) : NO_VALUE;
+        if (mOffset < 0) {
+            // truncated
+            return PackedCommand.NONE;
+        }
+        mMessageId = id;
+        mSequence = sequence;
+        mTimestamp = timestamp;
+        if ((delay != NO_VALUE) && (timestamp != NO_VALUE) && (delay <= Long.MAX_VALUE - timestamp)) {
+            mExecuteAt = timestamp + delay;
+        }
+
+        return toCommand(opcode, magnitude, durationMs);
+    }
+
+    // an opcode resolved by the publisher, only checked: no phrase to match.
+    // An emergency only ever comes from the button of the app, never from a message
+    private static long toCommand(long opcode, long magnitude, long durationMs) {
+        if ((opcode <= Commands.UNKNOWN) || (opcode >= Commands.COUNT) || (opcode == Commands.EMERGENCY)
+                || (magnitude < 0) || (magnitude > PackedCommand.MAX_MAGNITUDE)
+                || (durationMs < 0) || (durationMs > PackedCommand.MAX_DURATION_MS)) {
+            return PackedCommand.NONE;
+        }
+        return PackedCommand.pack((int) opcode, (int) magnitude, durationMs);
+    }
+
+    // an unsigned LEB128 varint at mOffset, NO_VALUE and mOffset -1 when truncated or too long
+    private long readVarint(byte[] data) {
+        long value = 0;
+        for (int shift = 0; (mOffset >= 0) && (mOffset < data.length) && (shift < 63); shift += 7) {
+            byte b = data[mOffset++];
+            value |= (b & 0x7FL) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        mOffset = -1;
+        return NO_VALUE;
+    }
+
+    /**
+     * @return the id of the last decoded message, the same for every delivery of the message,
+     *          {@link #NO_VALUE} if it had none
+     */
+    public long getMessageId() {
+        return mMessageId;
+    }
+
+    /**
+     * @return the sequence number of the last decoded message, {@link #NO_VALUE} if it had none
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @return the publication time (milliseconds since epoch) of the last decoded message,
+     *          {@link #NO_VALUE} if it had none
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return when the fleet should execute the last decoded command, in milliseconds since
+     *          epoch on the clock of the publisher, {@link #NO_VALUE} if as soon as possible
+     */
+    public long getExecuteAt() {
+        return mExecuteAt;
+    }
+
+    /**
+     * @return the non negative integer value of a field, {@link #NO_VALUE} if there is none,
+     *          {@link #TOO_LONG} past {@link #MAX_DIGITS} digits, where a long could overflow
+     */
+    static long readNumber(byte[] data, byte[] key) {
+        int keyEnd = indexAfter(data, 0, data.length, key);
+        if (keyEnd < 0) {
+            return NO_VALUE;
+        }
+        int i = skipBlanks(data, keyEnd, data.length);
+        if ((i >= data.length) || (data[i] != ':')) {
+            return NO_VALUE;
+        }
+        i = skipBlanks(data, i + 1, data.length);
+
+        long value = NO_VALUE;
+        int digits = 0;
+        while ((i < data.length) && (data[i] >= '0') && (data[i] <= '9')) {
+            if (++digits > MAX_DIGITS) {
+                return TOO_LONG;
+            }
+            value = ((value == NO_VALUE) ? 0 : value * 10) + (data[i] - '0');
+            i++;
+        }
+        return value;
+    }
+
+    private static int indexAfter(byte[] data, int start, int end, byte[] pattern) {
+        int last = end - pattern.length;
+        for (int i = start; i <= last; i++) {
+            int k = 0;
+            while ((k < pattern.length) && (data[i + k] == pattern[k])) {
+                k++;
+            }
+            if (k == pattern.length) {
+                return i + k;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipBlanks(byte[] data, int start, int end) {
+        int i = start;
+        while ((i < end) && isBlank(data[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isBlank(byte b) {
+        return (b == ' ') || (b == '\t') || (b == '\n') || (b == '\r');
+    }
+
+    static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+}
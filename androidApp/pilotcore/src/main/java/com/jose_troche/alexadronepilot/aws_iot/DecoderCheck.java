@@ -0,0 +1,200 @@
+package com.jose_troche.alexadronepilot.aws_iot;
+
+import com.jose_troche.alexadronepilot.pilot.Commands;
+import com.jose_troche.alexadronepilot.pilot.PackedCommand;
+import com.jose_troche.alexadronepilot.pilot.PilotRunner;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+
+/**
+ * Command line check of the {@link CommandDecoder}: the command and fields it decodes from
+ * well formed messages in each form (JSON with the phrase, JSON with the opcode, binary),
+ * the messages it rejects, and the bytes it allocates per message once warmed up, which
+ * must be none. The allocations are counted by the JVM for the current thread, where the
+ * JVM has the com.sun.management extension; elsewhere that part is skipped.
+ * Fails when a message does not decode as expected or when decoding allocates.
+ *
+ * Usage: <code>java DecoderCheck [iterations]</code>
+ */
+public class DecoderCheck {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final long ID = 1462563000L * 0x100000L;
+    private static final long TIMESTAMP = 1462563000000L;
+
+    private static int sFailed;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        CommandDecoder decoder = new CommandDecoder(PilotRunner.loadCommandTable());
+
+        // the command, then the fields
+        expect(decoder, "{ \"command\": \"take off\", \"id\": " + ID + ", \"seq\": 12, \"ts\": " + TIMESTAMP
+                + ", \"at\": " + (TIMESTAMP + 500) + " }", Commands.TAKE_OFF, 50, 1000);
+        expectFields(decoder, "phrase fields", ID, 12, TIMESTAMP, TIMESTAMP + 500);
+        expect(decoder, "{\"command\":\"go up 30 percent for 2 seconds\"}", Commands.UP, 30, 2000);
+        expectFields(decoder, "no fields", CommandDecoder.NO_VALUE, CommandDecoder.NO_VALUE,
+                CommandDecoder.NO_VALUE, CommandDecoder.NO_VALUE);
+        expect(decoder, "{ \"command\": \"spin right for 500 milliseconds\" }", Commands.SPIN_RIGHT, 50, 500);
+        expect(decoder, "{ \"op\": 5, \"mag\": 80, \"dur\": 1500, \"seq\": 3 }", Commands.FORWARD, 80, 1500);
+        expect(decoder, "{ \"op\": 2 }", Commands.LAND, 50, 1000);
+        expect(decoder, BinaryCommand.encode(PackedCommand.pack(Commands.LEFT, 20, 3000), ID, 7, TIMESTAMP,
+                TIMESTAMP + 250), Commands.LEFT, 20, 3000);
+        expectFields(decoder, "binary fields", ID, 7, TIMESTAMP, TIMESTAMP + 250);
+        expect(decoder, BinaryCommand.encode(PackedCommand.of(Commands.FLIP), CommandDecoder.NO_VALUE,
+                CommandDecoder.NO_VALUE, CommandDecoder.NO_VALUE, CommandDecoder.NO_VALUE), Commands.FLIP, 50, 1000);
+
+        // rejected
+        expectNone(decoder, "null", null);
+        expectNone(decoder, "empty", new byte[0]);
+        expectNone(decoder, "no command", bytes("{ \"seq\": 1 }"));
+        expectNone(decoder, "unknown phrase", bytes("{ \"command\": \"barrel roll\" }"));
+        expectNone(decoder, "escaped phrase", bytes("{ \"command\": \"take\\u0020off\" }"));
+        expectNone(decoder, "unterminated phrase", bytes("{ \"command\": \"take off"));
+        expectNone(decoder, "unknown opcode", bytes("{ \"op\": 0 }"));
+        expectNone(decoder, "emergency opcode", bytes("{ \"op\": " + Commands.EMERGENCY + " }"));
+        expectNone(decoder, "emergency phrase", bytes("{ \"command\": \"emergency\" }"));
+        expectNone(decoder, "opcode out of range", bytes("{ \"op\": " + Commands.COUNT + " }"));
+        expectNone(decoder, "magnitude out of range", bytes("{ \"op\": 3, \"mag\": 101 }"));
+        expectNone(decoder, "duration out of range", bytes("{ \"op\": 3, \"dur\": 10001 }"));
+        // a long would overflow to a negative value, within the ranges
+        expectNone(decoder, "magnitude overflow", bytes("{ \"op\": 3, \"mag\": 9223372036854775808 }"));
+        expectNone(decoder, "duration overflow", bytes("{ \"op\": 3, \"dur\": 18446744073709551616000 }"));
+        expectNone(decoder, "opcode overflow", bytes("{ \"op\": 18446744073709551619 }"));
+        expectNone(decoder, "sequence overflow", bytes("{ \"op\": 3, \"seq\": 99999999999999999999 }"));
+        expect(decoder, "{ \"op\": 3, \"mag\": 000000000000000030 }", Commands.UP, 30, 1000);
+        // spoken parameters out of range reject the command as the op fields do, never capped
+        expect(decoder, "{ \"command\": \"up 100 percent for 10 seconds\" }", Commands.UP, 100, 10000);
+        expectNone(decoder, "spoken magnitude out of range", bytes("{ \"command\": \"up 150 percent\" }"));
+        expectNone(decoder, "spoken sign magnitude out of range", bytes("{ \"command\": \"up 101% \" }"));
+        expectNone(decoder, "spoken seconds out of range", bytes("{ \"command\": \"up for 20 seconds\" }"));
+        expectNone(decoder, "spoken milliseconds out of range",
+                bytes("{ \"command\": \"up for 10001 milliseconds\" }"));
+        expectNone(decoder, "spoken number overflow",
+                bytes("{ \"command\": \"up for 99999999999999999999 ms\" }"));
+        expectNone(decoder, "spoken words out of range",
+                bytes("{ \"command\": \"up for hundred hundred hundred hundred hundred ms\" }"));
+        byte[] binary = BinaryCommand.encode(PackedCommand.of(Commands.UP), ID, 7, TIMESTAMP, TIMESTAMP + 250);
+        byte[] truncated = new byte[binary.length - 1];
+        System.arraycopy(binary, 0, truncated, 0, truncated.length);
+        expectNone(decoder, "truncated binary", truncated);
+        byte[] version = binary.clone();
+        version[1] = (byte) ((BinaryCommand.VERSION + 1) << 4);
+        expectNone(decoder, "binary of another version", version);
+
+        checkAllocations(decoder, iterations);
+
+        System.out.println(sFailed == 0 ? "All messages decoded as expected" : sFailed + " checks failed");
+        if (sFailed > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void checkAllocations(CommandDecoder decoder, int iterations) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("Allocations not counted by this JVM, skipped");
+            return;
+        }
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+        if (!counter.isThreadAllocatedMemorySupported()) {
+            System.out.println("Allocations not counted by this JVM, skipped");
+            return;
+        }
+        counter.setThreadAllocatedMemoryEnabled(true);
+
+        byte[][] forms = {
+                bytes("{ \"command\": \"go up 30 percent for 2 seconds\", \"id\": " + ID + ", \"seq\": 12, \"ts\": "
+                        + TIMESTAMP + ", \"at\": " + (TIMESTAMP + 500) + " }"),
+                bytes("{ \"op\": 3, \"mag\": 30, \"dur\": 2000, \"id\": " + ID + ", \"seq\": 12, \"ts\": "
+                        + TIMESTAMP + ", \"at\": " + (TIMESTAMP + 500) + " }"),
+                BinaryCommand.encode(PackedCommand.pack(Commands.UP, 30, 2000), ID, 12, TIMESTAMP, TIMESTAMP + 500),
+        };
+        String[] names = {"json", "op", "binary"};
+
+        // warm up every form before measuring any, so that the decoder runs compiled
+        for (int i = 0; i < 3; i++) {
+            for (byte[] form : forms) {
+                allocated(counter, decoder, form, iterations);
+            }
+        }
+        // the cost of reading the counter itself
+        long overhead = allocated(counter, decoder, forms[0], 0);
+
+        System.out.println(String.format("%-8s %14s", "form", "bytes/message"));
+        for (int f = 0; f < forms.length; f++) {
+            long bytes = Math.max(0, allocated(counter, decoder, forms[f], iterations) - overhead);
+            double perMessage = (double) bytes / iterations;
+            System.out.println(String.format("%-8s %14.3f", names[f], perMessage));
+            // a stray byte or two is the counter, a message that allocates costs at least an object
+            if (perMessage >= 1) {
+                fail(names[f] + " decode allocates " + bytes + " bytes in " + iterations + " messages");
+            }
+        }
+    }
+
+    // bytes allocated by the current thread to decode a message the given number of times
+    private static long allocated(com.sun.management.ThreadMXBean counter, CommandDecoder decoder,
+                                  byte[] message, int iterations) {
+        long thread = Thread.currentThread().getId();
+        long before = counter.getThreadAllocatedBytes(thread);
+        long sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            sink += decoder.decode(message);
+        }
+        long after = counter.getThreadAllocatedBytes(thread);
+        if (sink == 42) {
+            System.out.println(); // keeps the decode from being optimized away
+        }
+        return after - before;
+    }
+
+    private static void expect(CommandDecoder decoder, String message, int opcode, int magnitude,
+                               long durationMs) {
+        expect(decoder, message, bytes(message), opcode, magnitude, durationMs);
+    }
+
+    private static void expect(CommandDecoder decoder, byte[] message, int opcode, int magnitude,
+                               long durationMs) {
+        expect(decoder, "binary " + Commands.name(opcode), message, opcode, magnitude, durationMs);
+    }
+
+    private static void expect(CommandDecoder decoder, String name, byte[] message, int opcode, int magnitude,
+                               long durationMs) {
+        long command = decoder.decode(message);
+        if ((PackedCommand.opcode(command) != opcode) || (PackedCommand.magnitude(command) != magnitude)
+                || (PackedCommand.durationMs(command) != durationMs)) {
+            fail(name + ": decoded " + Commands.name(PackedCommand.opcode(command)) + " "
+                    + PackedCommand.magnitude(command) + "% " + PackedCommand.durationMs(command) + " ms, expected "
+                    + Commands.name(opcode) + " " + magnitude + "% " + durationMs + " ms");
+        }
+    }
+
+    private static void expectFields(CommandDecoder decoder, String name, long id, long sequence, long timestamp,
+                                     long executeAt) {
+        if ((decoder.getMessageId() != id) || (decoder.getSequence() != sequence)
+                || (decoder.getTimestamp() != timestamp) || (decoder.getExecuteAt() != executeAt)) {
+            fail(name + ": decoded id " + decoder.getMessageId() + ", seq " + decoder.getSequence() + ", ts "
+                    + decoder.getTimestamp() + ", at " + decoder.getExecuteAt());
+        }
+    }
+
+    private static void expectNone(CommandDecoder decoder, String name, byte[] message) {
+        long command = decoder.decode(message);
+        if (command != PackedCommand.NONE) {
+            fail(name + ": decoded " + Commands.name(PackedCommand.opcode(command)) + ", expected nothing");
+        }
+    }
+
+    private static void fail(String error) {
+        sFailed++;
+        System.out.println("Failed: " + error);
+    }
+
+    private static byte[] bytes(String message) {
+        return message.getBytes(UTF8);
+    }
+}
@@ -0,0 +1,111 @@
+package com.jose_troche.alexadronepilot.aws_iot;
+
+/**
+ * The ids of the last {@link #CAPACITY} messages, to tell a redelivered message from a new
+ * one: with QoS 1 the broker delivers a message again when it missed the acknowledgment,
+ * and a command must not be executed twice.
+ * The ids sit in a ring, oldest first, and in an open addressing table for the lookups;
+ * the oldest id leaves the table when a new one takes its place in the ring, so adding
+ * and looking up an id never allocates.
+ * Not thread safe: one ring per MQTT client thread.
+ */
+public final class DedupRing {
+
+    public static final int CAPACITY = 256;
+
+    // a power of two, twice CAPACITY so that the probes stay short
+    private static final int TABLE_SIZE = 512;
+    private static final long EMPTY = -1;
+
+    private final long[] mRing = new long[CAPACITY];
+    private final long[] mTable = new long[TABLE_SIZE];
+    private int mNext;
+    private int mSize;
+
+    public DedupRing() {
+        clear();
+    }
+
+    /**
+     * Remember an id, forgetting the oldest one when full
+     * @param id a message id, not negative
+     * @return false if the id is already known, the message is a duplicate
+     */
+    public boolean add(long id) {
+        int slot = slotOf(id);
+        while (mTable[slot] != EMPTY) {
+            if (mTable[slot] == id) {
+                return false;
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        if (mSize == CAPACITY) {
+            remove(mRing[mNext]);
+            // the removal may have moved an entry into the free slot, find it again
+            slot = slotOf(id);
+            while (mTable[slot] != EMPTY) {
+                slot = (slot + 1) & (TABLE_SIZE - 1);
+            }
+        } else {
+            mSize++;
+        }
+        mTable[slot] = id;
+        mRing[mNext] = id;
+        mNext = (mNext + 1) % CAPACITY;
+        return true;
+    }
+
+    public boolean contains(long id) {
+        int slot = slotOf(id);
+        while (mTable[slot] != EMPTY) {
+            if (mTable[slot] == id) {
+                return true;
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        return false;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            mTable[i] = EMPTY;
+        }
+        mNext = 0;
+        mSize = 0;
+    }
+
+    // linear probing without tombstones: the entries after the removed one move back
+    // when their own slot is at or before the hole
+    private void remove(long id) {
+        int hole = slotOf(id);
+        while (mTable[hole] != id) {
+            hole = (hole + 1) & (TABLE_SIZE - 1);
+        }
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+            long entry = mTable[slot];
+            if (entry == EMPTY) {
+                break;
+            }
+            int home = slotOf(entry);
+            // move the entry unless its home lies cyclically in (hole, slot]
+            boolean stays = (hole <= slot) ? ((hole < home) && (home <= slot))
+                    : ((hole < home) || (home <= slot));
+            if (!stays) {
+                mTable[hole] = entry;
+                hole = slot;
+            }
+        }
+        mTable[hole] = EMPTY;
+    }
+
+    private static int slotOf(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 55) & (TABLE_SIZE - 1);
+    }
+}
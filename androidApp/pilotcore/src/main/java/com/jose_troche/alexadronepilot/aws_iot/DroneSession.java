@@ -0,0 +1,410 @@
+package com.jose_troche.alexadronepilot.aws_iot;
+
+import com.jose_troche.alexadronepilot.pilot.LatencyHistogram;
+import com.jose_troche.alexadronepilot.pilot.LatencyRecorder;
+import com.jose_troche.alexadronepilot.pilot.PackedCommand;
+
+import java.security.KeyStore;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MQTT side of the drones of a device: connects through a {@link MqttTransport},
+ * subscribes to the drone topic once connected and decodes the commands that arrive on it.
+ * With {@link ThingRoutes}, a single wildcard subscription serves every thing of the table
+ * instead, and each command is given the route of its thing.
+ * With a {@link ClockSync}, the commands that carry an execution time are given back
+ * with that time converted to the local clock, so that a fleet of devices executes
+ * them together.
+ * Every outage, from the loss of the connection to its return, is recorded as a blackout;
+ * with a {@link ReconnectPolicy} the session reconnects by itself, at the pace of the policy.
+ * With a {@link KeepAliveController}, each connection gets the keepalive the link calls for.
+ * At QoS 1 a message can come twice: the ids of the last messages are kept in a
+ * {@link DedupRing}, and a command is never given twice.
+ * Free of Android and of AWS, so that the connection flow and the message path run
+ * the same against a {@link LocalMqttBroker}.
+ */
+public class DroneSession {
+
+    /** The IoT thing every drone answers to */
+    public static final String DRONE_THING = "Drone";
+    /** The IoT Drone Topic */
+    public static final String DRONE_TOPIC = ThingRoutes.topic(DRONE_THING);
+
+    // a message this far behind the last sequence number comes from a restarted publisher
+    private static final long REORDER_WINDOW = 64;
+    // an execution time further away than this comes from a wrong clock estimate: not waited for
+    private static final long MAX_EXECUTE_DELAY_MS = 5000;
+
+    public interface Listener {
+        /**
+         * Called when the connection status changes
+         * Called on the MQTT client thread
+         * @param status one of the {@link MqttTransport} STATUS_ constants
+         * @param throwable the cause of a reconnection or a lost connection, may be null
+         */
+        void onConnectionStatusChanged(int status, Throwable throwable);
+
+        /**
+         * Called when the connection or the subscription failed
+         * @param message what failed
+         * @param throwable the error
+         */
+        void onError(String message, Throwable throwable);
+
+        /**
+         * Called when an established connection is lost, the commands stop coming until it is back
+         * Called on the MQTT client thread
+         */
+        void onConnectionLost();
+
+        /**
+         * Called when the connection is back, the drone topic is subscribed to again
+         * Called on the MQTT client thread
+         * @param blackoutMs how long the connection was lost
+         */
+        void onConnectionRestored(long blackoutMs);
+
+        /**
+         * Called when a known command arrives
+         * Called on the MQTT client thread, implementations should hand the
+         * command off quickly
+         * @param command the command, packed as a {@link PackedCommand} with the route of its thing
+         * @param receivedAt when the message arrived, from {@link System#nanoTime()}
+         * @param executeAt when the command should be executed, from {@link System#nanoTime()};
+         *                  receivedAt when as soon as possible
+         */
+        void onCommandReceived(long command, long receivedAt, long executeAt);
+    }
+
+    private final MqttTransport mTransport;
+    private CommandDecoder mCommandDecoder;
+    private final LatencyRecorder mLatencyRecorder;
+    private final ClockSync mClockSync;
+    private final ThingRoutes mRoutes;
+    private final Listener mListener;
+
+    // only written by the MQTT client thread
+    private long mLastSequence = CommandDecoder.NO_VALUE;
+    private volatile long mSequenceGapCount;
+    private volatile long mReceivedCount;
+    private volatile long mUnknownCount;
+    private volatile long mUnroutedCount;
+    private volatile long mDuplicateCount;
+    private final DedupRing mDedupRing = new DedupRing();
+    private volatile int mConnectedCount;
+
+    // outages, only written by the MQTT client thread
+    private long mLostAt; // from System.nanoTime(), 0 while connected
+    private final LatencyHistogram mBlackouts = new LatencyHistogram();
+    private volatile long mMaxBlackoutMs;
+
+    private volatile KeyStore mKeyStore;
+    private volatile boolean mClosed; // written under mConnectionLock
+    private final Object mConnectionLock = new Object();
+    private ReconnectPolicy mReconnectPolicy;
+    private ScheduledExecutorService mReconnectExecutor;
+    private KeepAliveController mKeepAliveController;
+    private int mQos = MqttTransport.QOS_AT_MOST_ONCE;
+
+    /**
+     * @param commandDecoder null to set it with {@link #setCommandDecoder} before connecting
+     * @param clockSync estimates the clock of the publisher, over the same transport;
+     *                  null to execute every command as soon as it arrives
+     * @param routes the things to subscribe to, complete; null for {@link #DRONE_TOPIC} only, on route 0
+     */
+    public DroneSession(MqttTransport transport, CommandDecoder commandDecoder,
+                        LatencyRecorder latencyRecorder, ClockSync clockSync, ThingRoutes routes,
+                        Listener listener) {
+        mTransport = transport;
+        mCommandDecoder = commandDecoder;
+        mLatencyRecorder = latencyRecorder;
+        mClockSync = clockSync;
+        mRoutes = routes;
+        mListener = listener;
+    }
+
+    /**
+     * Connect, the drone topic is subscribed to as soon as the connection is up
+     * Errors are reported through {@link Listener#onError}
+     * @param keyStore the client certificate and key
+     */
+    public void connectAndSubscribe(KeyStore keyStore) {
+        mKeyStore = keyStore;
+        try {
+            applyKeepAlive();
+            mTransport.connect(keyStore, mStatusCallback);
+        } catch (Exception e) {
+            mListener.onError("Connection error.", e);
+        }
+    }
+
+    /**
+     * Decode the messages with the given decoder, for a vocabulary too long to compile where
+     * the session is built
+     * Must be called before connecting
+     */
+    public void setCommandDecoder(CommandDecoder commandDecoder) {
+        mCommandDecoder = commandDecoder;
+    }
+
+    /**
+     * Reconnect with the given policy when the connection is lost, the transport must not
+     * reconnect by itself
+     * Must be called before connecting
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+        mReconnectExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MqttReconnect");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Tune the keepalive of each connection, fed with the round trips of the {@link ClockSync}
+     * and the lost connections
+     * Must be called before connecting
+     */
+    public void setKeepAliveController(KeepAliveController controller) {
+        mKeepAliveController = controller;
+        if (mClockSync != null) {
+            mClockSync.setRoundTripListener(controller);
+        }
+    }
+
+    /**
+     * Set the QoS of the subscription to the drone topic, {@link MqttTransport#QOS_AT_MOST_ONCE}
+     * by default; at {@link MqttTransport#QOS_AT_LEAST_ONCE} the messages without an id may be
+     * given twice
+     * Must be called before connecting
+     */
+    public void setQos(int qos) {
+        mQos = qos;
+    }
+
+    public void disconnect() {
+        synchronized (mConnectionLock) {
+            // a reconnect is either done, and torn down here, or never starts
+            mClosed = true;
+            if (mReconnectExecutor != null) {
+                mReconnectExecutor.shutdownNow();
+            }
+            mTransport.disconnect();
+        }
+    }
+
+    /**
+     * @return the number of messages received on the drone topic, known or not
+     */
+    public long getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    /**
+     * @return the number of messages without a known command
+     */
+    public long getUnknownCount() {
+        return mUnknownCount;
+    }
+
+    /**
+     * @return the number of messages for things without a route, not counted as received
+     */
+    public long getUnroutedCount() {
+        return mUnroutedCount;
+    }
+
+    /**
+     * @return the number of times the connection came back up after the first one
+     */
+    public int getReconnectCount() {
+        return Math.max(0, mConnectedCount - 1);
+    }
+
+    /**
+     * @return the durations of the outages the connection came back from
+     */
+    public LatencyHistogram getBlackoutHistogram() {
+        return mBlackouts;
+    }
+
+    public long getMaxBlackoutMillis() {
+        return mMaxBlackoutMs;
+    }
+
+    /**
+     * @return the number of messages delivered again and dropped, their command had been given already
+     */
+    public long getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    /**
+     * @return the number of messages missing from the sequence of the publisher
+     */
+    public long getSequenceGapCount() {
+        return mSequenceGapCount;
+    }
+
+    private void subscribe(String topic) {
+        try {
+            mTransport.subscribe(topic, mQos, mMessageCallback);
+        } catch (Exception e) {
+            mListener.onError("Subscription error.", e);
+        }
+    }
+
+    private final MqttTransport.StatusCallback mStatusCallback = new MqttTransport.StatusCallback() {
+        @Override
+        public void onStatusChanged(int status, Throwable throwable) {
+            if (status == MqttTransport.STATUS_CONNECTED) {
+                mConnectedCount++;
+                subscribe((mRoutes != null) ? ThingRoutes.TOPIC_FILTER : DRONE_TOPIC);
+                if (mClockSync != null) {
+                    try {
+                        mClockSync.start();
+                    } catch (Exception e) {
+                        mListener.onError("Clock synchronization error.", e);
+                    }
+                }
+                if (mReconnectPolicy != null) {
+                    mReconnectPolicy.reset();
+                }
+            }
+            mListener.onConnectionStatusChanged(status, throwable);
+
+            if (status == MqttTransport.STATUS_CONNECTED) {
+                if (mLostAt != 0) {
+                    long blackout = System.nanoTime() - mLostAt;
+                    mLostAt = 0;
+                    mBlackouts.recordNanos(blackout);
+                    mMaxBlackoutMs = Math.max(mMaxBlackoutMs, blackout / 1000000L);
+                    mListener.onConnectionRestored(blackout / 1000000L);
+                }
+            } else if ((status == MqttTransport.STATUS_RECONNECTING)
+                    || (status == MqttTransport.STATUS_CONNECTION_LOST)) {
+                if ((mLostAt == 0) && (mConnectedCount > 0)) {
+                    mLostAt = System.nanoTime();
+                    if (mKeepAliveController != null) {
+                        mKeepAliveController.onConnectionLost();
+                    }
+                    mListener.onConnectionLost();
+                }
+                if ((status == MqttTransport.STATUS_CONNECTION_LOST) && (mReconnectPolicy != null)) {
+                    scheduleReconnect();
+                }
+            }
+        }
+    };
+
+    private void applyKeepAlive() {
+        if (mKeepAliveController != null) {
+            mTransport.setKeepAlive(mKeepAliveController.nextKeepAliveSeconds());
+        }
+    }
+
+    // Called on the MQTT client thread, or the reconnect thread
+    private void scheduleReconnect() {
+        if (mClosed) {
+            return;
+        }
+        try {
+            mReconnectExecutor.schedule(mReconnect, mReconnectPolicy.nextDelayMillis(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            // disconnected meanwhile, the executor is shut down
+        }
+    }
+
+    private final Runnable mReconnect = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                synchronized (mConnectionLock) {
+                    if (mClosed) {
+                        return;
+                    }
+                    applyKeepAlive();
+                    mTransport.connect(mKeyStore, mStatusCallback);
+                }
+            } catch (Exception e) {
+                mListener.onError("Reconnection error.", e);
+                scheduleReconnect();
+            }
+        }
+    };
+
+    private final MqttTransport.MessageCallback mMessageCallback = new MqttTransport.MessageCallback() {
+        @Override
+        public void onMessageArrived(String topic, byte[] data) {
+            long receivedAt = System.nanoTime();
+            int route = 0;
+            if (mRoutes != null) {
+                route = mRoutes.route(topic);
+                if (route == ThingRoutes.NO_ROUTE) {
+                    mUnroutedCount++;
+                    return;
+                }
+            }
+            mReceivedCount++;
+            long command = mCommandDecoder.decode(data);
+            long messageId = mCommandDecoder.getMessageId();
+            if ((messageId != CommandDecoder.NO_VALUE) && !mDedupRing.add(messageId)) {
+                // before the sequence: a duplicate is no late message filling a gap
+                mDuplicateCount++;
+                return;
+            }
+            long sequence = mCommandDecoder.getSequence();
+            if (sequence != CommandDecoder.NO_VALUE) {
+                if ((mLastSequence == CommandDecoder.NO_VALUE) || (sequence > mLastSequence)) {
+                    if (mLastSequence != CommandDecoder.NO_VALUE) {
+                        mSequenceGapCount += sequence - mLastSequence - 1;
+                    }
+                    mLastSequence = sequence;
+                } else if (sequence < mLastSequence - REORDER_WINDOW) {
+                    // the publisher restarted its sequence
+                    mLastSequence = sequence;
+                } else if ((sequence < mLastSequence) && (mSequenceGapCount > 0)) {
+                    // a late message fills a gap counted earlier
+                    mSequenceGapCount--;
+                }
+            }
+
+            if (command == PackedCommand.NONE) {
+                mUnknownCount++;
+                return;
+            }
+            int opcode = PackedCommand.opcode(command);
+            mLatencyRecorder.record(LatencyRecorder.STAGE_DECODE, opcode, System.nanoTime() - receivedAt);
+
+            boolean synced = (mClockSync != null) && mClockSync.isSynchronized();
+            long timestamp = mCommandDecoder.getTimestamp();
+            if (timestamp != CommandDecoder.NO_VALUE) {
+                long now = synced ? mClockSync.currentTimeMillis() : System.currentTimeMillis();
+                long publishedAt = synced ? mClockSync.toLocalMillis(timestamp) : timestamp;
+                mLatencyRecorder.record(LatencyRecorder.STAGE_CLOUD, opcode, (now - publishedAt) * 1000000L);
+            }
+
+            long executeAt = receivedAt;
+            long at = mCommandDecoder.getExecuteAt();
+            if (synced && (at != CommandDecoder.NO_VALUE)) {
+                // late commands go as soon as possible, and so do the ones too far ahead
+                long delay = mClockSync.toLocalMillis(at) - mClockSync.currentTimeMillis();
+                if ((delay > 0) && (delay <= MAX_EXECUTE_DELAY_MS)) {
+                    executeAt += delay * 1000000L;
+                }
+            }
+            if (mClockSync != null) {
+                mClockSync.resume();
+            }
+
+            mListener.onCommandReceived(PackedCommand.withRoute(command, route), receivedAt, executeAt);
+        }
+    };
+}
@@ -0,0 +1,193 @@
+package com.jose_troche.alexadronepilot.aws_iot;
+
+import com.jose_troche.alexadronepilot.pilot.CommandTimer;
+import com.jose_troche.alexadronepilot.pilot.LatencyHistogram;
+import com.jose_troche.alexadronepilot.pilot.LatencyRecorder;
+import com.jose_troche.alexadronepilot.pilot.PilotRunner;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Command line measure of the execution skew of a fleet flown from several devices,
+ * without a network: each device has its own {@link DroneSession} on a
+ * {@link LocalMqttBroker}, a wrong clock and a different network latency. The commands
+ * carry an execution time, as the Lambda publishes them.
+ * The fleet runs twice, executing the commands as soon as they arrive, then at their
+ * execution time estimated by {@link ClockSync}, and the skew of each command between
+ * the first and the last device to execute it is reported for both.
+ *
+ * Usage: <code>java FleetSyncSimulator [devices] [commands]</code>
+ */
+public class FleetSyncSimulator {
+
+    // as in the Lambda: longer than the slowest delivery
+    private static final long EXECUTION_DELAY_MS = 500;
+    private static final long COMMAND_INTERVAL_MS = 50;
+    // the device clocks are wrong by up to this much, either way
+    private static final long MAX_CLOCK_ERROR_MS = 2000;
+    // the devices are this far from the broker, each way, plus up to LATENCY_JITTER_MS
+    private static final long MIN_LATENCY_MS = 10;
+    private static final long MAX_LATENCY_MS = 150;
+    private static final long LATENCY_JITTER_MS = 20;
+    private static final long SYNC_TIME_MS = 5000;
+
+    private static final String[] PHRASES = {"forward", "backward", "up", "down", "right", "left",
+            "spin right", "spin left"};
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int mDevices;
+    private final int mCommands;
+
+    private FleetSyncSimulator(int devices, int commands) {
+        mDevices = devices;
+        mCommands = commands;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int commands = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        FleetSyncSimulator simulator = new FleetSyncSimulator(devices, commands);
+        simulator.run(false);
+        simulator.run(true);
+    }
+
+    private void run(boolean synchronize) throws Exception {
+        Random random = new Random(42);
+        LocalMqttBroker broker = new LocalMqttBroker();
+        final long[][] executedAt = new long[mDevices][mCommands];
+        final int[] executedCount = new int[mDevices];
+
+        TimeResponder responder = null;
+        if (synchronize) {
+            LocalMqttBroker.Client lambda = broker.newClient("lambda");
+            lambda.setLatency(MIN_LATENCY_MS, MIN_LATENCY_MS + LATENCY_JITTER_MS);
+            responder = new TimeResponder(lambda, ClockSync.SYSTEM_CLOCK);
+            responder.start();
+        }
+
+        final CountDownLatch connected = new CountDownLatch(mDevices);
+        long[] clockErrors = new long[mDevices];
+        ClockSync[] clockSyncs = new ClockSync[mDevices];
+        DroneSession[] sessions = new DroneSession[mDevices];
+        CommandTimer[] timers = new CommandTimer[mDevices];
+        for (int d = 0; d < mDevices; d++) {
+            final int device = d;
+            final long clockError = (long) ((random.nextDouble() * 2 - 1) * MAX_CLOCK_ERROR_MS);
+            clockErrors[d] = clockError;
+            long latency = MIN_LATENCY_MS + (long) (random.nextDouble() * (MAX_LATENCY_MS - MIN_LATENCY_MS));
+
+            LocalMqttBroker.Client client = broker.newClient("device-" + d);
+            client.setLatency(latency, latency + LATENCY_JITTER_MS);
+            if (synchronize) {
+                clockSyncs[d] = new ClockSync(client, "device-" + d, new ClockSync.Clock() {
+                    @Override
+                    public long currentTimeMillis() {
+                        return System.currentTimeMillis() + clockError;
+                    }
+                });
+            }
+
+            final CommandTimer timer = new CommandTimer("timer-" + d, new CommandTimer.Target() {
+                @Override
+                public void submit(long command, long receivedAt) {
+                    executedAt[device][executedCount[device]++] = System.nanoTime();
+                }
+            });
+            timer.start();
+            timers[d] = timer;
+
+            sessions[d] = new DroneSession(client, new CommandDecoder(PilotRunner.loadCommandTable()),
+                    new LatencyRecorder(), clockSyncs[d], null, new DroneSession.Listener() {
+                @Override
+                public void onConnectionStatusChanged(int status, Throwable throwable) {
+                    if (status == MqttTransport.STATUS_CONNECTED) {
+                        connected.countDown();
+                    }
+                }
+
+                @Override
+                public void onError(String message, Throwable throwable) {
+                    System.out.println(message + " " + throwable);
+                }
+
+                @Override
+                public void onConnectionLost() {
+                    timer.cancel();
+                }
+
+                @Override
+                public void onConnectionRestored(long blackoutMs) {
+                    // no outage in this simulation
+                }
+
+                @Override
+                public void onCommandReceived(long command, long receivedAt, long executeAt) {
+                    timer.schedule(command, receivedAt, executeAt);
+                }
+            });
+            sessions[d].connectAndSubscribe(null);
+        }
+        connected.await();
+
+        if (synchronize) {
+            long giveUpAt = System.currentTimeMillis() + SYNC_TIME_MS;
+            for (ClockSync clockSync : clockSyncs) {
+                while (!clockSync.isSynchronized() && System.currentTimeMillis() < giveUpAt) {
+                    Thread.sleep(10);
+                }
+            }
+            // the remaining samples may find a shorter round trip
+            Thread.sleep(Math.max(0, giveUpAt - System.currentTimeMillis()));
+        }
+
+        for (int i = 0; i < mCommands; i++) {
+            long now = System.currentTimeMillis();
+            String payload = "{ \"command\": \"" + PHRASES[i % PHRASES.length] + "\", \"seq\": " + (i + 1)
+                    + ", \"ts\": " + now + ", \"at\": " + (now + EXECUTION_DELAY_MS) + " }";
+            broker.publish(DroneSession.DRONE_TOPIC, payload.getBytes(UTF8));
+            Thread.sleep(COMMAND_INTERVAL_MS);
+        }
+        Thread.sleep(EXECUTION_DELAY_MS + MAX_LATENCY_MS + LATENCY_JITTER_MS);
+
+        for (int d = 0; d < mDevices; d++) {
+            sessions[d].disconnect();
+            timers[d].quit();
+        }
+        if (responder != null) {
+            responder.disconnect();
+        }
+
+        LatencyHistogram skew = new LatencyHistogram();
+        for (int i = 0; i < mCommands; i++) {
+            long first = Long.MAX_VALUE;
+            long last = Long.MIN_VALUE;
+            for (int d = 0; d < mDevices; d++) {
+                if (executedCount[d] <= i) {
+                    first = Long.MAX_VALUE;
+                    break;
+                }
+                first = Math.min(first, executedAt[d][i]);
+                last = Math.max(last, executedAt[d][i]);
+            }
+            if (first != Long.MAX_VALUE) {
+                skew.recordNanos(last - first);
+            }
+        }
+
+        System.out.println(synchronize ? "Execution at the time set by the publisher:"
+                : "Execution on arrival:");
+        if (synchronize) {
+            for (int d = 0; d < mDevices; d++) {
+                System.out.println("  device-" + d + ": clock " + clockErrors[d] + " ms off, estimated "
+                        + (-clockSyncs[d].getOffsetMillis()) + " ms, round trip "
+                        + clockSyncs[d].getRoundTripMillis() + " ms");
+            }
+        }
+        System.out.println("  Skew over " + mDevices + " devices: n=" + skew.getCount() + "/" + mCommands
+                + " p50=" + skew.getValueAtPercentile(50) + "us p99=" + skew.getValueAtPercentile(99)
+                + "us max=" + skew.getValueAtPercentile(100) + "us");
+    }
+}
@@ -0,0 +1,137 @@
+package com.jose_troche.alexadronepilot.aws_iot;
+
+/**
+ * Chooses the MQTT keepalive of each connection from the quality of the link. The
+ * client pings after a keepalive without traffic and gives the link up when the answer
+ * takes another keepalive: a dead link is noticed after up to twice the keepalive, and
+ * an idle link wakes the radio up once per keepalive.
+ * Each lost connection halves the keepalive, so that a flaky link is given up on quickly.
+ * A link without loss for {@link #STABLE_KEEPALIVES} keepalives, and with a steady round
+ * trip, doubles it, to spare the radio. The keepalive never drops below what the round
+ * trip needs for a ping to be answered in time.
+ * The keepalive of a connection is fixed when it connects: {@link #nextKeepAliveSeconds()}
+ * is called before each connection.
+ * Thread safe: the round trips come on the MQTT client thread, the connections are made
+ * on the reconnect thread.
+ */
+public class KeepAliveController implements ClockSync.RoundTripListener {
+
+    public static final int DEFAULT_KEEPALIVE_S = 10;
+    public static final int MIN_KEEPALIVE_S = 5;
+    public static final int MAX_KEEPALIVE_S = 60;
+
+    // no loss for this many keepalives makes a stable link
+    private static final int STABLE_KEEPALIVES = 30;
+    // a ping is answered within this many smoothed timeouts
+    private static final int TIMEOUT_MARGIN = 4;
+
+    private final ClockSync.Clock mClock;
+
+    // guarded by the controller
+    private int mKeepAliveSeconds;
+    private long mStableSince; // the last change or loss, on the clock
+    private long mSmoothedRoundTrip = -1; // milliseconds, -1 until the first sample
+    private long mRoundTripVariation;
+    private int mIncreaseCount;
+    private int mDecreaseCount;
+    private int mLossCount;
+
+    public KeepAliveController() {
+        this(DEFAULT_KEEPALIVE_S, ClockSync.SYSTEM_CLOCK);
+    }
+
+    /**
+     * @param initialSeconds the keepalive of the first connection, the one of the last session
+     * @param clock measures how long the link stays up
+     */
+    public KeepAliveController(int initialSeconds, ClockSync.Clock clock) {
+        mKeepAliveSeconds = Math.max(MIN_KEEPALIVE_S, Math.min(MAX_KEEPALIVE_S, initialSeconds));
+        mClock = clock;
+        mStableSince = clock.currentTimeMillis();
+    }
+
+    /**
+     * Smooth the round trips as TCP does its retransmission timeout (RFC 6298)
+     * Called on the MQTT client thread
+     */
+    @Override
+    public synchronized void onRoundTrip(long roundTripMs) {
+        if (mSmoothedRoundTrip < 0) {
+            mSmoothedRoundTrip = roundTripMs;
+            mRoundTripVariation = roundTripMs / 2;
+        } else {
+            mRoundTripVariation = (3 * mRoundTripVariation + Math.abs(mSmoothedRoundTrip - roundTripMs)) / 4;
+            mSmoothedRoundTrip = (7 * mSmoothedRoundTrip + roundTripMs) / 8;
+        }
+    }
+
+    /**
+     * Called when an established connection is lost
+     */
+    public synchronized void onConnectionLost() {
+        mLossCount++;
+        mStableSince = mClock.currentTimeMillis();
+        int keepAlive = Math.max(minKeepAliveSeconds(), mKeepAliveSeconds / 2);
+        if (keepAlive < mKeepAliveSeconds) {
+            mKeepAliveSeconds = keepAlive;
+            mDecreaseCount++;
+        }
+    }
+
+    /**
+     * @return the keepalive of the next connection, in seconds
+     */
+    public synchronized int nextKeepAliveSeconds() {
+        long now = mClock.currentTimeMillis();
+        int keepAlive = mKeepAliveSeconds;
+        boolean steady = (mSmoothedRoundTrip < 0) || (mRoundTripVariation <= mSmoothedRoundTrip);
+        if (steady && (now - mStableSince >= STABLE_KEEPALIVES * mKeepAliveSeconds * 1000L)) {
+            keepAlive = Math.min(MAX_KEEPALIVE_S, keepAlive * 2);
+        }
+        keepAlive = Math.max(minKeepAliveSeconds(), keepAlive);
+        if (keepAlive != mKeepAliveSeconds) {
+            if (keepAlive > mKeepAliveSeconds) {
+                mIncreaseCount++;
+            } else {
+                mDecreaseCount++;
+            }
+            mKeepAliveSeconds = keepAlive;
+            mStableSince = now;
+        }
+        return keepAlive;
+    }
+
+    public synchronized int getKeepAliveSeconds() {
+        return mKeepAliveSeconds;
+    }
+
+    /**
+     * @return the longest a dead link goes unnoticed with the current keepalive, in milliseconds
+     */
+    public synchronized long getDetectionLatencyMillis() {
+        return 2 * mKeepAliveSeconds * 1000L;
+    }
+
+    /**
+     * @return the smoothed round trip, in milliseconds, -1 before the first one
+     */
+    public synchronized long getSmoothedRoundTripMillis() {
+        return mSmoothedRoundTrip;
+    }
+
+    public synchronized String report() {
+        return "Keepalive " + mKeepAliveSeconds + " s (dead link noticed within " + getDetectionLatencyMillis()
+                + " ms), raised " + mIncreaseCount + " times, lowered " + mDecreaseCount + " times, "
+                + mLossCount + " connections lost, round trip " + mSmoothedRoundTrip + " ms +/- "
+                + mRoundTripVariation + " ms";
+    }
+
+    // guarded by the controller
+    private int minKeepAliveSeconds() {
+        if (mSmoothedRoundTrip < 0) {
+            return MIN_KEEPALIVE_S;
+        }
+        long timeoutMs = TIMEOUT_MARGIN * (mSmoothedRoundTrip + 4 * mRoundTripVariation);
+        return (int) Math.max(MIN_KEEPALIVE_S, Math.min(MAX_KEEPALIVE_S, (timeoutMs + 999) / 1000));
+    }
+}
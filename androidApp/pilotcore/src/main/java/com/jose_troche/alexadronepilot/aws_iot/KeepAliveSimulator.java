@@ -0,0 +1,161 @@
+package com.jose_troche.alexadronepilot.aws_iot;
+
+import com.jose_troche.alexadronepilot.pilot.LatencyHistogram;
+import com.jose_troche.alexadronepilot.pilot.LatencyRecorder;
+import com.jose_troche.alexadronepilot.pilot.PilotRunner;
+
+import java.util.Random;
+
+/**
+ * Command line comparison of the fixed keepalive and of the {@link KeepAliveController},
+ * without a network: a device flies sessions of {@link #SESSION_MINUTES} minutes on a
+ * {@link LocalMqttBroker}, its link fails silently now and then, and the radio wakeups
+ * (pings) and the time taken to notice the failures are reported.
+ * Time runs {@link #TIME_SCALE} times faster than real time, the times reported are
+ * simulated ones.
+ *
+ * Usage: <code>java KeepAliveSimulator [minutes]</code>
+ */
+public class KeepAliveSimulator {
+
+    private static final int TIME_SCALE = 100;
+    private static final int SESSION_MINUTES = 5;
+    // the keepalive the app used before
+    private static final int FIXED_KEEPALIVE_S = 10;
+
+    private static final class Link {
+        final String mName;
+        // real milliseconds, each way: 1 ms is TIME_SCALE simulated milliseconds
+        final long mMinLatencyMs;
+        final long mMaxLatencyMs;
+        // simulated seconds, 0 for a link that never fails
+        final long mMeanFaultIntervalS;
+        final long mOutageS;
+
+        Link(String name, long minLatencyMs, long maxLatencyMs, long meanFaultIntervalS, long outageS) {
+            mName = name;
+            mMinLatencyMs = minLatencyMs;
+            mMaxLatencyMs = maxLatencyMs;
+            mMeanFaultIntervalS = meanFaultIntervalS;
+            mOutageS = outageS;
+        }
+    }
+
+    private static final Link[] LINKS = {
+            new Link("wifi", 0, 0, 0, 0),
+            new Link("lte", 1, 3, 90, 10),
+    };
+
+    private final int mMinutes;
+    private final long mOrigin = System.currentTimeMillis();
+    private final long mStart = System.nanoTime();
+
+    private final ClockSync.Clock mClock = new ClockSync.Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return mOrigin + (System.nanoTime() - mStart) * TIME_SCALE / 1000000L;
+        }
+    };
+
+    private KeepAliveSimulator(int minutes) {
+        mMinutes = minutes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int minutes = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        KeepAliveSimulator simulator = new KeepAliveSimulator(minutes);
+        for (Link link : LINKS) {
+            simulator.run(link, false);
+            simulator.run(link, true);
+        }
+    }
+
+    private void run(Link link, boolean adaptive) throws Exception {
+        Random random = new Random(42);
+        LocalMqttBroker broker = new LocalMqttBroker();
+        TimeResponder responder = new TimeResponder(broker.newClient("lambda"), mClock);
+        responder.start();
+
+        KeepAliveController controller = adaptive
+                ? new KeepAliveController(FIXED_KEEPALIVE_S, mClock) : null;
+        LatencyHistogram detections = new LatencyHistogram();
+        long pings = 0;
+        long reconnects = 0;
+
+        for (int minute = 0; minute < mMinutes; minute += SESSION_MINUTES) {
+            final LocalMqttBroker.Client client = broker.newClient("device");
+            client.setLatency(link.mMinLatencyMs, link.mMaxLatencyMs);
+            client.setTimeScale(TIME_SCALE);
+            client.setKeepAlive(FIXED_KEEPALIVE_S);
+            ClockSync clockSync = new ClockSync(client, "device", mClock);
+            DroneSession session = new DroneSession(client, new CommandDecoder(PilotRunner.loadCommandTable()),
+                    new LatencyRecorder(), clockSync, null, mSessionListener);
+            session.setReconnectPolicy(new ReconnectPolicy(1, 50, random));
+            if (controller != null) {
+                session.setKeepAliveController(controller);
+            }
+            session.connectAndSubscribe(null);
+
+            long sessionEndAt = System.nanoTime() + SESSION_MINUTES * 60000000000L / TIME_SCALE;
+            while (System.nanoTime() < sessionEndAt) {
+                long wait = sessionEndAt - System.nanoTime();
+                if (link.mMeanFaultIntervalS > 0) {
+                    double interval = -Math.log(1 - random.nextDouble()) * link.mMeanFaultIntervalS;
+                    wait = Math.min(wait, (long) (interval * 1000000000L / TIME_SCALE));
+                }
+                Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                if (System.nanoTime() < sessionEndAt) {
+                    client.failLink();
+                    Thread.sleep(link.mOutageS * 1000L / TIME_SCALE);
+                    client.restoreLink();
+                }
+            }
+            session.disconnect();
+            pings += client.getPingCount();
+            reconnects += session.getReconnectCount();
+            client.getDetectionLatencies().addTo(detections);
+        }
+        responder.disconnect();
+
+        System.out.println(link.mName + ", " + (adaptive ? "adaptive" : "fixed " + FIXED_KEEPALIVE_S + " s")
+                + " keepalive, " + mMinutes + " min: " + (pings / mMinutes) + " pings/min, "
+                + detections.getCount() + " dead links noticed after p50="
+                + simulated(detections.getValueAtPercentile(50)) + "s max="
+                + simulated(detections.getValueAtPercentile(100)) + "s, " + reconnects + " reconnects");
+        if (controller != null) {
+            System.out.println("  " + controller.report());
+        }
+    }
+
+    // from real microseconds to simulated seconds
+    private static String simulated(long micros) {
+        return String.valueOf(micros * TIME_SCALE / 100000 / 10.0);
+    }
+
+    private final DroneSession.Listener mSessionListener = new DroneSession.Listener() {
+        @Override
+        public void onConnectionStatusChanged(int status, Throwable throwable) {
+            // counted by the session
+        }
+
+        @Override
+        public void onError(String message, Throwable throwable) {
+            // reconnections fail while the link is down
+        }
+
+        @Override
+        public void onConnectionLost() {
+            // measured by the client
+        }
+
+        @Override
+        public void onConnectionRestored(long blackoutMs) {
+            // measured by the client
+        }
+
+        @Override
+        public void onCommandReceived(long command, long receivedAt, long executeAt) {
+            // no commands, only the pings of the clock synchronization
+        }
+    };
+}
@@ -0,0 +1,479 @@
+package com.jose_troche.alexadronepilot.aws_iot;
+
+import com.jose_troche.alexadronepilot.pilot.LatencyHistogram;
+
+import java.security.KeyStore;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the AWS IoT broker, for simulations and load tests
+ * without a network.
+ * Each client gets its messages and status changes on its own thread, in order,
+ * like the MQTT client of the AWS SDK. A publication reaches the clients subscribed
+ * at that time, nothing is retained. When a connection is lost, the QoS 0 messages
+ * on their way are lost with it; the QoS 1 ones, and the ones whose acknowledgment
+ * had not reached the broker yet, are delivered again once the client is back, as
+ * with a persistent session: the latter are duplicates. A client can be given a network
+ * latency, both ways: its publications and its messages still go in order.
+ * A client keeps its connection alive as the MQTT client of the AWS SDK does, and its
+ * link can fail silently: it then notices the loss only through its keepalive.
+ */
+public class LocalMqttBroker {
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicLong mPublishedCount = new AtomicLong();
+    private final AtomicLong mDeliveredCount = new AtomicLong();
+
+    /**
+     * @param clientId names the thread of the client
+     * @return a new client, not connected yet
+     */
+    public Client newClient(String clientId) {
+        return new Client(clientId);
+    }
+
+    /**
+     * Deliver a message to every matching subscription
+     * Can be called from any thread
+     */
+    public void publish(String topic, byte[] data) {
+        mPublishedCount.incrementAndGet();
+        for (Subscription subscription : mSubscriptions) {
+            if (matches(subscription.mTopicFilter, topic) && !subscription.mClient.mLinkDown) {
+                subscription.mClient.enqueue(new Delivery(topic, data, subscription.mQos, subscription.mCallback));
+                mDeliveredCount.incrementAndGet();
+            }
+        }
+    }
+
+    public long getPublishedCount() {
+        return mPublishedCount.get();
+    }
+
+    public long getDeliveredCount() {
+        return mDeliveredCount.get();
+    }
+
+    /**
+     * @param topicFilter a topic filter, where + matches one level and a final # any number of levels
+     * @param topic a topic, without wildcards
+     * @return true if the topic matches the filter
+     */
+    public static boolean matches(String topicFilter, String topic) {
+        int f = 0;
+        int t = 0;
+        int filterLength = topicFilter.length();
+        int topicLength = topic.length();
+        while (f < filterLength) {
+            char c = topicFilter.charAt(f);
+            if (c == '#') {
+                return true;
+            }
+            if (c == '+') {
+                // skip one level of the topic
+                while (t < topicLength && topic.charAt(t) != '/') {
+                    t++;
+                }
+                f++;
+                continue;
+            }
+            if (t >= topicLength) {
+                // "a/#" also matches "a"
+                return (c == '/') && (f + 2 == filterLength) && (topicFilter.charAt(f + 1) == '#');
+            }
+            if (c != topic.charAt(t)) {
+                return false;
+            }
+            f++;
+            t++;
+        }
+        return t == topicLength;
+    }
+
+    private static final class Subscription {
+        final String mTopicFilter;
+        final Client mClient;
+        final int mQos;
+        final MqttTransport.MessageCallback mCallback;
+
+        Subscription(String topicFilter, Client client, int qos, MqttTransport.MessageCallback callback) {
+            mTopicFilter = topicFilter;
+            mClient = client;
+            mQos = qos;
+            mCallback = callback;
+        }
+    }
+
+    private static final class Delivery {
+        final String mTopic;
+        final byte[] mData;
+        final int mQos;
+        final MqttTransport.MessageCallback mCallback;
+        final int mStatus;
+        long mDeliverAt;
+        int mConnection; // the connection of the client the message was sent on
+        long mAckAt; // when the acknowledgment reaches the broker
+
+        Delivery(String topic, byte[] data, int qos, MqttTransport.MessageCallback callback) {
+            mTopic = topic;
+            mData = data;
+            mQos = qos;
+            mCallback = callback;
+            mStatus = -1;
+        }
+
+        Delivery(int status) {
+            mTopic = null;
+            mData = null;
+            mQos = MqttTransport.QOS_AT_MOST_ONCE;
+            mCallback = null;
+            mStatus = status;
+        }
+    }
+
+    /**
+     * A connection to the broker
+     */
+    public final class Client implements MqttTransport, Runnable {
+
+        private final BlockingQueue<Delivery> mQueue = new LinkedBlockingQueue<>();
+        private final AtomicInteger mQueueDepth = new AtomicInteger();
+        private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+        private final Thread mThread;
+        private volatile StatusCallback mStatusCallback;
+        private volatile boolean mRunning;
+        private volatile boolean mConnected;
+
+        // guarded by the client
+        private final Random mRandom = new Random();
+        private long mMinLatency;
+        private volatile long mMaxLatency;
+        private long mLastDeliverAt;
+
+        // keepalive, only used on the client thread once connected
+        private volatile int mKeepAliveSeconds;
+        private volatile int mTimeScale = 1;
+        private long mKeepAliveNs; // 0 for none
+        private long mLastActivityAt; // from System.nanoTime()
+        private long mPingSentAt; // 0 when no ping is waiting for its answer
+        private final AtomicLong mPingCount = new AtomicLong();
+
+        // link faults
+        private volatile boolean mLinkDown;
+        private volatile long mLinkDownAt;
+        private final LatencyHistogram mDetectionLatencies = new LatencyHistogram();
+
+        // delivery guarantees: the connection count is bumped by every loss
+        private volatile int mConnection;
+        private volatile long mDroppedAt;
+        // only used on the client thread
+        private final ArrayDeque<Delivery> mUnacked = new ArrayDeque<>();
+        private final ArrayList<Delivery> mRedeliveries = new ArrayList<>();
+        private final AtomicLong mLostCount = new AtomicLong();
+        private final AtomicLong mRedeliveredCount = new AtomicLong();
+        private final AtomicLong mDuplicatedCount = new AtomicLong();
+
+        private Client(String clientId) {
+            mThread = new Thread(this, clientId);
+            mThread.setDaemon(true);
+        }
+
+        @Override
+        public void connect(KeyStore keyStore, StatusCallback callback) {
+            if (mConnected) {
+                throw new IllegalStateException("Already connected");
+            }
+            if (mLinkDown) {
+                throw new IllegalStateException("Link down");
+            }
+            mStatusCallback = callback;
+            mKeepAliveNs = mKeepAliveSeconds * 1000000000L / mTimeScale;
+            mConnected = true;
+            enqueue(new Delivery(STATUS_CONNECTING));
+            enqueue(new Delivery(STATUS_CONNECTED));
+            if (!mRunning) {
+                mRunning = true;
+                mThread.start();
+            }
+        }
+
+        @Override
+        public void setKeepAlive(int seconds) {
+            mKeepAliveSeconds = seconds;
+        }
+
+        @Override
+        public void subscribe(String topicFilter, int qos, MessageCallback callback) {
+            mSubscriptions.add(new Subscription(topicFilter, this, qos, callback));
+        }
+
+        @Override
+        public void publish(String topic, byte[] data) {
+            if (!mConnected) {
+                throw new IllegalStateException("Not connected");
+            }
+            if (mLinkDown) {
+                // lost on the way
+                return;
+            }
+            if (mMaxLatency > 0) {
+                // the publication waits on the client thread
+                enqueue(new Delivery(topic, data, QOS_AT_MOST_ONCE, null));
+            } else {
+                LocalMqttBroker.this.publish(topic, data);
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            unsubscribeAll();
+            mConnected = false;
+            mRunning = false;
+            mThread.interrupt();
+        }
+
+        /**
+         * Lose the connection, as a network outage would: the subscriptions are dropped and
+         * the client is told {@link #STATUS_CONNECTION_LOST}, it can connect again
+         */
+        public void dropConnection() {
+            if (!mConnected) {
+                return;
+            }
+            unsubscribeAll();
+            mConnected = false;
+            mDroppedAt = System.nanoTime();
+            mConnection++;
+            enqueue(new Delivery(STATUS_CONNECTION_LOST));
+        }
+
+        /**
+         * Break the link without a word, as a dead radio or a NAT that forgot the connection
+         * would: nothing goes through any more, the client notices only when a ping goes
+         * unanswered, and cannot connect again until {@link #restoreLink()}
+         */
+        public void failLink() {
+            mLinkDownAt = System.nanoTime();
+            mLinkDown = true;
+        }
+
+        public void restoreLink() {
+            mLinkDown = false;
+        }
+
+        /**
+         * Run the keepalive faster than real time, for simulations
+         * @param timeScale simulated seconds per second
+         */
+        public void setTimeScale(int timeScale) {
+            mTimeScale = timeScale;
+        }
+
+        /**
+         * @return the number of pings sent, one per keepalive of an idle link
+         */
+        public long getPingCount() {
+            return mPingCount.get();
+        }
+
+        /**
+         * @return the number of QoS 0 messages lost with a connection
+         */
+        public long getLostCount() {
+            return mLostCount.get();
+        }
+
+        /**
+         * @return the number of QoS 1 messages delivered again after a lost connection
+         */
+        public long getRedeliveredCount() {
+            return mRedeliveredCount.get();
+        }
+
+        /**
+         * @return the redelivered messages that had been delivered already, their acknowledgment was lost
+         */
+        public long getDuplicatedCount() {
+            return mDuplicatedCount.get();
+        }
+
+        /**
+         * @return how long the failed links went unnoticed, in real time
+         */
+        public LatencyHistogram getDetectionLatencies() {
+            return mDetectionLatencies;
+        }
+
+        private void unsubscribeAll() {
+            for (Subscription subscription : mSubscriptions) {
+                if (subscription.mClient == this) {
+                    mSubscriptions.remove(subscription);
+                }
+            }
+        }
+
+        /**
+         * Delay the messages to the client, as a network would
+         * @param minMillis the shortest delay
+         * @param maxMillis the longest delay, the delays are uniformly distributed in between
+         */
+        public synchronized void setLatency(long minMillis, long maxMillis) {
+            mMinLatency = minMillis * 1000000L;
+            mMaxLatency = maxMillis * 1000000L;
+        }
+
+        /**
+         * @return the number of messages waiting for the client thread
+         */
+        public int getQueueDepth() {
+            return mQueueDepth.get();
+        }
+
+        public int getMaxQueueDepth() {
+            return mMaxQueueDepth.get();
+        }
+
+        private void enqueue(Delivery delivery) {
+            int depth = mQueueDepth.incrementAndGet();
+            int max;
+            while (depth > (max = mMaxQueueDepth.get())) {
+                if (mMaxQueueDepth.compareAndSet(max, depth)) {
+                    break;
+                }
+            }
+            synchronized (this) {
+                long latency = mMinLatency;
+                if (mMaxLatency > mMinLatency) {
+                    latency += (long) (mRandom.nextDouble() * (mMaxLatency - mMinLatency));
+                }
+                // a message never overtakes the previous one
+                delivery.mDeliverAt = Math.max(mLastDeliverAt, System.nanoTime() + latency);
+                mLastDeliverAt = delivery.mDeliverAt;
+                delivery.mConnection = mConnection;
+                // the acknowledgment goes back with the same latency
+                delivery.mAckAt = delivery.mDeliverAt + latency;
+                mQueue.add(delivery);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (mRunning) {
+                    long untilKeepAlive = keepAlive();
+                    Delivery delivery = (untilKeepAlive > 0)
+                            ? mQueue.poll(untilKeepAlive, TimeUnit.NANOSECONDS) : mQueue.take();
+                    if (delivery == null) {
+                        continue;
+                    }
+                    long wait;
+                    while ((wait = delivery.mDeliverAt - System.nanoTime()) > 0) {
+                        Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                    }
+                    mQueueDepth.decrementAndGet();
+                    mLastActivityAt = System.nanoTime();
+                    if (delivery.mStatus == STATUS_CONNECTED) {
+                        mPingSentAt = 0;
+                    }
+                    if (delivery.mCallback != null) {
+                        deliver(delivery);
+                    } else if (delivery.mTopic != null) {
+                        LocalMqttBroker.this.publish(delivery.mTopic, delivery.mData);
+                    } else {
+                        if (delivery.mStatus == STATUS_CONNECTION_LOST) {
+                            // the messages not acknowledged in time come again, before the ones never delivered
+                            ArrayList<Delivery> duplicates = new ArrayList<>();
+                            for (Delivery unacked : mUnacked) {
+                                if (unacked.mAckAt - mDroppedAt > 0) {
+                                    duplicates.add(unacked);
+                                }
+                            }
+                            mUnacked.clear();
+                            mDuplicatedCount.addAndGet(duplicates.size());
+                            mRedeliveries.addAll(0, duplicates);
+                        }
+                        mStatusCallback.onStatusChanged(delivery.mStatus, null);
+                        if ((delivery.mStatus == STATUS_CONNECTED) && !mRedeliveries.isEmpty()) {
+                            mRedeliveredCount.addAndGet(mRedeliveries.size());
+                            for (Delivery redelivery : mRedeliveries) {
+                                redelivery.mConnection = mConnection;
+                                redelivery.mAckAt = System.nanoTime() + (redelivery.mAckAt - redelivery.mDeliverAt);
+                                deliver(redelivery);
+                            }
+                            mRedeliveries.clear();
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // disconnected
+            }
+        }
+
+        // Called on the client thread
+        private void deliver(Delivery delivery) {
+            if (delivery.mConnection != mConnection) {
+                // sent on a connection lost since
+                if (delivery.mQos == QOS_AT_MOST_ONCE) {
+                    mLostCount.incrementAndGet();
+                } else {
+                    mRedeliveries.add(delivery);
+                }
+                return;
+            }
+            delivery.mCallback.onMessageArrived(delivery.mTopic, delivery.mData);
+            if (delivery.mQos != QOS_AT_MOST_ONCE) {
+                long now = System.nanoTime();
+                while (!mUnacked.isEmpty() && (mUnacked.peekFirst().mAckAt - now <= 0)) {
+                    mUnacked.pollFirst();
+                }
+                if (delivery.mAckAt - now > 0) {
+                    mUnacked.addLast(delivery);
+                }
+            }
+        }
+
+        /**
+         * Ping after a keepalive without traffic, give the connection up when the ping is
+         * not answered within another keepalive
+         * Called on the client thread
+         * @return the time until the next keepalive check, in nanoseconds, 0 for none
+         */
+        private long keepAlive() {
+            if (!mConnected || (mKeepAliveNs == 0)) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            if (mPingSentAt != 0) {
+                long timeout = mPingSentAt + mKeepAliveNs - now;
+                if (timeout > 0) {
+                    return timeout;
+                }
+                // unanswered
+                mPingSentAt = 0;
+                mDetectionLatencies.recordNanos(now - mLinkDownAt);
+                dropConnection();
+                return 0;
+            }
+            long idle = mLastActivityAt + mKeepAliveNs - now;
+            if (idle > 0) {
+                return idle;
+            }
+            mPingCount.incrementAndGet();
+            if (mLinkDown) {
+                mPingSentAt = now;
+                return mKeepAliveNs;
+            }
+            // answered at once, the latency of the link apart
+            mLastActivityAt = now;
+            return mKeepAliveNs;
+        }
+    }
+}
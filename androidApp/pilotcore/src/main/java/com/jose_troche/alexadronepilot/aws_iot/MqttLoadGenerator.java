@@ -0,0 +1,286 @@
+package com.jose_troche.alexadronepilot.aws_iot;
+
+import com.jose_troche.alexadronepilot.pilot.CommandPipeline;
+import com.jose_troche.alexadronepilot.pilot.ControlLoop;
+import com.jose_troche.alexadronepilot.pilot.LatencyHistogram;
+import com.jose_troche.alexadronepilot.pilot.PackedCommand;
+import com.jose_troche.alexadronepilot.pilot.PilotRunner;
+import com.jose_troche.alexadronepilot.pilot.SimulatedDrone;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Command line load test of the drone subscriber, without a network: simulated Echo
+ * sources publish drone messages, as the Lambda does, on a {@link LocalMqttBroker}; a
+ * {@link DroneSession} receives them and drives a {@link SimulatedDrone} through the
+ * real command pipeline.
+ *
+ * Usage: <code>java MqttLoadGenerator [name=value ...]</code>
+ * <ul>
+ * <li>rate: messages per second, all sources together (default 5000)</li>
+ * <li>burst: messages sent back to back, the rate is kept on average (default 1)</li>
+ * <li>sources: number of publishing threads (default 4)</li>
+ * <li>seconds: duration of the test (default 5)</li>
+ * <li>mix: weighted phrases, like <code>"forward:4,spin right:2,land:1"</code></li>
+ * <li>things: number of thing topics published to, routed by one wildcard subscription (default 1)</li>
+ * <li>outages: number of times the connection is lost during the test, the session reconnects
+ * with a {@link ReconnectPolicy} (default 0)</li>
+ * <li>qos: QoS of the subscription, 0 or 1 (default 0)</li>
+ * <li>latency: network latency of the subscriber, up to this many milliseconds each way (default 0)</li>
+ * </ul>
+ * The sources share one sequence, as if they went through the same Lambda, and each
+ * message has an id.
+ */
+public class MqttLoadGenerator {
+
+    private static final String DEFAULT_MIX = "forward:4,backward:2,spin right 30 percent:2,"
+            + "go up for 2 seconds:2,down:2,take off:1,land:1,take picture:1,flip:1,barrel roll:1";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final LocalMqttBroker mBroker = new LocalMqttBroker();
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private final int mRate;
+    private final int mBurst;
+    private final int mSources;
+    private final int mSeconds;
+    private final String[] mPhrases;
+    private final String[] mTopics;
+    private final ThingRoutes mRoutes;
+    private final int mOutages;
+    private final int mQos;
+    private final int mLatency;
+
+    private MqttLoadGenerator(int rate, int burst, int sources, int seconds, String mix, int things,
+                              int outages, int qos, int latency) {
+        mRate = rate;
+        mOutages = outages;
+        mQos = qos;
+        mLatency = latency;
+        mBurst = burst;
+        mSources = sources;
+        mSeconds = seconds;
+
+        List<String> phrases = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            int colon = entry.lastIndexOf(':');
+            int weight = colon < 0 ? 1 : Integer.parseInt(entry.substring(colon + 1).trim());
+            String phrase = (colon < 0 ? entry : entry.substring(0, colon)).trim();
+            for (int i = 0; i < weight; i++) {
+                phrases.add(phrase);
+            }
+        }
+        mPhrases = phrases.toArray(new String[phrases.size()]);
+
+        mTopics = new String[things];
+        mRoutes = (things > 1) ? new ThingRoutes() : null;
+        for (int i = 0; i < things; i++) {
+            String thing = (i == 0) ? DroneSession.DRONE_THING : DroneSession.DRONE_THING + "-" + i;
+            mTopics[i] = ThingRoutes.topic(thing);
+            if (mRoutes != null) {
+                mRoutes.add(thing);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rate = 5000;
+        int burst = 1;
+        int sources = 4;
+        int seconds = 5;
+        String mix = DEFAULT_MIX;
+        int things = 1;
+        int outages = 0;
+        int qos = MqttTransport.QOS_AT_MOST_ONCE;
+        int latency = 0;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? "" : arg.substring(eq + 1);
+            switch (name) {
+                case "rate":
+                    rate = Integer.parseInt(value);
+                    break;
+                case "burst":
+                    burst = Integer.parseInt(value);
+                    break;
+                case "sources":
+                    sources = Integer.parseInt(value);
+                    break;
+                case "seconds":
+                    seconds = Integer.parseInt(value);
+                    break;
+                case "mix":
+                    mix = value;
+                    break;
+                case "things":
+                    things = Integer.parseInt(value);
+                    break;
+                case "outages":
+                    outages = Integer.parseInt(value);
+                    break;
+                case "qos":
+                    qos = Integer.parseInt(value);
+                    break;
+                case "latency":
+                    latency = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        new MqttLoadGenerator(rate, burst, sources, seconds, mix, things, outages, qos, latency).run();
+    }
+
+    private void run() throws Exception {
+        SimulatedDrone drone = new SimulatedDrone();
+        ControlLoop loop = new ControlLoop("MqttLoadGenerator");
+        final CommandPipeline pipeline = new CommandPipeline(drone, loop, new CommandPipeline.Listener() {
+            @Override
+            public void onCommandDispatched(int command) {
+                // nothing to show
+            }
+        });
+        loop.start(pipeline);
+
+        final CountDownLatch connected = new CountDownLatch(1);
+        // only written by the MQTT client thread
+        final long[] routedCounts = new long[mTopics.length];
+        final LocalMqttBroker.Client client = mBroker.newClient("subscriber");
+        client.setLatency(0, mLatency);
+        DroneSession session = new DroneSession(client, new CommandDecoder(PilotRunner.loadCommandTable()),
+                pipeline.getLatencyRecorder(), null, mRoutes, new DroneSession.Listener() {
+            @Override
+            public void onConnectionStatusChanged(int status, Throwable throwable) {
+                if (status == MqttTransport.STATUS_CONNECTED) {
+                    connected.countDown();
+                }
+            }
+
+            @Override
+            public void onError(String message, Throwable throwable) {
+                System.out.println(message + " " + throwable);
+            }
+
+            @Override
+            public void onConnectionLost() {
+                pipeline.hold();
+            }
+
+            @Override
+            public void onConnectionRestored(long blackoutMs) {
+                // recorded by the session
+            }
+
+            @Override
+            public void onCommandReceived(long command, long receivedAt, long executeAt) {
+                routedCounts[PackedCommand.route(command)]++;
+                pipeline.submit(PackedCommand.withRoute(command, 0), receivedAt);
+            }
+        });
+        session.setQos(mQos);
+        if (mOutages > 0) {
+            session.setReconnectPolicy(new ReconnectPolicy());
+        }
+        session.connectAndSubscribe(null);
+        connected.await();
+
+        Thread[] threads = new Thread[mSources];
+        final long perSourceRate = Math.max(1, mRate / mSources);
+        final long endAt = System.nanoTime() + mSeconds * 1000000000L;
+        long start = System.nanoTime();
+        for (int s = 0; s < mSources; s++) {
+            final Random random = new Random(s);
+            threads[s] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long interval = mBurst * 1000000000L / perSourceRate;
+                    long nextAt = System.nanoTime();
+                    while (nextAt < endAt) {
+                        for (int i = 0; i < mBurst; i++) {
+                            publish(mTopics[random.nextInt(mTopics.length)], mPhrases[random.nextInt(mPhrases.length)]);
+                        }
+                        nextAt += interval;
+                        long wait = nextAt - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                }
+            }, "echo-" + s);
+            threads[s].start();
+        }
+        Thread outages = null;
+        if (mOutages > 0) {
+            outages = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long interval = mSeconds * 1000000000L / (mOutages + 1);
+                    for (int i = 1; i <= mOutages; i++) {
+                        LockSupport.parkNanos(interval);
+                        client.dropConnection();
+                    }
+                }
+            }, "outages");
+            outages.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (outages != null) {
+            outages.join();
+        }
+        // every delivery arrives once, but the ones lost with a connection; duplicates come twice
+        long delivered = mBroker.getDeliveredCount();
+        while (session.getReceivedCount() + client.getLostCount() < delivered + client.getDuplicatedCount()) {
+            Thread.sleep(1);
+        }
+        while (!loop.isIdle() || pipeline.getCommandQueue().size() > 0) {
+            Thread.yield();
+        }
+        long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1000000);
+        session.disconnect();
+        loop.quit();
+
+        System.out.println(mSources + " sources, " + mRate + " messages/s in bursts of " + mBurst
+                + ", " + mSeconds + " s, QoS " + mQos);
+        System.out.println("Published " + mBroker.getPublishedCount() + ", received " + session.getReceivedCount()
+                + " (" + (session.getReceivedCount() * 1000 / elapsedMs) + " messages/s), unknown "
+                + session.getUnknownCount() + ", missing from the sequence " + session.getSequenceGapCount());
+        System.out.println("Subscriber queue depth max " + client.getMaxQueueDepth());
+        if (mOutages > 0) {
+            System.out.println("Lost with the connection " + client.getLostCount() + ", redelivered "
+                    + client.getRedeliveredCount() + " (" + client.getDuplicatedCount() + " duplicates), dropped as duplicates "
+                    + session.getDuplicateCount());
+        }
+        if (mRoutes != null) {
+            StringBuilder sb = new StringBuilder("Commands per thing:");
+            for (int i = 0; i < mRoutes.size(); i++) {
+                sb.append(' ').append(mRoutes.name(i)).append('=').append(routedCounts[i]);
+            }
+            System.out.println(sb.append(", unrouted ").append(session.getUnroutedCount()));
+        }
+        if (mOutages > 0) {
+            LatencyHistogram blackouts = session.getBlackoutHistogram();
+            System.out.println("Reconnects " + session.getReconnectCount() + ", blackout p50="
+                    + blackouts.getValueAtPercentile(50) / 1000 + "ms p99=" + blackouts.getValueAtPercentile(99) / 1000
+                    + "ms max=" + session.getMaxBlackoutMillis() + "ms");
+        }
+        System.out.print(pipeline.report());
+        System.out.println(drone.report());
+    }
+
+    private void publish(String topic, String phrase) {
+        long sequence = mSequence.incrementAndGet();
+        String payload = "{ \"command\": \"" + phrase + "\", \"id\": " + sequence + ", \"seq\": " + sequence
+                + ", \"ts\": " + System.currentTimeMillis() + " }";
+        mBroker.publish(topic, payload.getBytes(UTF8));
+    }
+}
@@ -0,0 +1,63 @@
+package com.jose_troche.alexadronepilot.aws_iot;
+
+import java.security.KeyStore;
+
+/**
+ * The MQTT client used by a {@link DroneSession}: the AWS IoT client on a device,
+ * a {@link LocalMqttBroker} client for simulations and load tests.
+ */
+public interface MqttTransport {
+
+    int STATUS_CONNECTING = 0;
+    int STATUS_CONNECTED = 1;
+    int STATUS_RECONNECTING = 2;
+    int STATUS_CONNECTION_LOST = 3;
+
+    /** Fire and forget, a message on its way when the connection is lost is lost */
+    int QOS_AT_MOST_ONCE = 0;
+    /** Acknowledged, a message may come twice */
+    int QOS_AT_LEAST_ONCE = 1;
+
+    interface StatusCallback {
+        /**
+         * Called when the connection status changes
+         * Called on the client thread
+         * @param status one of the STATUS_ constants
+         * @param throwable the cause of a reconnection or a lost connection, may be null
+         */
+        void onStatusChanged(int status, Throwable throwable);
+    }
+
+    interface MessageCallback {
+        /**
+         * Called when a message arrives on a subscribed topic
+         * Called on the client thread, one message at a time
+         * @param topic the topic of the message
+         * @param data the raw message
+         */
+        void onMessageArrived(String topic, byte[] data);
+    }
+
+    /**
+     * Connect to the broker, the client reconnects by itself when the connection is lost
+     * @param keyStore the client certificate and key, ignored by transports without TLS
+     * @param callback informed of every status change
+     */
+    void connect(KeyStore keyStore, StatusCallback callback) throws Exception;
+
+    /**
+     * @param seconds the longest the connection stays silent: the client pings after that
+     *                long without traffic, applied from the next connection
+     */
+    void setKeepAlive(int seconds);
+
+    /**
+     * @param topicFilter a topic, may contain + and # wildcards
+     * @param qos {@link #QOS_AT_MOST_ONCE} or {@link #QOS_AT_LEAST_ONCE}
+     */
+    void subscribe(String topicFilter, int qos, MessageCallback callback) throws Exception;
+
+    void publish(String topic, byte[] data) throws Exception;
+
+    void disconnect();
+}
@@ -0,0 +1,64 @@
+package com.jose_troche.alexadronepilot.aws_iot;
+
+import java.util.Random;
+
+/**
+ * When to try connecting again after the connection is lost: the first attempt is
+ * fast, then the delay doubles up to a cap. Each delay is jittered between half and
+ * all of its value, so that the devices of a fleet that lost the broker together do
+ * not all come back at the same instant.
+ * Thread safe: the MQTT client thread and the reconnect thread of a {@link DroneSession}
+ * both use it.
+ */
+public class ReconnectPolicy {
+
+    public static final long DEFAULT_INITIAL_DELAY_MS = 100;
+    public static final long DEFAULT_MAX_DELAY_MS = 10000;
+
+    private final long mInitialDelayMs;
+    private final long mMaxDelayMs;
+    private final Random mRandom;
+
+    private int mAttempt;
+
+    public ReconnectPolicy() {
+        this(DEFAULT_INITIAL_DELAY_MS, DEFAULT_MAX_DELAY_MS, new Random());
+    }
+
+    /**
+     * @param initialDelayMs the delay before the first attempt, before jitter
+     * @param maxDelayMs the longest delay, before jitter
+     */
+    public ReconnectPolicy(long initialDelayMs, long maxDelayMs, Random random) {
+        mInitialDelayMs = initialDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mRandom = random;
+    }
+
+    /**
+     * @return the delay before the next attempt, in milliseconds
+     */
+    public synchronized long nextDelayMillis() {
+        // no shift beyond the cap, it would overflow
+        long delay = mMaxDelayMs;
+        if ((mAttempt < 62) && ((mInitialDelayMs << mAttempt) < mMaxDelayMs)) {
+            delay = mInitialDelayMs << mAttempt;
+        }
+        mAttempt++;
+        return (delay / 2) + (long) (mRandom.nextDouble() * (delay - delay / 2));
+    }
+
+    /**
+     * @return the number of attempts since the connection was lost
+     */
+    public synchronized int getAttempt() {
+        return mAttempt;
+    }
+
+    /**
+     * Start over from the initial delay, once connected
+     */
+    public synchronized void reset() {
+        mAttempt = 0;
+    }
+}
@@ -0,0 +1,134 @@
+package com.jose_troche.alexadronepilot.aws_iot;
+
+/**
+ * Maps the topics of AWS IoT things, <code>$aws/things/&lt;thing name&gt;/shadow/update</code>,
+ * to small route numbers, so that one subscription to {@link #TOPIC_FILTER} serves every
+ * drone of the device.
+ * The thing names sit in an open addressing table built before connecting; a topic is
+ * looked up in place, hashing and comparing the characters between the prefix and the
+ * suffix, so routing a message neither splits the topic nor allocates.
+ * A route fits the route field of a {@link com.jose_troche.alexadronepilot.pilot.PackedCommand}.
+ */
+public class ThingRoutes {
+
+    public static final String TOPIC_PREFIX = "$aws/things/";
+    public static final String TOPIC_SUFFIX = "/shadow/update";
+    /** Every thing, one level wildcard */
+    public static final String TOPIC_FILTER = TOPIC_PREFIX + "+" + TOPIC_SUFFIX;
+
+    public static final int NO_ROUTE = -1;
+    public static final int MAX_ROUTES = 256;
+
+    // a power of two, at least twice MAX_ROUTES so that the probes stay short
+    private static final int TABLE_SIZE = 512;
+
+    private final String[] mNames = new String[MAX_ROUTES];
+    private final String[] mTable = new String[TABLE_SIZE];
+    private final int[] mTableRoutes = new int[TABLE_SIZE];
+    private int mCount;
+
+    /**
+     * Add a thing, the routes are numbered from 0 in the order they are added
+     * Must be called before the session connects
+     * @param thingName the name of the AWS IoT thing
+     * @return the route of the thing
+     */
+    public int add(String thingName) {
+        int existing = route(thingName, 0, thingName.length());
+        if (existing != NO_ROUTE) {
+            return existing;
+        }
+        if (mCount == MAX_ROUTES) {
+            throw new IllegalStateException("Too many things, the limit is " + MAX_ROUTES);
+        }
+        int route = mCount++;
+        mNames[route] = thingName;
+        int slot = hash(thingName, 0, thingName.length()) & (TABLE_SIZE - 1);
+        while (mTable[slot] != null) {
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        mTable[slot] = thingName;
+        mTableRoutes[slot] = route;
+        return route;
+    }
+
+    /**
+     * @param thingName the name of an AWS IoT thing
+     * @return the name, with a "_2", "_3"... suffix if a thing of that name was added already
+     */
+    public String uniqueName(String thingName) {
+        String name = thingName;
+        for (int n = 2; route(name, 0, name.length()) != NO_ROUTE; n++) {
+            name = thingName + "_" + n;
+        }
+        return name;
+    }
+
+    /**
+     * @param topic the topic of a message
+     * @return the route of the thing of the topic, {@link #NO_ROUTE} if it is not a thing added here
+     */
+    public int route(String topic) {
+        int start = TOPIC_PREFIX.length();
+        int end = topic.length() - TOPIC_SUFFIX.length();
+        if ((end <= start) || !topic.startsWith(TOPIC_PREFIX) || !topic.endsWith(TOPIC_SUFFIX)) {
+            return NO_ROUTE;
+        }
+        return route(topic, start, end);
+    }
+
+    /**
+     * @return the name of the thing of a route
+     */
+    public String name(int route) {
+        return mNames[route];
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * @return the update topic of a thing
+     */
+    public static String topic(String thingName) {
+        return TOPIC_PREFIX + thingName + TOPIC_SUFFIX;
+    }
+
+    /**
+     * @param name any name, like the one of a drone
+     * @return the name with the characters not allowed in a thing name replaced by '_'
+     */
+    public static String toThingName(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean allowed = ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z'))
+                    || ((c >= '0') && (c <= '9')) || (c == ':') || (c == '_') || (c == '-');
+            sb.append(allowed ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private int route(String s, int start, int end) {
+        int length = end - start;
+        int slot = hash(s, start, end) & (TABLE_SIZE - 1);
+        String name;
+        while ((name = mTable[slot]) != null) {
+            if ((name.length() == length) && s.regionMatches(start, name, 0, length)) {
+                return mTableRoutes[slot];
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        return NO_ROUTE;
+    }
+
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        // spread the high bits, the table only uses the low ones
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,76 @@
+package com.jose_troche.alexadronepilot.aws_iot;
+
+import java.nio.charset.Charset;
+
+/**
+ * Answers the pings of {@link ClockSync}, as the Lambda does, for simulations on a
+ * {@link LocalMqttBroker}.
+ */
+public class TimeResponder {
+
+    private static final String CLIENT_KEY = "\"client\"";
+    private static final byte[] ID_KEY = CommandDecoder.ascii("\"id\"");
+    private static final byte[] T0_KEY = CommandDecoder.ascii("\"t0\"");
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final MqttTransport mTransport;
+    private final ClockSync.Clock mClock;
+
+    /**
+     * @param clock the clock of the publisher, the reference of the fleet
+     */
+    public TimeResponder(MqttTransport transport, ClockSync.Clock clock) {
+        mTransport = transport;
+        mClock = clock;
+    }
+
+    /**
+     * Connect and answer the pings until disconnected
+     */
+    public void start() throws Exception {
+        mTransport.connect(null, new MqttTransport.StatusCallback() {
+            @Override
+            public void onStatusChanged(int status, Throwable throwable) {
+                if (status == MqttTransport.STATUS_CONNECTED) {
+                    try {
+                        mTransport.subscribe(ClockSync.PING_TOPIC, MqttTransport.QOS_AT_MOST_ONCE, mPingCallback);
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Cannot subscribe to the pings", e);
+                    }
+                }
+            }
+        });
+    }
+
+    public void disconnect() throws Exception {
+        mTransport.disconnect();
+    }
+
+    private final MqttTransport.MessageCallback mPingCallback = new MqttTransport.MessageCallback() {
+        @Override
+        public void onMessageArrived(String topic, byte[] data) {
+            long t1 = mClock.currentTimeMillis();
+            String client = readClient(new String(data, UTF8));
+            long id = CommandDecoder.readNumber(data, ID_KEY);
+            long t0 = CommandDecoder.readNumber(data, T0_KEY);
+            if ((client == null) || (id == CommandDecoder.NO_VALUE) || (t0 == CommandDecoder.NO_VALUE)) {
+                return;
+            }
+            String payload = "{ \"id\": " + id + ", \"t0\": " + t0 + ", \"t1\": " + t1
+                    + ", \"t2\": " + mClock.currentTimeMillis() + " }";
+            try {
+                mTransport.publish(ClockSync.PONG_TOPIC_PREFIX + client, payload.getBytes(UTF8));
+            } catch (Exception e) {
+                // the client pings again
+            }
+        }
+    };
+
+    private static String readClient(String message) {
+        int key = message.indexOf(CLIENT_KEY);
+        int start = (key < 0) ? -1 : message.indexOf('"', message.indexOf(':', key) + 1);
+        int end = (start < 0) ? -1 : message.indexOf('"', start + 1);
+        return (end < 0) ? null : message.substring(start + 1, end);
+    }
+}
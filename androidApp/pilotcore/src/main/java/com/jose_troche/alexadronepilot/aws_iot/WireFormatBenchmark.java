@@ -0,0 +1,143 @@
+package com.jose_troche.alexadronepilot.aws_iot;
+
+import com.jose_troche.alexadronepilot.pilot.CommandTable;
+import com.jose_troche.alexadronepilot.pilot.Commands;
+import com.jose_troche.alexadronepilot.pilot.PackedCommand;
+import com.jose_troche.alexadronepilot.pilot.PilotRunner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line comparison of the forms of the drone messages: JSON with the spoken phrase,
+ * as older Lambdas publish it, JSON with the opcode the Lambda resolved, and {@link BinaryCommand}.
+ * Payload size and decode time of every phrase of the command vocabulary, and of every
+ * movement with a magnitude and a duration.
+ *
+ * Usage: <code>java WireFormatBenchmark [iterations]</code>
+ */
+public class WireFormatBenchmark {
+
+    private static final String COMMANDS_RESOURCE = "/LIST_OF_COMMANDS";
+    private static final String MOVEMENT_SUFFIX = " 30 percent for 2 seconds";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        CommandTable table = PilotRunner.loadCommandTable();
+
+        List<String> vocabulary = loadPhrases();
+        List<String> phrases = new ArrayList<>(vocabulary);
+        for (String phrase : vocabulary) {
+            byte[] bytes = phrase.getBytes(UTF8);
+            if (Commands.isMovement(PackedCommand.opcode(table.parse(bytes, 0, bytes.length)))) {
+                phrases.add(phrase + MOVEMENT_SUFFIX);
+            }
+        }
+
+        // as the Lambda publishes them
+        long id = 1462563000L * 0x100000L;
+        long timestamp = 1462563000000L;
+        byte[][] json = new byte[phrases.size()][];
+        byte[][] opcodes = new byte[phrases.size()][];
+        byte[][] binary = new byte[phrases.size()][];
+        for (int i = 0; i < phrases.size(); i++) {
+            String phrase = phrases.get(i);
+            String fields = ", \"id\": " + (id + i) + ", \"seq\": " + i + ", \"ts\": " + timestamp
+                    + ", \"at\": " + (timestamp + 500) + " }";
+            byte[] bytes = phrase.getBytes(UTF8);
+            long command = table.parse(bytes, 0, bytes.length);
+            json[i] = ("{ \"command\": \"" + phrase + "\"" + fields).getBytes(UTF8);
+            opcodes[i] = ("{ \"op\": " + PackedCommand.opcode(command) + ", \"mag\": "
+                    + PackedCommand.magnitude(command) + ", \"dur\": " + PackedCommand.durationMs(command)
+                    + fields).getBytes(UTF8);
+            binary[i] = BinaryCommand.encode(command, id + i, i, timestamp, timestamp + 500);
+        }
+
+        CommandDecoder decoder = new CommandDecoder(table);
+        // warm up every path before measuring any
+        for (int i = 0; i < 3; i++) {
+            measure(decoder, json, iterations);
+            measure(decoder, opcodes, iterations);
+            measure(decoder, binary, iterations);
+        }
+
+        System.out.println(String.format("%-36s %6s %6s %6s %9s %9s %9s", "phrase", "json", "op", "binary",
+                "json", "op", "binary"));
+        long jsonBytes = 0;
+        long opcodeBytes = 0;
+        long binaryBytes = 0;
+        double jsonNs = 0;
+        double opcodeNs = 0;
+        double binaryNs = 0;
+        for (int i = 0; i < phrases.size(); i++) {
+            String decoded = decode(decoder, json[i]);
+            if (!decoded.equals(decode(decoder, opcodes[i])) || !decoded.equals(decode(decoder, binary[i]))) {
+                throw new IllegalStateException("The forms differ for " + phrases.get(i));
+            }
+            double jsonCost = measure(decoder, new byte[][] {json[i]}, iterations);
+            double opcodeCost = measure(decoder, new byte[][] {opcodes[i]}, iterations);
+            double binaryCost = measure(decoder, new byte[][] {binary[i]}, iterations);
+            System.out.println(String.format("%-36s %5dB %5dB %5dB %7.1fns %7.1fns %7.1fns", phrases.get(i),
+                    json[i].length, opcodes[i].length, binary[i].length, jsonCost, opcodeCost, binaryCost));
+            jsonBytes += json[i].length;
+            opcodeBytes += opcodes[i].length;
+            binaryBytes += binary[i].length;
+            jsonNs += jsonCost;
+            opcodeNs += opcodeCost;
+            binaryNs += binaryCost;
+        }
+        int count = phrases.size();
+        System.out.println(String.format("%-36s %5dB %5dB %5dB %7.1fns %7.1fns %7.1fns", "average of " + count,
+                jsonBytes / count, opcodeBytes / count, binaryBytes / count,
+                jsonNs / count, opcodeNs / count, binaryNs / count));
+    }
+
+    // the command and every field, to check that both forms carry the same message
+    private static String decode(CommandDecoder decoder, byte[] data) {
+        long command = decoder.decode(data);
+        return command + "/" + decoder.getMessageId() + "/" + decoder.getSequence() + "/"
+                + decoder.getTimestamp() + "/" + decoder.getExecuteAt();
+    }
+
+    // average decode time, in nanoseconds
+    private static double measure(CommandDecoder decoder, byte[][] payloads, int iterations) {
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            checksum += decoder.decode(payloads[i % payloads.length]) + decoder.getExecuteAt();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (checksum == 42) {
+            // keeps the decoding from being optimized away
+            System.out.print("");
+        }
+        return (double) elapsed / iterations;
+    }
+
+    private static List<String> loadPhrases() throws IOException {
+        InputStream in = WireFormatBenchmark.class.getResourceAsStream(COMMANDS_RESOURCE);
+        if (in == null) {
+            throw new IOException("Missing command vocabulary " + COMMANDS_RESOURCE);
+        }
+        List<String> phrases = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    phrases.add(line.trim());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return phrases;
+    }
+}
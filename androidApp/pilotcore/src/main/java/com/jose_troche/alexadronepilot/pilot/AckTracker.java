@@ -0,0 +1,111 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency from a command sent to the drone to the drone reporting it, one
+ * {@link LatencyHistogram} per command opcode, all allocated up front.
+ * A MiniDrone acknowledges take off, land and emergency by its flying state, and a
+ * picture by its picture event; the PCMD values are sent without acknowledgement and
+ * flips change no state, so neither is measured. One command of each opcode is awaited
+ * at a time: sending it again before it was acknowledged measures from the last send.
+ * Sends and acknowledgements can come from any thread, the times from any monotonic
+ * clock in nanoseconds, as long as both sides use the same.
+ */
+public class AckTracker {
+
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final AtomicLongArray mSentAt = new AtomicLongArray(Commands.COUNT);
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[Commands.COUNT];
+    private final AtomicLong mResentCount = new AtomicLong();
+
+    public AckTracker() {
+        for (int command = 0; command < Commands.COUNT; command++) {
+            mSentAt.set(command, NONE);
+            mHistograms[command] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * A command went to the drone
+     * Can be called from any thread, never allocates
+     * @param command the command opcode
+     * @param nanos when it was sent
+     */
+    public void onSent(int command, long nanos) {
+        if (mSentAt.getAndSet(command, nanos) != NONE) {
+            mResentCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * The drone reported a command, measured if it was awaited
+     * Can be called from any thread, never allocates
+     * @param command the command opcode
+     * @param nanos when the report arrived
+     */
+    public void onAcked(int command, long nanos) {
+        long sentAt = mSentAt.getAndSet(command, NONE);
+        if (sentAt != NONE) {
+            mHistograms[command].recordNanos(nanos - sentAt);
+        }
+    }
+
+    /**
+     * The drone reported its flying state, which acknowledges take off, land or emergency
+     * @param state one of the FlightModel.STATE_ constants, the MiniDrone flying states
+     * @param nanos when the report arrived
+     */
+    public void onFlyingState(int state, long nanos) {
+        switch (state) {
+            case FlightModel.STATE_TAKING_OFF:
+            case FlightModel.STATE_HOVERING:
+            case FlightModel.STATE_FLYING:
+                onAcked(Commands.TAKE_OFF, nanos);
+                break;
+            case FlightModel.STATE_LANDING:
+            case FlightModel.STATE_LANDED:
+                onAcked(Commands.LAND, nanos);
+                break;
+            case FlightModel.STATE_EMERGENCY:
+                onAcked(Commands.EMERGENCY, nanos);
+                break;
+        }
+    }
+
+    /**
+     * @return the histogram of a command opcode
+     */
+    public LatencyHistogram getHistogram(int command) {
+        return mHistograms[command];
+    }
+
+    /**
+     * @return the number of commands sent again before their acknowledgement
+     */
+    public long getResentCount() {
+        return mResentCount.get();
+    }
+
+    /**
+     * Build a human readable report of p50/p99/p999 per command acknowledged
+     * Allocates, not meant for the command path.
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (int command = 0; command < Commands.COUNT; command++) {
+            if (mHistograms[command].getCount() > 0) {
+                LatencyRecorder.appendLine(sb, "ack", Commands.name(command), mHistograms[command]);
+            }
+        }
+        if (sb.length() == 0) {
+            sb.append("ack      none\n");
+        }
+        if (mResentCount.get() > 0) {
+            sb.append("ack      ").append(mResentCount.get()).append(" commands sent again before their ack\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,411 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The path of a command from its reception to a {@link DroneController}.
+ * Commands reach the control thread through a {@link CommandQueue}, where bursts of
+ * movements on the same axis collapse into the latest one, and movements are turned
+ * into fixed rate PCMD updates by a {@link PilotingScheduler}, filtered axis by axis by a
+ * {@link PcmdFilter} on their way to the drone. Land and emergency skip
+ * that queue altogether and go to the drone immediately, from the submitting thread
+ * (or first thing on the control thread, see {@link #setSharedSubmitter(boolean)}); the
+ * neutral PCMD that follows them is sent by the control thread, as every PCMD is.
+ *
+ * The pipeline does not own a thread: a {@link Loop} runs {@link #drain()},
+ * {@link #tick()} and {@link #preempted()} on the control thread when asked to.
+ * That is a Handler on Android and a {@link ControlLoop} on a plain JVM.
+ */
+public class CommandPipeline {
+
+    /**
+     * The control thread, as seen by the pipeline
+     * The requests can be made from any thread, the resulting calls to the pipeline
+     * must all happen on the control thread.
+     */
+    public interface Loop {
+        /**
+         * @return the current time in milliseconds, monotonic
+         */
+        long uptimeMillis();
+
+        /**
+         * Call {@link #drain()} as soon as possible
+         * Never called again before that drain has started
+         */
+        void requestDrain();
+
+        /**
+         * Call {@link #preempted()} before anything else that is pending
+         */
+        void requestPreempted();
+
+        /**
+         * Call {@link #tick()} at the given time, replacing any pending tick
+         * @param atMillis a time of {@link #uptimeMillis()}
+         */
+        void scheduleTick(long atMillis);
+
+        /**
+         * Drop the pending tick, if any
+         */
+        void cancelTick();
+    }
+
+    public interface Listener {
+        /**
+         * Called when commands have been sent to the drone
+         * Called in the control thread, once per drain
+         * @param command the last dispatched command opcode
+         */
+        void onCommandDispatched(int command);
+    }
+
+    public interface SendObserver {
+        /**
+         * Called right after a command has been sent to the drone
+         * Called in the control thread, or in the submitting thread for the safety lane
+         * @param command the command opcode
+         * @param receivedAt when the command was received, from {@link System#nanoTime()}
+         * @param sentAt when the command was sent, from {@link System#nanoTime()}
+         */
+        void onCommandSent(int command, long receivedAt, long sentAt);
+    }
+
+    private final DroneController mDrone;
+    private final Loop mLoop;
+    private final Listener mListener;
+
+    private final CommandQueue mCommandQueue;
+    private final LatencyRecorder mLatencyRecorder = new LatencyRecorder();
+    private final AtomicBoolean mDrainPending = new AtomicBoolean();
+    private volatile long mDrainRequestedAt;
+
+    private final PilotingScheduler mScheduler;
+    private final PcmdFilter mPcmdFilter;
+    private long mNextTickAt;
+    private long mTickNow;
+
+    // safety lane statistics, updated by any submitting thread
+    private final AtomicLong mSafetyCount = new AtomicLong();
+    private final AtomicLong mMaxSafetyLatencyNs = new AtomicLong();
+    private volatile int mLastSafetyCommand = Commands.UNKNOWN;
+    private final AtomicLong mHoldCount = new AtomicLong();
+
+    // safety commands waiting for the control thread, when the submitting thread is shared:
+    // every one of them is kept, in order, none replaces another
+    private static final int SAFETY_QUEUE_CAPACITY = 8;
+    private volatile boolean mSharedSubmitter;
+    private final CommandQueue mSafetyQueue = new CommandQueue(SAFETY_QUEUE_CAPACITY);
+
+    private volatile SendObserver mSendObserver;
+
+    // wait of the drain requests on the control thread, only touched by the control thread
+    private long mDrainCount;
+    private long mDispatchedCount;
+    private long mTotalDrainLatencyNs;
+    private long mMaxDrainLatencyNs;
+
+    public CommandPipeline(DroneController drone, Loop loop, Listener listener) {
+        this(drone, loop, listener, CommandQueue.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param queueCapacity size of the ring of ordered commands, see {@link CommandQueue}
+     */
+    public CommandPipeline(DroneController drone, Loop loop, Listener listener, int queueCapacity) {
+        mDrone = drone;
+        mLoop = loop;
+        mListener = listener;
+        mCommandQueue = new CommandQueue(queueCapacity);
+        mScheduler = new PilotingScheduler(mPcmdOutput);
+        mPcmdFilter = new PcmdFilter(drone);
+    }
+
+    /**
+     * Tell whether the submitting thread also feeds other drones, as in a {@link DronePool}.
+     * A shared submitting thread must not be held up by one drone: safety commands then
+     * run first thing on the control thread instead of the submitting thread, every one of
+     * them in order, and a take off that finds the queue full is parked rather than waiting
+     * in the submitting thread (see {@link CommandQueue#offer(long, long, boolean)}).
+     */
+    public void setSharedSubmitter(boolean shared) {
+        mSharedSubmitter = shared;
+    }
+
+    /**
+     * @param observer informed of every command sent to the drone, null for none
+     */
+    public void setSendObserver(SendObserver observer) {
+        mSendObserver = observer;
+    }
+
+    /**
+     * Queue a command for the drone
+     * Can be called from any thread
+     * @param command the command, packed as a {@link PackedCommand}
+     * @param receivedAt when the command was received, from {@link System#nanoTime()}
+     */
+    public void submit(long command, long receivedAt) {
+        if (Commands.isSafety(PackedCommand.opcode(command))) {
+            mCommandQueue.clearMovements();
+            if (mSharedSubmitter) {
+                // never full for good: a safety command parks rather than being dropped
+                mSafetyQueue.offer(command, receivedAt, false);
+            } else {
+                sendSafety(command, receivedAt);
+            }
+            // the control thread drops its axis targets before anything else it has queued
+            mLoop.requestPreempted();
+            return;
+        }
+
+        mCommandQueue.offer(command, receivedAt, !mSharedSubmitter);
+        // a single drain is pending at any time, however many commands arrive
+        if (mDrainPending.compareAndSet(false, true)) {
+            mDrainRequestedAt = System.nanoTime();
+            mLoop.requestDrain();
+        }
+    }
+
+    /**
+     * Stop every movement and hover in place, as when the commands stop coming: the queued
+     * movements are dropped and the axes go back to neutral
+     * Can be called from any thread
+     */
+    public void hold() {
+        mCommandQueue.clearMovements();
+        mHoldCount.incrementAndGet();
+        mLoop.requestPreempted();
+    }
+
+    /**
+     * Safety lane: send a land or emergency command to the drone right away instead of
+     * queueing it behind other commands. The piloting axes go back to neutral at the
+     * following {@link #preempted()}, through the PcmdFilter, which never defers a 0.
+     */
+    private void sendSafety(long command, long receivedAt) {
+        long start = System.nanoTime();
+        int opcode = PackedCommand.opcode(command);
+        mLatencyRecorder.record(LatencyRecorder.STAGE_DISPATCH, opcode, start - receivedAt);
+
+        if (opcode == Commands.EMERGENCY) {
+            mDrone.emergency();
+        } else {
+            mDrone.land();
+        }
+
+        long sentAt = System.nanoTime();
+        mLatencyRecorder.record(LatencyRecorder.STAGE_SEND, opcode, sentAt - receivedAt);
+        long latency = sentAt - start;
+        mSafetyCount.incrementAndGet();
+        long max;
+        while (latency > (max = mMaxSafetyLatencyNs.get())) {
+            if (mMaxSafetyLatencyNs.compareAndSet(max, latency)) {
+                break;
+            }
+        }
+        mLastSafetyCommand = opcode;
+
+        SendObserver observer = mSendObserver;
+        if (observer != null) {
+            observer.onCommandSent(opcode, receivedAt, sentAt);
+        }
+    }
+
+    /**
+     * Dispatch every queued command
+     * Called in the control thread
+     */
+    public void drain() {
+        // clear the flag first, a command offered from now on requests a new drain
+        mDrainPending.set(false);
+
+        long latency = System.nanoTime() - mDrainRequestedAt;
+        mDrainCount++;
+        mTotalDrainLatencyNs += latency;
+        if (latency > mMaxDrainLatencyNs) {
+            mMaxDrainLatencyNs = latency;
+        }
+
+        int lastOpcode = Commands.UNKNOWN;
+        long command;
+        while ((command = mCommandQueue.poll()) != PackedCommand.NONE) {
+            long receivedAt = mCommandQueue.getPolledReceivedAt();
+            lastOpcode = PackedCommand.opcode(command);
+            mLatencyRecorder.record(LatencyRecorder.STAGE_DISPATCH, lastOpcode, System.nanoTime() - receivedAt);
+
+            dispatch(command);
+
+            long sentAt = System.nanoTime();
+            mLatencyRecorder.record(LatencyRecorder.STAGE_SEND, lastOpcode, sentAt - receivedAt);
+            mDispatchedCount++;
+            SendObserver observer = mSendObserver;
+            if (observer != null) {
+                observer.onCommandSent(lastOpcode, receivedAt, sentAt);
+            }
+        }
+        if (lastOpcode != Commands.UNKNOWN) {
+            mListener.onCommandDispatched(lastOpcode);
+        }
+    }
+
+    /**
+     * Send the next PCMD update
+     * Called in the control thread
+     */
+    public void tick() {
+        tick(mLoop.uptimeMillis(), mNextTickAt);
+    }
+
+    /**
+     * Send the pending safety commands, if any, and forget the axis targets after a land
+     * or emergency went through the safety lane, or a {@link #hold()}
+     * Called in the control thread
+     */
+    public void preempted() {
+        long safety;
+        while ((safety = mSafetyQueue.poll()) != PackedCommand.NONE) {
+            sendSafety(safety, mSafetyQueue.getPolledReceivedAt());
+        }
+
+        long now = mLoop.uptimeMillis();
+        mScheduler.clear();
+        mLoop.cancelTick();
+        tick(now, now);
+
+        // a hold alone has nothing to show
+        int lastSafetyCommand = mLastSafetyCommand;
+        mLastSafetyCommand = Commands.UNKNOWN;
+        if (lastSafetyCommand != Commands.UNKNOWN) {
+            mListener.onCommandDispatched(lastSafetyCommand);
+        }
+    }
+
+    private void dispatch(long command) {
+        int opcode = PackedCommand.opcode(command);
+        if (Commands.isMovement(opcode)) {
+            setAxis(PilotingScheduler.axisOf(opcode),
+                    PilotingScheduler.directionOf(opcode) * PackedCommand.magnitude(command),
+                    PackedCommand.durationMs(command));
+            return;
+        }
+
+        switch (opcode) {
+            case Commands.TAKE_OFF:
+                mDrone.takeOff();
+                break;
+
+            case Commands.FLIP:
+                mDrone.flip();
+                break;
+
+            case Commands.PICTURE:
+                mDrone.takePicture();
+                break;
+        }
+    }
+
+    private void setAxis(int axis, int pct, long duration) {
+        long now = mLoop.uptimeMillis();
+        mScheduler.setAxis(axis, pct, now, duration);
+
+        // apply the new value right away and restart the tick loop from now
+        mLoop.cancelTick();
+        tick(now, now);
+    }
+
+    private void tick(long now, long scheduledAt) {
+        mTickNow = now;
+        boolean active = mScheduler.tick(now, scheduledAt);
+        // the values deferred by the filter go out at the following ticks
+        if (mPcmdFilter.flush(now) || active) {
+            mNextTickAt = scheduledAt + PilotingScheduler.TICK_PERIOD_MS;
+            // never try to catch up missed ticks, it would only burst stale updates
+            if (mNextTickAt <= now) {
+                mNextTickAt = now + PilotingScheduler.TICK_PERIOD_MS;
+            }
+            mLoop.scheduleTick(mNextTickAt);
+        }
+    }
+
+    /**
+     * @return the latencies of the commands, from their reception to the drone
+     */
+    public LatencyRecorder getLatencyRecorder() {
+        return mLatencyRecorder;
+    }
+
+    public CommandQueue getCommandQueue() {
+        return mCommandQueue;
+    }
+
+    public PilotingScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    public PcmdFilter getPcmdFilter() {
+        return mPcmdFilter;
+    }
+
+    /**
+     * @return the number of commands sent to the drone by the control thread
+     */
+    public long getDispatchedCount() {
+        return mDispatchedCount;
+    }
+
+    /**
+     * @return the number of land and emergency commands sent through the safety lane
+     */
+    public long getSafetyCount() {
+        return mSafetyCount.get();
+    }
+
+    /**
+     * @return the statistics of the pipeline, one line per topic
+     * Should be called in the control thread, or once it has stopped
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        if (mDrainCount > 0) {
+            sb.append("Dispatched ").append(mDispatchedCount).append(" commands in ").append(mDrainCount)
+                    .append(" drains, drain latency avg ").append(mTotalDrainLatencyNs / mDrainCount / 1000)
+                    .append(" us, max ").append(mMaxDrainLatencyNs / 1000).append(" us\n");
+        }
+        sb.append("Command queue: offered ").append(mCommandQueue.getOfferedCount())
+                .append(", merged ").append(mCommandQueue.getMergedCount())
+                .append(", dropped ").append(mCommandQueue.getDroppedCount())
+                .append(", blocked ").append(mCommandQueue.getBlockedCount())
+                .append(", flushed ").append(mCommandQueue.getFlushedCount()).append('\n');
+        if (mSafetyCount.get() > 0) {
+            sb.append("Safety lane: ").append(mSafetyCount.get()).append(" commands, worst latency ")
+                    .append(mMaxSafetyLatencyNs.get() / 1000).append(" us\n");
+        }
+        if (mHoldCount.get() > 0) {
+            sb.append("Held position ").append(mHoldCount.get()).append(" times\n");
+        }
+        if (mScheduler.getTickCount() > 0) {
+            sb.append("PCMD ticks ").append(mScheduler.getTickCount())
+                    .append(", jitter avg ").append(mScheduler.getAverageJitterMs())
+                    .append(" ms, p99 ").append(mScheduler.getJitterHistogram().getValueAtPercentile(99) / 1000)
+                    .append(" ms, max ").append(mScheduler.getMaxJitterMs())
+                    .append(" ms, late ").append(mScheduler.getLateTickCount()).append('\n');
+        }
+        if (mPcmdFilter.getSentCount() + mPcmdFilter.getSuppressedCount() > 0) {
+            sb.append("PCMD values sent ").append(mPcmdFilter.getSentCount())
+                    .append(", suppressed ").append(mPcmdFilter.getSuppressedCount())
+                    .append(", deferred ").append(mPcmdFilter.getDeferredCount()).append('\n');
+        }
+        sb.append("Command latency:\n").append(mLatencyRecorder.report());
+        return sb.toString();
+    }
+
+    private final PilotingScheduler.Output mPcmdOutput = new PilotingScheduler.Output() {
+        @Override
+        public void onPcmd(byte roll, byte pitch, byte yaw, byte gaz, byte flag) {
+            mPcmdFilter.offer(roll, pitch, yaw, gaz, flag, mTickNow);
+        }
+    };
+}
@@ -0,0 +1,286 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, lock-free queue of {@link PackedCommand}s between the threads that
+ * receive commands (any number of producers) and the control thread (the single
+ * consumer).
+ * Movement commands are not queued: each axis has a single latest-wins slot, so a
+ * burst of "forward forward forward" collapses into the last one. Other commands
+ * keep their order in a bounded ring. When the ring is full, flip and picture are
+ * dropped while the critical commands (take off, land, emergency) make the producer
+ * wait for room, they are never coalesced or dropped. A producer that cannot wait
+ * parks its critical command instead, behind the ones parked before it: a parked
+ * command is polled in its place in the order once the commands ahead of it are out of
+ * the ring. The parked commands sit in arrays that only grow, on an overflow.
+ * Each command travels with the time it was received, for latency measurements.
+ */
+public class CommandQueue {
+
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private final int mMask;
+    private final long[] mRing;
+    private final long[] mRingTimes;
+    // Vyukov style sequences: a slot is writable at position p when its sequence is p,
+    // and readable when it is p + 1
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mTail = new AtomicLong();
+    private long mHead; // only touched by the consumer
+    private long mPolledReceivedAt; // only touched by the consumer
+
+    // the critical commands that found the ring full, in order, with the ring position
+    // each one comes before: a circular buffer guarded by the queue
+    private static final int PARKED_CAPACITY = 4;
+    private long[] mParked = new long[PARKED_CAPACITY];
+    private long[] mParkedPositions = new long[PARKED_CAPACITY];
+    private long[] mParkedTimes = new long[PARKED_CAPACITY];
+    private int mParkedHead;
+    // written under the queue lock, read without it by the consumer
+    private volatile int mParkedSize;
+
+    private final AtomicLongArray mAxisSlots = new AtomicLongArray(PilotingScheduler.AXIS_COUNT);
+    // written before the slot itself, a racing producer may pair a command with a
+    // slightly newer time, which is fine for statistics
+    private final AtomicLongArray mAxisTimes = new AtomicLongArray(PilotingScheduler.AXIS_COUNT);
+
+    private final AtomicLong mOfferedCount = new AtomicLong();
+    private final AtomicLong mMergedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mBlockedCount = new AtomicLong();
+    private final AtomicLong mFlushedCount = new AtomicLong();
+
+    public CommandQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity size of the ring of ordered commands, rounded up to a power of two
+     */
+    public CommandQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mMask = size - 1;
+        mRing = new long[size];
+        mRingTimes = new long[size];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    /**
+     * Queue a command
+     * Can be called from any thread. Blocks (spinning) only when the ring is full
+     * and the command is critical.
+     * @param command the command, packed as a {@link PackedCommand}
+     * @param receivedAt when the command was received, from {@link System#nanoTime()}
+     * @return false if the command has been dropped
+     */
+    public boolean offer(long command, long receivedAt) {
+        return offer(command, receivedAt, true);
+    }
+
+    /**
+     * Queue a command
+     * Can be called from any thread.
+     * @param command the command, packed as a {@link PackedCommand}
+     * @param receivedAt when the command was received, from {@link System#nanoTime()}
+     * @param waitForCritical true to wait (spinning) for room when the ring is full and the
+     *                        command is critical, false to park it
+     * @return false if the command has been dropped
+     */
+    public boolean offer(long command, long receivedAt, boolean waitForCritical) {
+        mOfferedCount.incrementAndGet();
+        int opcode = PackedCommand.opcode(command);
+
+        int axis = PilotingScheduler.axisOf(opcode);
+        if (axis >= 0) {
+            mAxisTimes.lazySet(axis, receivedAt);
+            if (mAxisSlots.getAndSet(axis, command) != PackedCommand.NONE) {
+                mMergedCount.incrementAndGet();
+            }
+            return true;
+        }
+
+        if (tryEnqueue(command, receivedAt)) {
+            return true;
+        }
+
+        if (!Commands.isCritical(opcode)) {
+            mDroppedCount.incrementAndGet();
+            return false;
+        }
+
+        mBlockedCount.incrementAndGet();
+        if (!waitForCritical) {
+            park(command, receivedAt);
+            return true;
+        }
+        while (!tryEnqueue(command, receivedAt)) {
+            Thread.yield();
+        }
+        return true;
+    }
+
+    /**
+     * Take the next command
+     * Must only be called from the consumer thread. Ordered commands come first,
+     * then the pending movement of each axis.
+     * The reception time of the command is then given by {@link #getPolledReceivedAt()}.
+     * @return the command, {@link PackedCommand#NONE} if the queue is empty
+     */
+    public long poll() {
+        if (mParkedSize > 0) {
+            long parked = pollParked();
+            if (parked != PackedCommand.NONE) {
+                return parked;
+            }
+        }
+
+        int index = (int) (mHead & mMask);
+        if (mSequences.get(index) == mHead + 1) {
+            long command = mRing[index];
+            mPolledReceivedAt = mRingTimes[index];
+            mSequences.lazySet(index, mHead + mMask + 1);
+            mHead++;
+            return command;
+        }
+
+        for (int axis = 0; axis < PilotingScheduler.AXIS_COUNT; axis++) {
+            if (mAxisSlots.get(axis) != PackedCommand.NONE) {
+                long command = mAxisSlots.getAndSet(axis, PackedCommand.NONE);
+                if (command != PackedCommand.NONE) {
+                    mPolledReceivedAt = mAxisTimes.get(axis);
+                    return command;
+                }
+            }
+        }
+        return PackedCommand.NONE;
+    }
+
+    /**
+     * Must only be called from the consumer thread
+     * @return the reception time of the last command returned by {@link #poll()}
+     */
+    public long getPolledReceivedAt() {
+        return mPolledReceivedAt;
+    }
+
+    /**
+     * Drop the pending movement of every axis
+     * Can be called from any thread, used when a safety command preempts the queue.
+     */
+    public void clearMovements() {
+        for (int axis = 0; axis < PilotingScheduler.AXIS_COUNT; axis++) {
+            if (mAxisSlots.getAndSet(axis, PackedCommand.NONE) != PackedCommand.NONE) {
+                mFlushedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return an estimate of the number of pending commands
+     */
+    public int size() {
+        int size = (int) Math.max(0, mTail.get() - mHead) + mParkedSize;
+        for (int axis = 0; axis < PilotingScheduler.AXIS_COUNT; axis++) {
+            if (mAxisSlots.get(axis) != PackedCommand.NONE) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    public long getOfferedCount() {
+        return mOfferedCount.get();
+    }
+
+    /**
+     * @return the number of movement commands replaced by a newer one on the same axis
+     */
+    public long getMergedCount() {
+        return mMergedCount.get();
+    }
+
+    /**
+     * @return the number of commands dropped because the ring was full
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * @return the number of critical commands that had to wait for room in the ring, or
+     *          were parked
+     */
+    public long getBlockedCount() {
+        return mBlockedCount.get();
+    }
+
+    /**
+     * @return the number of pending movements dropped by {@link #clearMovements()}
+     */
+    public long getFlushedCount() {
+        return mFlushedCount.get();
+    }
+
+    // leave a critical command behind the commands already in the ring and the ones parked
+    private synchronized void park(long command, long receivedAt) {
+        int size = mParkedSize;
+        if (size == mParked.length) {
+            mParked = unroll(mParked, size);
+            mParkedPositions = unroll(mParkedPositions, size);
+            mParkedTimes = unroll(mParkedTimes, size);
+            mParkedHead = 0;
+        }
+        int index = (mParkedHead + size) % mParked.length;
+        mParked[index] = command;
+        mParkedPositions[index] = mTail.get();
+        mParkedTimes[index] = receivedAt;
+        mParkedSize = size + 1;
+    }
+
+    // the first parked command once the commands ahead of it are out of the ring
+    private synchronized long pollParked() {
+        if ((mParkedSize == 0) || (mHead < mParkedPositions[mParkedHead])) {
+            return PackedCommand.NONE;
+        }
+        long command = mParked[mParkedHead];
+        mPolledReceivedAt = mParkedTimes[mParkedHead];
+        mParkedHead = (mParkedHead + 1) % mParked.length;
+        mParkedSize--;
+        return command;
+    }
+
+    // a full circular buffer, in order, in an array twice as large
+    private long[] unroll(long[] buffer, int size) {
+        long[] larger = new long[buffer.length * 2];
+        for (int i = 0; i < size; i++) {
+            larger[i] = buffer[(mParkedHead + i) % buffer.length];
+        }
+        return larger;
+    }
+
+    private boolean tryEnqueue(long command, long receivedAt) {
+        long position = mTail.get();
+        while (true) {
+            int index = (int) (position & mMask);
+            long difference = mSequences.get(index) - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    mRing[index] = command;
+                    mRingTimes[index] = receivedAt;
+                    mSequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = mTail.get();
+            } else if (difference < 0) {
+                return false; // full
+            } else {
+                position = mTail.get();
+            }
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The command vocabulary compiled into a byte trie.
+ * The table is built once at startup from the phrases of the Alexa
+ * LIST_OF_COMMANDS slot type. Each phrase resolves to an opcode either by
+ * being a canonical command name ("spin left") or by being a verb followed
+ * by one ("go up", "take picture").
+ * Parsing a command only walks the trie and never allocates. After the
+ * phrase, an optional magnitude and duration may follow, as in
+ * "up 30 percent for 2 seconds". A magnitude over {@link PackedCommand#MAX_MAGNITUDE} percent
+ * or a duration over {@link PackedCommand#MAX_DURATION_MS} rejects the whole command, as the
+ * CommandDecoder rejects them in a message: neither is ever capped.
+ */
+public final class CommandTable {
+
+    // verbs that may precede a canonical command name in a spoken phrase
+    private static final String[] VERBS = {"go", "fly", "take"};
+
+    // trie alphabet: 'a' to 'z' then the (collapsed) blank
+    private static final int ALPHABET = 27;
+    private static final int BLANK_INDEX = 26;
+
+    // the words of the parameters, also generated into the Lambda by InteractionModelGenerator
+    static final String[] PERCENT_WORDS = {"percent", "pct"};
+    static final String[] SECOND_WORDS = {"seconds", "second", "sec"};
+    static final String[] MILLISECOND_WORDS = {"milliseconds", "millisecond", "ms"};
+    static final String[] FILLERS = {"for", "at", "and"};
+    static final String[] UNITS = {
+            "zero", "one", "two", "three", "four", "five", "six", "seven", "eight", "nine",
+            "ten", "eleven", "twelve", "thirteen", "fourteen", "fifteen", "sixteen", "seventeen", "eighteen", "nineteen"
+    };
+    static final String[] TENS = {
+            null, null, "twenty", "thirty", "forty", "fifty", "sixty", "seventy", "eighty", "ninety"
+    };
+    static final String HUNDRED = "hundred";
+
+    private static final byte[][] PERCENT_BYTES = ascii(PERCENT_WORDS);
+    private static final byte[][] SECOND_BYTES = ascii(SECOND_WORDS);
+    private static final byte[][] MILLISECOND_BYTES = ascii(MILLISECOND_WORDS);
+    private static final byte[][] FILLER_BYTES = ascii(FILLERS);
+    private static final byte[][] UNIT_BYTES = ascii(UNITS);
+    private static final byte[][] TENS_BYTES = ascii(TENS);
+    private static final byte[] HUNDRED_BYTES = ascii(HUNDRED);
+
+    private final int[] mTransitions;
+    private final int[] mOpcodes;
+
+    private CommandTable(int[] transitions, int[] opcodes) {
+        mTransitions = transitions;
+        mOpcodes = opcodes;
+    }
+
+    /**
+     * Compile the table from a slot type file, one phrase per line
+     * @param in the content of LIST_OF_COMMANDS
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if a phrase does not resolve to a command
+     */
+    public static CommandTable compile(InputStream in) throws IOException {
+        List<String> phrases = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    phrases.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return compile(phrases);
+    }
+
+    /**
+     * Compile the table from a list of phrases
+     * @throws IllegalArgumentException if a phrase does not resolve to a command
+     */
+    public static CommandTable compile(List<String> phrases) {
+        List<String> normalized = new ArrayList<>(phrases.size());
+        int maxNodes = 1;
+        for (String phrase : phrases) {
+            String p = normalize(phrase);
+            normalized.add(p);
+            maxNodes += p.length();
+        }
+
+        int[] transitions = new int[maxNodes * ALPHABET];
+        int[] opcodes = new int[maxNodes];
+        int nodeCount = 1;
+
+        for (String phrase : normalized) {
+            int opcode = resolve(phrase);
+            if (opcode == Commands.UNKNOWN) {
+                throw new IllegalArgumentException("Phrase does not resolve to a command: " + phrase);
+            }
+
+            int node = 0;
+            for (int i = 0; i < phrase.length(); i++) {
+                int index = indexOf((byte) phrase.charAt(i));
+                if (index < 0) {
+                    throw new IllegalArgumentException("Unsupported character in phrase: " + phrase);
+                }
+                int slot = node * ALPHABET + index;
+                if (transitions[slot] == 0) {
+                    transitions[slot] = nodeCount++;
+                }
+                node = transitions[slot];
+            }
+            opcodes[node] = opcode;
+        }
+
+        int[] compactTransitions = new int[nodeCount * ALPHABET];
+        System.arraycopy(transitions, 0, compactTransitions, 0, compactTransitions.length);
+        int[] compactOpcodes = new int[nodeCount];
+        System.arraycopy(opcodes, 0, compactOpcodes, 0, nodeCount);
+        return new CommandTable(compactTransitions, compactOpcodes);
+    }
+
+    /**
+     * @return a phrase of the slot type in lower case, its blanks collapsed
+     */
+    static String normalize(String phrase) {
+        return phrase.trim().toLowerCase(Locale.US).replaceAll("\\s+", " ");
+    }
+
+    /**
+     * @param phrase a normalized phrase
+     * @return the opcode of the phrase, a canonical command name possibly after a verb,
+     *          {@link Commands#UNKNOWN} if it is neither
+     */
+    static int resolve(String phrase) {
+        int opcode = Commands.forName(phrase);
+        if (opcode == Commands.UNKNOWN) {
+            for (String verb : VERBS) {
+                if (phrase.startsWith(verb + " ")) {
+                    opcode = Commands.forName(phrase.substring(verb.length() + 1));
+                    break;
+                }
+            }
+        }
+        return opcode;
+    }
+
+    /**
+     * Parse a spoken command
+     * The text is matched ignoring case, surrounding blanks and repeated inner blanks.
+     * @param data the bytes holding the command text
+     * @param start index of the first byte of the text
+     * @param end index after the last byte of the text
+     * @return the {@link PackedCommand}, {@link PackedCommand#NONE} if the text is not a valid command
+     */
+    public long parse(byte[] data, int start, int end) {
+        int i = skipBlanks(data, start, end);
+        int node = 0;
+        int opcode = Commands.UNKNOWN;
+        int phraseEnd = -1;
+
+        // longest phrase of the trie ending on a word boundary
+        while (i < end) {
+            int index;
+            if (isBlank(data[i])) {
+                i = skipBlanks(data, i, end);
+                if (i == end) {
+                    break;
+                }
+                index = BLANK_INDEX;
+            } else {
+                index = indexOf(toLower(data[i]));
+                i++;
+            }
+            if (index < 0) {
+                break;
+            }
+
+            node = mTransitions[node * ALPHABET + index];
+            if (node == 0) {
+                break;
+            }
+            if ((mOpcodes[node] != Commands.UNKNOWN) && ((i == end) || isBlank(data[i]))) {
+                opcode = mOpcodes[node];
+                phraseEnd = i;
+            }
+        }
+
+        if (opcode == Commands.UNKNOWN) {
+            return PackedCommand.NONE;
+        }
+        return parseParameters(opcode, data, phraseEnd, end);
+    }
+
+    private static long parseParameters(int opcode, byte[] data, int start, int end) {
+        int magnitude = PackedCommand.DEFAULT_MAGNITUDE;
+        long duration = PackedCommand.DEFAULT_DURATION_MS;
+
+        int i = skipBlanks(data, start, end);
+        if ((i < end) && !Commands.isMovement(opcode)) {
+            return PackedCommand.NONE;
+        }
+
+        while (i < end) {
+            int wordEnd = wordEnd(data, i, end);
+            if (isWordOf(data, i, wordEnd, FILLER_BYTES)) {
+                i = skipBlanks(data, wordEnd, end);
+                continue;
+            }
+
+            // a number, either digits ("30", "30%") or words ("thirty five")
+            long number;
+            boolean percentSign = false;
+            if (isDigit(data[i])) {
+                number = 0;
+                int j = i;
+                // past every range, the digits left make the word, and the command, invalid
+                while ((j < wordEnd) && isDigit(data[j]) && (number <= PackedCommand.MAX_DURATION_MS)) {
+                    number = number * 10 + (data[j] - '0');
+                    j++;
+                }
+                if ((j == wordEnd - 1) && (data[j] == '%')) {
+                    percentSign = true;
+                } else if (j != wordEnd) {
+                    return PackedCommand.NONE;
+                }
+                i = skipBlanks(data, wordEnd, end);
+            } else {
+                number = -1;
+                int total = 0;
+                while (i < end) {
+                    int we = wordEnd(data, i, end);
+                    int value = numberWord(data, i, we);
+                    if (value < 0) {
+                        break;
+                    }
+                    if (value == 100) {
+                        total = ((total == 0) ? 1 : total) * 100;
+                    } else {
+                        total += value;
+                    }
+                    // "hundred hundred..." overflows, no value in range is that long
+                    if (total > PackedCommand.MAX_DURATION_MS) {
+                        return PackedCommand.NONE;
+                    }
+                    number = total;
+                    i = skipBlanks(data, we, end);
+                }
+                if (number < 0) {
+                    return PackedCommand.NONE;
+                }
+            }
+
+            if (percentSign) {
+                if (number > PackedCommand.MAX_MAGNITUDE) {
+                    return PackedCommand.NONE;
+                }
+                magnitude = (int) number;
+                continue;
+            }
+            if (i >= end) {
+                return PackedCommand.NONE; // a number without unit
+            }
+
+            int unitEnd = wordEnd(data, i, end);
+            if (isWordOf(data, i, unitEnd, PERCENT_BYTES) || ((unitEnd - i == 1) && (data[i] == '%'))) {
+                if (number > PackedCommand.MAX_MAGNITUDE) {
+                    return PackedCommand.NONE;
+                }
+                magnitude = (int) number;
+            } else if (isWordOf(data, i, unitEnd, SECOND_BYTES)) {
+                if (number * 1000 > PackedCommand.MAX_DURATION_MS) {
+                    return PackedCommand.NONE;
+                }
+                duration = number * 1000;
+            } else if (isWordOf(data, i, unitEnd, MILLISECOND_BYTES)) {
+                if (number > PackedCommand.MAX_DURATION_MS) {
+                    return PackedCommand.NONE;
+                }
+                duration = number;
+            } else {
+                return PackedCommand.NONE;
+            }
+            i = skipBlanks(data, unitEnd, end);
+        }
+
+        return PackedCommand.pack(opcode, magnitude, duration);
+    }
+
+    private static boolean isWordOf(byte[] data, int start, int end, byte[][] words) {
+        for (byte[] word : words) {
+            if (wordEquals(data, start, end, word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the value of a number word, -1 if the word is not a number
+     */
+    private static int numberWord(byte[] data, int start, int end) {
+        for (int n = 0; n < UNIT_BYTES.length; n++) {
+            if (wordEquals(data, start, end, UNIT_BYTES[n])) {
+                return n;
+            }
+        }
+        for (int n = 2; n < TENS_BYTES.length; n++) {
+            if (wordEquals(data, start, end, TENS_BYTES[n])) {
+                return n * 10;
+            }
+        }
+        if (wordEquals(data, start, end, HUNDRED_BYTES)) {
+            return 100;
+        }
+        return -1;
+    }
+
+    private static boolean wordEquals(byte[] data, int start, int end, byte[] word) {
+        if (end - start != word.length) {
+            return false;
+        }
+        for (int k = 0; k < word.length; k++) {
+            if (toLower(data[start + k]) != word[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int wordEnd(byte[] data, int start, int end) {
+        int i = start;
+        while ((i < end) && !isBlank(data[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int indexOf(byte c) {
+        if ((c >= 'a') && (c <= 'z')) {
+            return c - 'a';
+        }
+        return (c == ' ') ? BLANK_INDEX : -1;
+    }
+
+    private static int skipBlanks(byte[] data, int start, int end) {
+        int i = start;
+        while ((i < end) && isBlank(data[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isBlank(byte b) {
+        return (b == ' ') || (b == '\t') || (b == '\n') || (b == '\r');
+    }
+
+    private static boolean isDigit(byte b) {
+        return (b >= '0') && (b <= '9');
+    }
+
+    private static byte toLower(byte b) {
+        return ((b >= 'A') && (b <= 'Z')) ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static byte[][] ascii(String[] words) {
+        byte[][] bytes = new byte[words.length][];
+        for (int i = 0; i < words.length; i++) {
+            bytes[i] = (words[i] != null) ? ascii(words[i]) : null;
+        }
+        return bytes;
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,176 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Holds commands until their execution time, then hands them to a {@link Target},
+ * so that the drones of a fleet flown from several devices execute a command together.
+ * Runs its own thread, parked until the next command is due. The pending commands sit
+ * in fixed arrays ordered by execution time, commands due at the same time keep their
+ * arrival order: nothing is allocated per command.
+ * Land and emergency are never held: they cancel the pending commands and go at once.
+ * A due command and a land or emergency are handed over under the same lock, so the
+ * land or emergency comes after the commands already due and cancels all the others.
+ */
+public class CommandTimer implements Runnable {
+
+    // more pending commands than this and the earliest one goes without waiting
+    private static final int CAPACITY = 32;
+
+    public interface Target {
+        /**
+         * Called on the timer thread when a command is due, or on the scheduling
+         * thread for a land or an emergency
+         * @param command the command, packed as a {@link PackedCommand}
+         * @param receivedAt when the command was received, from {@link System#nanoTime()}
+         */
+        void submit(long command, long receivedAt);
+    }
+
+    private final Target mTarget;
+    private final Thread mThread;
+
+    // held while handing a command to the target, then while cancelling for a land or emergency
+    private final Object mSubmitLock = new Object();
+
+    // guarded by the timer
+    private final long[] mCommands = new long[CAPACITY];
+    private final long[] mReceivedAt = new long[CAPACITY];
+    private final long[] mExecuteAt = new long[CAPACITY];
+    private int mSize;
+    private long mHeldCount;
+    private long mEarlyCount;
+    private long mCancelledCount;
+
+    private volatile boolean mRunning;
+
+    public CommandTimer(String name, Target target) {
+        mTarget = target;
+        mThread = new Thread(this, name);
+        mThread.setDaemon(true);
+        mThread.setPriority(Thread.MAX_PRIORITY);
+    }
+
+    public void start() {
+        mRunning = true;
+        mThread.start();
+    }
+
+    /**
+     * Stop the timer thread and wait for it to end
+     * Pending commands are dropped
+     */
+    public void quit() throws InterruptedException {
+        mRunning = false;
+        LockSupport.unpark(mThread);
+        mThread.join();
+    }
+
+    /**
+     * Hand a command to the target at the given time
+     * Can be called from any thread
+     * @param command the command, packed as a {@link PackedCommand}
+     * @param receivedAt when the command was received, from {@link System#nanoTime()}
+     * @param executeAt when the command should be executed, from {@link System#nanoTime()}
+     */
+    public void schedule(long command, long receivedAt, long executeAt) {
+        if (Commands.isSafety(PackedCommand.opcode(command))) {
+            synchronized (mSubmitLock) {
+                cancel();
+                mTarget.submit(command, receivedAt);
+            }
+            return;
+        }
+
+        boolean wakeUp;
+        synchronized (mSubmitLock) {
+            long earlyCommand = PackedCommand.NONE;
+            long earlyReceivedAt = 0;
+            synchronized (this) {
+                if (mSize == CAPACITY) {
+                    earlyCommand = mCommands[0];
+                    earlyReceivedAt = mReceivedAt[0];
+                    removeFirst();
+                    mEarlyCount++;
+                }
+                int i = mSize;
+                while ((i > 0) && (mExecuteAt[i - 1] - executeAt > 0)) {
+                    mCommands[i] = mCommands[i - 1];
+                    mReceivedAt[i] = mReceivedAt[i - 1];
+                    mExecuteAt[i] = mExecuteAt[i - 1];
+                    i--;
+                }
+                mCommands[i] = command;
+                mReceivedAt[i] = receivedAt;
+                mExecuteAt[i] = executeAt;
+                mSize++;
+                mHeldCount++;
+                wakeUp = (i == 0);
+            }
+            if (earlyCommand != PackedCommand.NONE) {
+                mTarget.submit(earlyCommand, earlyReceivedAt);
+            }
+        }
+        if (wakeUp) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    /**
+     * Drop the pending commands
+     * Can be called from any thread
+     */
+    public synchronized void cancel() {
+        mCancelledCount += mSize;
+        mSize = 0;
+    }
+
+    /**
+     * @return the commands held, the lands and emergencies apart; cancelled ones, and ones sent early
+     *          because too many were pending
+     */
+    public synchronized String report() {
+        return "Timer: held " + mHeldCount + ", cancelled " + mCancelledCount + ", sent early " + mEarlyCount;
+    }
+
+    @Override
+    public void run() {
+        while (mRunning) {
+            long command = PackedCommand.NONE;
+            long wait = 0;
+            synchronized (mSubmitLock) {
+                long receivedAt = 0;
+                synchronized (this) {
+                    if (mSize > 0) {
+                        wait = mExecuteAt[0] - System.nanoTime();
+                        if (wait <= 0) {
+                            command = mCommands[0];
+                            receivedAt = mReceivedAt[0];
+                            removeFirst();
+                        }
+                    }
+                }
+                // before a land or emergency cancels what is still pending
+                if (command != PackedCommand.NONE) {
+                    mTarget.submit(command, receivedAt);
+                }
+            }
+            if (command != PackedCommand.NONE) {
+                continue;
+            }
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    // guarded by the timer
+    private void removeFirst() {
+        mSize--;
+        System.arraycopy(mCommands, 1, mCommands, 0, mSize);
+        System.arraycopy(mReceivedAt, 1, mReceivedAt, 0, mSize);
+        System.arraycopy(mExecuteAt, 1, mExecuteAt, 0, mSize);
+    }
+}
@@ -0,0 +1,93 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line check of the {@link CommandTimer}: a land or an emergency, scheduled as the
+ * buttons of the app do, cancels the movements held for later, and nothing the timer held
+ * reaches the drone after it. Movements already due may go first, never after.
+ * Fails when a held command is handed over after a land or an emergency.
+ *
+ * Usage: <code>java CommandTimerCheck [rounds]</code>
+ */
+public class CommandTimerCheck {
+
+    private static final long HELD_FOR_NS = 50 * 1000000L;
+    private static final long SETTLE_MS = 100;
+
+    private static final int[] MOVEMENTS = {Commands.UP, Commands.FORWARD, Commands.SPIN_LEFT, Commands.RIGHT};
+
+    private static int sFailed;
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+
+        final List<Integer> submitted = new ArrayList<>();
+        CommandTimer timer = new CommandTimer("CommandTimerCheck", new CommandTimer.Target() {
+            @Override
+            public void submit(long command, long receivedAt) {
+                synchronized (submitted) {
+                    submitted.add(PackedCommand.opcode(command));
+                }
+            }
+        });
+        timer.start();
+
+        for (int round = 0; round < rounds; round++) {
+            int safety = (round % 2 == 0) ? Commands.LAND : Commands.EMERGENCY;
+            synchronized (submitted) {
+                submitted.clear();
+            }
+
+            long now = System.nanoTime();
+            // held for later, then due now, as when a fleet command arrives late
+            for (int opcode : MOVEMENTS) {
+                timer.schedule(PackedCommand.of(opcode), now, now + HELD_FOR_NS);
+            }
+            timer.schedule(PackedCommand.of(Commands.FLIP), now, now - 1);
+            timer.schedule(PackedCommand.of(safety), now, now);
+            Thread.sleep(HELD_FOR_NS / 1000000L + SETTLE_MS);
+
+            synchronized (submitted) {
+                check(round, safety, submitted);
+            }
+        }
+        timer.quit();
+        System.out.println(timer.report());
+
+        System.out.println(sFailed == 0 ? "No command ran after a land or an emergency" : sFailed + " rounds failed");
+        if (sFailed > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void check(int round, int safety, List<Integer> submitted) {
+        int index = submitted.indexOf(safety);
+        if (index < 0) {
+            fail(round, Commands.name(safety) + " never handed over: " + names(submitted));
+        } else if (index != submitted.size() - 1) {
+            fail(round, "handed over after " + Commands.name(safety) + ": " + names(submitted));
+        } else {
+            for (int i = 0; i < index; i++) {
+                if (submitted.get(i) != Commands.FLIP) {
+                    fail(round, "held movement handed over: " + names(submitted));
+                    return;
+                }
+            }
+        }
+    }
+
+    private static String names(List<Integer> opcodes) {
+        StringBuilder sb = new StringBuilder();
+        for (int opcode : opcodes) {
+            sb.append(sb.length() > 0 ? ", " : "").append(Commands.name(opcode));
+        }
+        return sb.toString();
+    }
+
+    private static void fail(int round, String error) {
+        sFailed++;
+        System.out.println("Round " + round + " failed: " + error);
+    }
+}
@@ -0,0 +1,91 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+/**
+ * Opcodes of the commands understood by the drone pilot.
+ * Commands travel through the app as plain ints so that the message path
+ * never has to create Strings or enums per command.
+ */
+public final class Commands {
+    public static final int UNKNOWN = 0;
+    public static final int TAKE_OFF = 1;
+    public static final int LAND = 2;
+    public static final int UP = 3;
+    public static final int DOWN = 4;
+    public static final int FORWARD = 5;
+    public static final int BACKWARD = 6;
+    public static final int RIGHT = 7;
+    public static final int LEFT = 8;
+    public static final int SPIN_RIGHT = 9;
+    public static final int SPIN_LEFT = 10;
+    public static final int FLIP = 11;
+    public static final int PICTURE = 12;
+    public static final int EMERGENCY = 13;
+
+    public static final int COUNT = 14;
+
+    private static final String[] NAMES = {
+            "unknown",
+            "take off",
+            "land",
+            "up",
+            "down",
+            "forward",
+            "backward",
+            "right",
+            "left",
+            "spin right",
+            "spin left",
+            "flip",
+            "picture",
+            "emergency"
+    };
+
+    private Commands() {}
+
+    /**
+     * Get the display name of a command
+     * @param command the command opcode
+     * @return a constant String, never null
+     */
+    public static String name(int command) {
+        if ((command < 0) || (command >= COUNT)) {
+            return NAMES[UNKNOWN];
+        }
+        return NAMES[command];
+    }
+
+    /**
+     * Get the opcode of a canonical command name
+     * @param name the canonical name, as returned by {@link #name(int)}
+     * @return the command opcode, {@link #UNKNOWN} if the name is not canonical
+     */
+    public static int forName(String name) {
+        for (int i = 1; i < COUNT; i++) {
+            if (NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * @return true if the command must never be coalesced or dropped
+     */
+    public static boolean isCritical(int command) {
+        return (command == TAKE_OFF) || (command == LAND) || (command == EMERGENCY);
+    }
+
+    /**
+     * @return true if the command must preempt every other command (land, emergency)
+     */
+    public static boolean isSafety(int command) {
+        return (command == LAND) || (command == EMERGENCY);
+    }
+
+    /**
+     * @return true if the command moves the drone along a piloting axis for a while
+     */
+    public static boolean isMovement(int command) {
+        return (command >= UP) && (command <= SPIN_LEFT);
+    }
+}
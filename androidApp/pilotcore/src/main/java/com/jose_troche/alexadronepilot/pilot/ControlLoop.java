@@ -0,0 +1,113 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link CommandPipeline.Loop} on a plain Java thread, for running the pipeline off
+ * Android (simulations, benchmarks).
+ * The requests are flags read by the loop thread, which parks until the next tick
+ * when there is nothing to do: nothing is allocated per command.
+ */
+public class ControlLoop implements CommandPipeline.Loop, Runnable {
+
+    private static final long NO_TICK = Long.MAX_VALUE;
+
+    private final Thread mThread;
+    private CommandPipeline mPipeline;
+
+    private volatile boolean mDrainRequested;
+    private volatile boolean mPreemptedRequested;
+    private volatile long mTickAt = NO_TICK;
+    private volatile boolean mRunning;
+
+    public ControlLoop(String name) {
+        mThread = new Thread(this, name);
+        mThread.setDaemon(true);
+        mThread.setPriority(Thread.MAX_PRIORITY);
+    }
+
+    /**
+     * Start running the given pipeline
+     * @param pipeline a pipeline created with this loop
+     */
+    public void start(CommandPipeline pipeline) {
+        mPipeline = pipeline;
+        mRunning = true;
+        mThread.start();
+    }
+
+    /**
+     * Stop the loop thread and wait for it to end
+     * Pending requests are dropped
+     */
+    public void quit() throws InterruptedException {
+        mRunning = false;
+        LockSupport.unpark(mThread);
+        mThread.join();
+    }
+
+    /**
+     * @return true if no request is pending, ticks apart
+     */
+    public boolean isIdle() {
+        return !mDrainRequested && !mPreemptedRequested;
+    }
+
+    @Override
+    public void run() {
+        while (mRunning) {
+            if (mPreemptedRequested) {
+                mPreemptedRequested = false;
+                mPipeline.preempted();
+            }
+            if (mDrainRequested) {
+                mDrainRequested = false;
+                mPipeline.drain();
+            }
+
+            long tickAt = mTickAt;
+            long now = uptimeMillis();
+            if (tickAt <= now) {
+                mTickAt = NO_TICK;
+                mPipeline.tick();
+                continue;
+            }
+            if (mDrainRequested || mPreemptedRequested) {
+                continue;
+            }
+            if (tickAt == NO_TICK) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, (tickAt - now) * 1000000L);
+            }
+        }
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    @Override
+    public void requestDrain() {
+        mDrainRequested = true;
+        LockSupport.unpark(mThread);
+    }
+
+    @Override
+    public void requestPreempted() {
+        mPreemptedRequested = true;
+        LockSupport.unpark(mThread);
+    }
+
+    @Override
+    public void scheduleTick(long atMillis) {
+        // only called from the loop thread itself, no need to wake it up
+        mTickAt = atMillis;
+    }
+
+    @Override
+    public void cancelTick() {
+        mTickAt = NO_TICK;
+    }
+}
@@ -0,0 +1,210 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command line comparison of the two paths of a movement command, from its reception by
+ * the MQTT thread to the PCMD value set on the drone, while the UI thread draws frames:
+ * before, posted to the main looper, behind the frames, and set there; now, submitted to
+ * the {@link CommandPipeline} and set by its control thread.
+ * The main looper is a single thread executor. Every 16 ms it draws a frame, a few
+ * milliseconds of busy work, and now and then a long one, as when a dialog is inflated.
+ * The movements come every 14 to 20 ms, over the four axes in turn, each with a magnitude
+ * of its own, so that the drone can tell which command a PCMD value belongs to.
+ *
+ * Usage: <code>java ControlPathBenchmark [commands]</code>
+ */
+public class ControlPathBenchmark {
+
+    private static final long FRAME_PERIOD_MS = 16;
+    private static final long FRAME_MIN_US = 2000;
+    private static final long FRAME_MAX_US = 10000;
+    private static final int LONG_FRAME_EVERY = 60;
+    private static final long LONG_FRAME_US = 80000;
+
+    private static final long COMMAND_MIN_INTERVAL_MS = 14;
+    private static final long COMMAND_MAX_INTERVAL_MS = 20;
+    private static final int MIN_MAGNITUDE = 10;
+
+    private static final int[] MOVEMENTS = {Commands.FORWARD, Commands.RIGHT, Commands.UP, Commands.SPIN_RIGHT};
+
+    public static void main(String[] args) throws Exception {
+        int commands = args.length > 0 ? Integer.parseInt(args[0]) : 600;
+
+        LatencyHistogram mainLooper = new LatencyHistogram();
+        LatencyHistogram controlThread = new LatencyHistogram();
+        runMainLooper(commands, mainLooper);
+        runControlThread(commands, controlThread);
+
+        StringBuilder sb = new StringBuilder();
+        LatencyRecorder.appendLine(sb, "main", "movement", mainLooper);
+        LatencyRecorder.appendLine(sb, "control", "movement", controlThread);
+        System.out.println("Command to PCMD latency, while the UI draws a frame every " + FRAME_PERIOD_MS + " ms");
+        System.out.print(sb);
+        System.out.println("Worst: main looper " + mainLooper.getValueAtPercentile(100) + "us, control thread "
+                + controlThread.getValueAtPercentile(100) + "us");
+    }
+
+    /**
+     * Before: the MQTT thread posts each command to the main looper, which sets the axis
+     */
+    private static void runMainLooper(int commands, LatencyHistogram latency) throws InterruptedException {
+        final LatencyDrone drone = new LatencyDrone(latency);
+        ExecutorService mainThread = Executors.newSingleThreadExecutor();
+        ScheduledExecutorService vsync = startFrames(mainThread);
+
+        Random random = new Random(1);
+        for (int i = 0; i < commands; i++) {
+            final int opcode = MOVEMENTS[i % MOVEMENTS.length];
+            final int magnitude = magnitudeOf(i);
+            drone.expect(PilotingScheduler.axisOf(opcode), magnitude, System.nanoTime());
+            mainThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // as MainActivity did, before its reset was posted
+                    drone.set(PilotingScheduler.axisOf(opcode), (byte) magnitude);
+                }
+            });
+            Thread.sleep(intervalOf(random));
+        }
+
+        vsync.shutdownNow();
+        mainThread.shutdown();
+        mainThread.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Now: the MQTT thread submits each command to the pipeline, its control thread sets the axis
+     */
+    private static void runControlThread(int commands, LatencyHistogram latency) throws InterruptedException {
+        LatencyDrone drone = new LatencyDrone(latency);
+        ControlLoop loop = new ControlLoop("ControlPathBenchmark");
+        CommandPipeline pipeline = new CommandPipeline(drone, loop, NO_LISTENER);
+        loop.start(pipeline);
+        // the UI keeps drawing, on a thread of its own
+        ExecutorService mainThread = Executors.newSingleThreadExecutor();
+        ScheduledExecutorService vsync = startFrames(mainThread);
+
+        Random random = new Random(1);
+        for (int i = 0; i < commands; i++) {
+            int opcode = MOVEMENTS[i % MOVEMENTS.length];
+            int magnitude = magnitudeOf(i);
+            long receivedAt = System.nanoTime();
+            drone.expect(PilotingScheduler.axisOf(opcode), magnitude, receivedAt);
+            pipeline.submit(PackedCommand.pack(opcode, magnitude, PackedCommand.DEFAULT_DURATION_MS), receivedAt);
+            Thread.sleep(intervalOf(random));
+        }
+
+        vsync.shutdownNow();
+        mainThread.shutdown();
+        mainThread.awaitTermination(10, TimeUnit.SECONDS);
+        loop.quit();
+    }
+
+    private static ScheduledExecutorService startFrames(final ExecutorService mainThread) {
+        ScheduledExecutorService vsync = Executors.newSingleThreadScheduledExecutor();
+        final Random random = new Random(2);
+        vsync.scheduleAtFixedRate(new Runnable() {
+            private int mFrame;
+
+            @Override
+            public void run() {
+                final long busyUs = (++mFrame % LONG_FRAME_EVERY == 0) ? LONG_FRAME_US
+                        : FRAME_MIN_US + (long) (random.nextDouble() * (FRAME_MAX_US - FRAME_MIN_US));
+                mainThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long end = System.nanoTime() + busyUs * 1000;
+                        while (System.nanoTime() < end) {
+                            // measure, layout, draw
+                        }
+                    }
+                });
+            }
+        }, 0, FRAME_PERIOD_MS, TimeUnit.MILLISECONDS);
+        return vsync;
+    }
+
+    // consecutive commands on an axis never share a magnitude, nor the value the filter sent last
+    private static int magnitudeOf(int command) {
+        return MIN_MAGNITUDE + (command / MOVEMENTS.length) % (PackedCommand.MAX_MAGNITUDE - MIN_MAGNITUDE);
+    }
+
+    private static long intervalOf(Random random) {
+        return COMMAND_MIN_INTERVAL_MS + random.nextInt((int) (COMMAND_MAX_INTERVAL_MS - COMMAND_MIN_INTERVAL_MS + 1));
+    }
+
+    /**
+     * Records the time from the reception of a command to the first PCMD value carrying it
+     */
+    private static final class LatencyDrone implements DroneController {
+        private final LatencyHistogram mLatency;
+        // reception time of the command of each axis and magnitude, 0 once seen
+        private final long[][] mReceivedAt = new long[PilotingScheduler.AXIS_COUNT][PackedCommand.MAX_MAGNITUDE + 1];
+
+        LatencyDrone(LatencyHistogram latency) {
+            mLatency = latency;
+        }
+
+        synchronized void expect(int axis, int magnitude, long receivedAt) {
+            mReceivedAt[axis][magnitude] = receivedAt;
+        }
+
+        synchronized void set(int axis, byte value) {
+            long now = System.nanoTime();
+            if ((value > 0) && (mReceivedAt[axis][value] != 0)) {
+                mLatency.recordNanos(now - mReceivedAt[axis][value]);
+                mReceivedAt[axis][value] = 0;
+            }
+        }
+
+        @Override
+        public void takeOff() {}
+
+        @Override
+        public void land() {}
+
+        @Override
+        public void emergency() {}
+
+        @Override
+        public void takePicture() {}
+
+        @Override
+        public void flip() {}
+
+        @Override
+        public void setPitch(byte pitch) {
+            set(PilotingScheduler.AXIS_PITCH, pitch);
+        }
+
+        @Override
+        public void setRoll(byte roll) {
+            set(PilotingScheduler.AXIS_ROLL, roll);
+        }
+
+        @Override
+        public void setYaw(byte yaw) {
+            set(PilotingScheduler.AXIS_YAW, yaw);
+        }
+
+        @Override
+        public void setGaz(byte gaz) {
+            set(PilotingScheduler.AXIS_GAZ, gaz);
+        }
+
+        @Override
+        public void setFlag(byte flag) {}
+    }
+
+    private static final CommandPipeline.Listener NO_LISTENER = new CommandPipeline.Listener() {
+        @Override
+        public void onCommandDispatched(int command) {
+            // nothing to show
+        }
+    };
+}
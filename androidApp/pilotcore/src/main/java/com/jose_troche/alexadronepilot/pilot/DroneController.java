@@ -0,0 +1,48 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+/**
+ * The piloting operations of a drone, as used by the {@link CommandPipeline}.
+ * Implemented by the real MiniDrone of the app and by {@link SimulatedDrone}.
+ */
+public interface DroneController {
+
+    void takeOff();
+
+    void land();
+
+    void emergency();
+
+    void takePicture();
+
+    void flip();
+
+    /**
+     * Set the forward/backward angle of the drone
+     * Note that {@link #setFlag(byte)} should be set to 1 in order to take in account the pitch value
+     * @param pitch value in percentage from -100 to 100
+     */
+    void setPitch(byte pitch);
+
+    /**
+     * Set the side angle of the drone
+     * Note that {@link #setFlag(byte)} should be set to 1 in order to take in account the roll value
+     * @param roll value in percentage from -100 to 100
+     */
+    void setRoll(byte roll);
+
+    /**
+     * @param yaw rotation speed in percentage from -100 to 100
+     */
+    void setYaw(byte yaw);
+
+    /**
+     * @param gaz vertical speed in percentage from -100 to 100
+     */
+    void setGaz(byte gaz);
+
+    /**
+     * Take in account or not the pitch and roll values
+     * @param flag 1 if the pitch and roll values should be used, 0 otherwise
+     */
+    void setFlag(byte flag);
+}
@@ -0,0 +1,159 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+/**
+ * Command line comparison of the guards of the piloting calls of the MiniDrone: before,
+ * a null check of the device controller, an equals on its connection state and a
+ * lookup of its feature at every call; now, one volatile read of the state and feature
+ * swapped as one by the ARSDK thread, and a null check.
+ * The ARSDK is not on this classpath, stand-ins with the same shape take its place: an
+ * enum for the connection state, a controller returning its feature, a feature whose
+ * sends are volatile stores in place of the native calls. Each path sends the five PCMD
+ * values of a tick of the {@link PilotingScheduler}, as the {@link CommandPipeline} does.
+ *
+ * Usage: <code>java DroneLinkBenchmark [iterations]</code>
+ */
+public class DroneLinkBenchmark {
+
+    private enum State { STOPPED, STARTING, RUNNING, STOPPING }
+
+    // ARFeatureMiniDrone: each send is a native call the compiler cannot see through,
+    // here a volatile store, so that neither guard is hoisted out of the loop
+    private static final class Feature {
+        volatile int mSent;
+
+        void setPitch(byte pitch) {
+            mSent = pitch;
+        }
+
+        void setRoll(byte roll) {
+            mSent = roll;
+        }
+
+        void setYaw(byte yaw) {
+            mSent = yaw;
+        }
+
+        void setGaz(byte gaz) {
+            mSent = gaz;
+        }
+
+        void setFlag(byte flag) {
+            mSent = flag;
+        }
+    }
+
+    // ARDeviceController, its feature behind a getter as in the ARSDK
+    private static final class Controller {
+        private final Feature mFeature = new Feature();
+
+        Feature getFeature() {
+            return mFeature;
+        }
+    }
+
+    // the guard of the piloting calls before: the state written by the ARSDK thread unfenced
+    private static final class Before {
+        Controller mDeviceController = new Controller();
+        State mState = State.RUNNING;
+
+        void pcmd(byte pitch, byte roll, byte yaw, byte gaz, byte flag) {
+            if ((mDeviceController != null) && (mState.equals(State.RUNNING))) {
+                mDeviceController.getFeature().setPitch(pitch);
+            }
+            if ((mDeviceController != null) && (mState.equals(State.RUNNING))) {
+                mDeviceController.getFeature().setRoll(roll);
+            }
+            if ((mDeviceController != null) && (mState.equals(State.RUNNING))) {
+                mDeviceController.getFeature().setYaw(yaw);
+            }
+            if ((mDeviceController != null) && (mState.equals(State.RUNNING))) {
+                mDeviceController.getFeature().setGaz(gaz);
+            }
+            if ((mDeviceController != null) && (mState.equals(State.RUNNING))) {
+                mDeviceController.getFeature().setFlag(flag);
+            }
+        }
+    }
+
+    // the guard now: the state and feature published as one
+    private static final class Link {
+        final State mState;
+        final Feature mFeature;
+
+        Link(State state, Feature feature) {
+            mState = state;
+            mFeature = feature;
+        }
+    }
+
+    private static final class After {
+        volatile Link mLink = new Link(State.RUNNING, new Controller().getFeature());
+
+        void pcmd(byte pitch, byte roll, byte yaw, byte gaz, byte flag) {
+            Feature feature = mLink.mFeature;
+            if (feature != null) {
+                feature.setPitch(pitch);
+            }
+            feature = mLink.mFeature;
+            if (feature != null) {
+                feature.setRoll(roll);
+            }
+            feature = mLink.mFeature;
+            if (feature != null) {
+                feature.setYaw(yaw);
+            }
+            feature = mLink.mFeature;
+            if (feature != null) {
+                feature.setGaz(gaz);
+            }
+            feature = mLink.mFeature;
+            if (feature != null) {
+                feature.setFlag(flag);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 50000000;
+        Before before = new Before();
+        After after = new After();
+
+        // warm up both paths before measuring either
+        for (int i = 0; i < 3; i++) {
+            measureBefore(before, iterations / 10);
+            measureAfter(after, iterations / 10);
+        }
+
+        double beforeNs = 0;
+        double afterNs = 0;
+        int rounds = 5;
+        for (int i = 0; i < rounds; i++) {
+            beforeNs += measureBefore(before, iterations);
+            afterNs += measureAfter(after, iterations);
+        }
+        beforeNs /= rounds;
+        afterNs /= rounds;
+        System.out.println(String.format("%-40s %9s", "guard", "per call"));
+        System.out.println(String.format("%-40s %7.2fns", "controller, state equals, feature lookup", beforeNs / 5));
+        System.out.println(String.format("%-40s %7.2fns", "one volatile read of the link", afterNs / 5));
+    }
+
+    // average time of a control tick (five calls), in nanoseconds
+    private static double measureBefore(Before drone, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            drone.pcmd((byte) i, (byte) (i >> 1), (byte) (i >> 2), (byte) (i >> 3), (byte) (i & 1));
+        }
+        long elapsed = System.nanoTime() - start;
+        return (double) elapsed / iterations;
+    }
+
+    private static double measureAfter(After drone, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            drone.pcmd((byte) i, (byte) (i >> 1), (byte) (i >> 2), (byte) (i >> 3), (byte) (i & 1));
+        }
+        long elapsed = System.nanoTime() - start;
+        return (double) elapsed / iterations;
+    }
+}
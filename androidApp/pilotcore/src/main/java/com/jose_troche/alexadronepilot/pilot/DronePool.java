@@ -0,0 +1,171 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+/**
+ * A fleet: every command submitted to the pool goes to the {@link CommandPipeline}
+ * of each member drone.
+ * The members run in parallel on their own control threads; the submitting thread
+ * only fills their queues and never waits for one of them (see
+ * {@link CommandPipeline#setSharedSubmitter(boolean)}), so a slow or disconnected
+ * drone does not hold up the others. Every take off, land and emergency still reaches
+ * every member: those are parked or queued, never coalesced or dropped.
+ * The pool measures the skew of each command, between the first and the last drone
+ * it reached. Movements coalesced on some drones never reach them all: they are
+ * counted as incomplete instead.
+ */
+public class DronePool {
+
+    // number of recent commands followed for the skew, older ones count as incomplete
+    private static final int SKEW_WINDOW = 64;
+
+    private static final long FREE = Long.MIN_VALUE;
+
+    private volatile String[] mNames = new String[0];
+    private volatile CommandPipeline[] mPipelines = new CommandPipeline[0];
+
+    private long mSubmittedCount; // guarded by the pool
+
+    // commands being followed for the skew, guarded by mSkewLock
+    private final Object mSkewLock = new Object();
+    private final long[] mReceivedAt = new long[SKEW_WINDOW];
+    private final long[] mFirstSentAt = new long[SKEW_WINDOW];
+    private final long[] mLastSentAt = new long[SKEW_WINDOW];
+    private final int[] mSentCount = new int[SKEW_WINDOW];
+    private int mNextSlot;
+    private long mIncompleteCount;
+    private final LatencyHistogram mSkew = new LatencyHistogram();
+
+    public DronePool() {
+        for (int i = 0; i < SKEW_WINDOW; i++) {
+            mReceivedAt[i] = FREE;
+        }
+    }
+
+    /**
+     * Add a drone to the fleet
+     * Should be called before the first command is submitted
+     * @param name names the drone in the report
+     * @param pipeline the command pipeline of the drone
+     */
+    public synchronized void add(String name, CommandPipeline pipeline) {
+        int size = mPipelines.length;
+        String[] names = new String[size + 1];
+        CommandPipeline[] pipelines = new CommandPipeline[size + 1];
+        System.arraycopy(mNames, 0, names, 0, size);
+        System.arraycopy(mPipelines, 0, pipelines, 0, size);
+        names[size] = name;
+        pipelines[size] = pipeline;
+
+        pipeline.setSharedSubmitter(true);
+        pipeline.setSendObserver(mSendObserver);
+        mNames = names;
+        mPipelines = pipelines;
+    }
+
+    public int size() {
+        return mPipelines.length;
+    }
+
+    /**
+     * Send a command to every drone of the fleet
+     * Can be called from any thread, the commands of concurrent callers are serialized
+     * @param command the command, packed as a {@link PackedCommand}
+     * @param receivedAt when the command was received, from {@link System#nanoTime()}
+     */
+    public synchronized void submit(long command, long receivedAt) {
+        CommandPipeline[] pipelines = mPipelines;
+        int size = pipelines.length;
+        if (size == 0) {
+            return;
+        }
+        follow(receivedAt);
+
+        // start from a different drone each time, none is always served last
+        int first = (int) (mSubmittedCount++ % size);
+        for (int i = 0; i < size; i++) {
+            pipelines[(first + i) % size].submit(command, receivedAt);
+        }
+    }
+
+    /**
+     * Stop every drone of the fleet where it is, see {@link CommandPipeline#hold()}
+     * Can be called from any thread
+     */
+    public void hold() {
+        for (CommandPipeline pipeline : mPipelines) {
+            pipeline.hold();
+        }
+    }
+
+    private void follow(long receivedAt) {
+        synchronized (mSkewLock) {
+            int slot = mNextSlot;
+            mNextSlot = (slot + 1) % SKEW_WINDOW;
+            if (mReceivedAt[slot] != FREE) {
+                mIncompleteCount++;
+            }
+            mReceivedAt[slot] = receivedAt;
+            mSentCount[slot] = 0;
+        }
+    }
+
+    private final CommandPipeline.SendObserver mSendObserver = new CommandPipeline.SendObserver() {
+        @Override
+        public void onCommandSent(int command, long receivedAt, long sentAt) {
+            synchronized (mSkewLock) {
+                // most likely one of the latest commands, search backwards
+                for (int i = 1; i <= SKEW_WINDOW; i++) {
+                    int slot = (mNextSlot - i + SKEW_WINDOW) % SKEW_WINDOW;
+                    if (mReceivedAt[slot] != receivedAt) {
+                        continue;
+                    }
+                    int count = ++mSentCount[slot];
+                    if (count == 1 || sentAt < mFirstSentAt[slot]) {
+                        mFirstSentAt[slot] = sentAt;
+                    }
+                    if (count == 1 || sentAt > mLastSentAt[slot]) {
+                        mLastSentAt[slot] = sentAt;
+                    }
+                    if (count == mPipelines.length) {
+                        mSkew.recordNanos(mLastSentAt[slot] - mFirstSentAt[slot]);
+                        mReceivedAt[slot] = FREE;
+                    }
+                    return;
+                }
+            }
+        }
+    };
+
+    /**
+     * @return the skew of the commands that reached every drone, from the first to the last one
+     */
+    public LatencyHistogram getSkewHistogram() {
+        return mSkew;
+    }
+
+    /**
+     * @return the per drone dispatch latencies and the skew, one line per topic
+     */
+    public String report() {
+        String[] names = mNames;
+        CommandPipeline[] pipelines = mPipelines;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < pipelines.length; i++) {
+            LatencyHistogram send = pipelines[i].getLatencyRecorder().getStageHistogram(LatencyRecorder.STAGE_SEND);
+            CommandQueue queue = pipelines[i].getCommandQueue();
+            sb.append(names[i]).append(": sent ").append(send.getCount())
+                    .append(", latency p50=").append(send.getValueAtPercentile(50))
+                    .append("us p99=").append(send.getValueAtPercentile(99))
+                    .append("us max=").append(send.getValueAtPercentile(100))
+                    .append("us, merged ").append(queue.getMergedCount())
+                    .append(", dropped ").append(queue.getDroppedCount()).append('\n');
+        }
+        synchronized (mSkewLock) {
+            sb.append("Skew over ").append(pipelines.length).append(" drones: n=").append(mSkew.getCount())
+                    .append(" p50=").append(mSkew.getValueAtPercentile(50))
+                    .append("us p99=").append(mSkew.getValueAtPercentile(99))
+                    .append("us max=").append(mSkew.getValueAtPercentile(100))
+                    .append("us, incomplete ").append(mIncompleteCount).append('\n');
+        }
+        return sb.toString();
+    }
+}
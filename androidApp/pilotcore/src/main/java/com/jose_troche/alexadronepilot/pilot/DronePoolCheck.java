@@ -0,0 +1,140 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+/**
+ * Command line check of a {@link DronePool}: a burst of take offs and landings submitted
+ * to the pool must reach every member drone, each one of them, although the submitting
+ * thread is shared and never waits. One member is slow, so that its queue is full when
+ * the burst comes, and the queues are small.
+ * Fails when a member misses a take off or a landing.
+ *
+ * Usage: <code>java DronePoolCheck [take offs] [drones]</code>
+ */
+public class DronePoolCheck {
+
+    private static final int QUEUE_CAPACITY = 2;
+    private static final long SLOW_CALL_US = 200;
+    private static final long SETTLE_MS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        int takeOffs = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int drones = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        DronePool pool = new DronePool();
+        CountingDrone[] members = new CountingDrone[drones];
+        ControlLoop[] loops = new ControlLoop[drones];
+        for (int d = 0; d < drones; d++) {
+            members[d] = new CountingDrone(d == 0);
+            loops[d] = new ControlLoop("DronePoolCheck-" + d);
+            CommandPipeline pipeline = new CommandPipeline(members[d], loops[d], NO_LISTENER, QUEUE_CAPACITY);
+            loops[d].start(pipeline);
+            pool.add("drone-" + d, pipeline);
+        }
+
+        for (int i = 0; i < takeOffs; i++) {
+            pool.submit(PackedCommand.of(Commands.TAKE_OFF), System.nanoTime());
+            pool.submit(PackedCommand.of(Commands.LAND), System.nanoTime());
+        }
+
+        long deadline = System.currentTimeMillis() + SETTLE_MS;
+        while (!allDone(members, takeOffs) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+        }
+        for (ControlLoop loop : loops) {
+            loop.quit();
+        }
+
+        System.out.print(pool.report());
+        int failed = 0;
+        for (int d = 0; d < drones; d++) {
+            if (!members[d].isDone(takeOffs)) {
+                failed++;
+                System.out.println("Drone " + d + " failed: " + members[d].mTakeOffCount + " take offs, "
+                        + members[d].mLandingCount + " landings of " + takeOffs);
+            }
+        }
+        System.out.println(failed == 0 ? "Every drone took off and landed " + takeOffs + " times"
+                : failed + " drones missed commands");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean allDone(CountingDrone[] members, int takeOffs) {
+        for (CountingDrone member : members) {
+            if (!member.isDone(takeOffs)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts the take offs and landings it is sent, whatever its state
+     */
+    private static final class CountingDrone implements DroneController {
+        private final boolean mSlow;
+        volatile int mTakeOffCount;
+        volatile int mLandingCount;
+
+        CountingDrone(boolean slow) {
+            mSlow = slow;
+        }
+
+        boolean isDone(int takeOffs) {
+            return (mTakeOffCount == takeOffs) && (mLandingCount == takeOffs);
+        }
+
+        // called on the control thread only
+        private void call() {
+            if (mSlow) {
+                long end = System.nanoTime() + SLOW_CALL_US * 1000;
+                while (System.nanoTime() < end) {
+                    // a busy BLE link
+                }
+            }
+        }
+
+        @Override
+        public void takeOff() {
+            call();
+            mTakeOffCount++;
+        }
+
+        @Override
+        public void land() {
+            call();
+            mLandingCount++;
+        }
+
+        @Override
+        public void emergency() {}
+
+        @Override
+        public void takePicture() {}
+
+        @Override
+        public void flip() {}
+
+        @Override
+        public void setPitch(byte pitch) {}
+
+        @Override
+        public void setRoll(byte roll) {}
+
+        @Override
+        public void setYaw(byte yaw) {}
+
+        @Override
+        public void setGaz(byte gaz) {}
+
+        @Override
+        public void setFlag(byte flag) {}
+    }
+
+    private static final CommandPipeline.Listener NO_LISTENER = new CommandPipeline.Listener() {
+        @Override
+        public void onCommandDispatched(int command) {
+            // nothing to show
+        }
+    };
+}
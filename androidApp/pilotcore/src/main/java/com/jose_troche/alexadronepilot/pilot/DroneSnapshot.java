@@ -0,0 +1,125 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+/**
+ * The state of a drone shown by the UI, as of one display frame: immutable, built by a
+ * {@link SnapshotPublisher} from the latest value of each field.
+ * States are the values of their ARSDK enums, -1 until the drone reported them.
+ * Events are counted rather than kept, the UI finds out how many happened since its
+ * previous snapshot.
+ */
+public final class DroneSnapshot {
+
+    public static final int UNKNOWN = -1;
+
+    static final DroneSnapshot EMPTY = new DroneSnapshot(0, UNKNOWN, UNKNOWN, UNKNOWN, 0, UNKNOWN,
+            0, UNKNOWN, null, 0, 0, null);
+
+    private final long mVersion;
+    private final int mConnectionState;
+    private final int mFlyingState;
+    private final int mBattery;
+    private final int mPictureCount;
+    private final int mPictureError;
+    private final int mMediaSearchCount;
+    private final int mMediaCount;
+    private final String mDownloadName;
+    private final int mDownloadProgress;
+    private final int mDownloadedCount;
+    private final String mLastDownloadedName;
+
+    DroneSnapshot(long version, int connectionState, int flyingState, int battery, int pictureCount,
+                  int pictureError, int mediaSearchCount, int mediaCount, String downloadName,
+                  int downloadProgress, int downloadedCount, String lastDownloadedName) {
+        mVersion = version;
+        mConnectionState = connectionState;
+        mFlyingState = flyingState;
+        mBattery = battery;
+        mPictureCount = pictureCount;
+        mPictureError = pictureError;
+        mMediaSearchCount = mediaSearchCount;
+        mMediaCount = mediaCount;
+        mDownloadName = downloadName;
+        mDownloadProgress = downloadProgress;
+        mDownloadedCount = downloadedCount;
+        mLastDownloadedName = lastDownloadedName;
+    }
+
+    /**
+     * @return the number of updates merged into this snapshot since the publisher started
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public int getConnectionState() {
+        return mConnectionState;
+    }
+
+    public int getFlyingState() {
+        return mFlyingState;
+    }
+
+    /**
+     * @return the battery remaining (in percent), {@link #UNKNOWN} until reported
+     */
+    public int getBattery() {
+        return mBattery;
+    }
+
+    /**
+     * @return the number of pictures taken, or failed, since the publisher started
+     */
+    public int getPictureCount() {
+        return mPictureCount;
+    }
+
+    /**
+     * @return the error of the last picture, 0 if it has been taken
+     */
+    public int getPictureError() {
+        return mPictureError;
+    }
+
+    /**
+     * @return the number of media searches since the publisher started, each one followed
+     *          by the download of the medias found
+     */
+    public int getMediaSearchCount() {
+        return mMediaSearchCount;
+    }
+
+    /**
+     * @return the number of medias of the last search, {@link #UNKNOWN} before any
+     */
+    public int getMediaCount() {
+        return mMediaCount;
+    }
+
+    /**
+     * @return the media being downloaded, null before any
+     */
+    public String getDownloadName() {
+        return mDownloadName;
+    }
+
+    /**
+     * @return the progress of the media being downloaded (from 0 to 100)
+     */
+    public int getDownloadProgress() {
+        return mDownloadProgress;
+    }
+
+    /**
+     * @return the number of medias downloaded since the publisher started
+     */
+    public int getDownloadedCount() {
+        return mDownloadedCount;
+    }
+
+    /**
+     * @return the last media downloaded, null before any
+     */
+    public String getLastDownloadedName() {
+        return mLastDownloadedName;
+    }
+}
@@ -0,0 +1,257 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers the events of the drones (connection, flying state, downloads, discovery...)
+ * to their listeners, through typed {@link Channel}s: one per listener interface.
+ * Each listener chooses where it is called: inline in the publishing thread, on the
+ * background executor, or on the UI executor.
+ * The listeners of a channel are a copy-on-write array, replaced when one is added or
+ * removed, so publishing reads it without locking and without copying it. An event is
+ * a constant {@link Event} plus a number and an object argument: publishing to inline
+ * listeners allocates nothing, and the deliveries to the executors come from a pool,
+ * recycled once run, like the messages of an Android Handler.
+ */
+public class EventBus {
+
+    public static final int DELIVER_INLINE = 0;
+    public static final int DELIVER_BACKGROUND = 1;
+    public static final int DELIVER_UI = 2;
+
+    private static final int MAX_POOL_SIZE = 64;
+
+    /**
+     * Calls one method of the listeners of a channel
+     * Implemented once per method, by a constant: the arguments travel next to it.
+     */
+    public interface Event<L> {
+        void deliver(L listener, long arg, Object obj);
+    }
+
+    private final Executor mBackgroundExecutor;
+    private final Executor mUiExecutor;
+
+    // recycled deliveries, guarded by mPoolLock
+    private final Object mPoolLock = new Object();
+    private Delivery mPool;
+    private int mPoolSize;
+
+    private final AtomicLong mPublishedCount = new AtomicLong();
+    private final AtomicLong mQueuedCount = new AtomicLong();
+    private final AtomicLong mAllocatedCount = new AtomicLong();
+
+    /**
+     * @param backgroundExecutor runs the deliveries to the listeners off the UI thread
+     * @param uiExecutor runs the deliveries to the listeners on the UI thread
+     */
+    public EventBus(Executor backgroundExecutor, Executor uiExecutor) {
+        mBackgroundExecutor = backgroundExecutor;
+        mUiExecutor = uiExecutor;
+    }
+
+    /**
+     * @return a new channel for the listeners of one interface
+     */
+    public <L> Channel<L> newChannel() {
+        return new Channel<>(this);
+    }
+
+    public static final class Channel<L> {
+        private final EventBus mBus;
+
+        // replaced as a whole under the channel lock, read without it
+        private volatile Registrations mRegistrations = Registrations.NONE;
+
+        private Channel(EventBus bus) {
+            mBus = bus;
+        }
+
+        /**
+         * Add a listener called in the publishing thread
+         * Can be called from any thread
+         */
+        public void add(L listener) {
+            add(listener, DELIVER_INLINE);
+        }
+
+        /**
+         * Add a listener, or change where it is called
+         * Can be called from any thread
+         * @param delivery one of the DELIVER_ constants
+         */
+        public synchronized void add(L listener, int delivery) {
+            Registrations r = mRegistrations;
+            int index = r.indexOf(listener);
+            int length = (index < 0) ? r.mListeners.length + 1 : r.mListeners.length;
+            Object[] listeners = new Object[length];
+            int[] deliveries = new int[length];
+            System.arraycopy(r.mListeners, 0, listeners, 0, r.mListeners.length);
+            System.arraycopy(r.mDeliveries, 0, deliveries, 0, r.mListeners.length);
+            if (index < 0) {
+                index = length - 1;
+            }
+            listeners[index] = listener;
+            deliveries[index] = delivery;
+            mRegistrations = new Registrations(listeners, deliveries);
+        }
+
+        /**
+         * Remove a listener, it is not called anymore once this returns, even for the
+         * events already queued to its executor
+         * Can be called from any thread
+         */
+        public synchronized void remove(L listener) {
+            Registrations r = mRegistrations;
+            int index = r.indexOf(listener);
+            if (index < 0) {
+                return;
+            }
+            int length = r.mListeners.length - 1;
+            Object[] listeners = new Object[length];
+            int[] deliveries = new int[length];
+            System.arraycopy(r.mListeners, 0, listeners, 0, index);
+            System.arraycopy(r.mListeners, index + 1, listeners, index, length - index);
+            System.arraycopy(r.mDeliveries, 0, deliveries, 0, index);
+            System.arraycopy(r.mDeliveries, index + 1, deliveries, index, length - index);
+            mRegistrations = new Registrations(listeners, deliveries);
+        }
+
+        public boolean isEmpty() {
+            return mRegistrations.mListeners.length == 0;
+        }
+
+        boolean contains(Object listener) {
+            return mRegistrations.indexOf(listener) >= 0;
+        }
+
+        /**
+         * Publish an event to every listener of the channel
+         * Can be called from any thread
+         * @param event the method to call
+         * @param arg its number argument, if any
+         * @param obj its object argument, if any
+         */
+        @SuppressWarnings("unchecked")
+        public void publish(Event<L> event, long arg, Object obj) {
+            mBus.mPublishedCount.incrementAndGet();
+            Registrations r = mRegistrations;
+            Object[] listeners = r.mListeners;
+            int[] deliveries = r.mDeliveries;
+            for (int i = 0; i < listeners.length; i++) {
+                if (deliveries[i] == DELIVER_INLINE) {
+                    event.deliver((L) listeners[i], arg, obj);
+                } else {
+                    mBus.queue(this, deliveries[i], event, listeners[i], arg, obj);
+                }
+            }
+        }
+    }
+
+    /**
+     * The listeners of a channel and where each one is called, never modified
+     */
+    private static final class Registrations {
+        static final Registrations NONE = new Registrations(new Object[0], new int[0]);
+
+        final Object[] mListeners;
+        final int[] mDeliveries;
+
+        Registrations(Object[] listeners, int[] deliveries) {
+            mListeners = listeners;
+            mDeliveries = deliveries;
+        }
+
+        int indexOf(Object listener) {
+            for (int i = 0; i < mListeners.length; i++) {
+                if (mListeners[i] == listener) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private void queue(Channel<?> channel, int delivery, Event<?> event, Object listener, long arg, Object obj) {
+        Delivery d;
+        synchronized (mPoolLock) {
+            d = mPool;
+            if (d != null) {
+                mPool = d.mNext;
+                d.mNext = null;
+                mPoolSize--;
+            }
+        }
+        if (d == null) {
+            d = new Delivery();
+            mAllocatedCount.incrementAndGet();
+        }
+        d.mChannel = channel;
+        d.mEvent = event;
+        d.mListener = listener;
+        d.mArg = arg;
+        d.mObj = obj;
+        mQueuedCount.incrementAndGet();
+        ((delivery == DELIVER_UI) ? mUiExecutor : mBackgroundExecutor).execute(d);
+    }
+
+    private void recycle(Delivery d) {
+        d.mChannel = null;
+        d.mEvent = null;
+        d.mListener = null;
+        d.mObj = null;
+        synchronized (mPoolLock) {
+            if (mPoolSize < MAX_POOL_SIZE) {
+                d.mNext = mPool;
+                mPool = d;
+                mPoolSize++;
+            }
+        }
+    }
+
+    private final class Delivery implements Runnable {
+        Channel<?> mChannel;
+        Event<?> mEvent;
+        Object mListener;
+        long mArg;
+        Object mObj;
+        Delivery mNext;
+
+        @Override
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public void run() {
+            // not to a listener removed after the event was published
+            if (mChannel.contains(mListener)) {
+                ((Event) mEvent).deliver(mListener, mArg, mObj);
+            }
+            recycle(this);
+        }
+    }
+
+    /**
+     * @return the number of events published on every channel
+     */
+    public long getPublishedCount() {
+        return mPublishedCount.get();
+    }
+
+    /**
+     * @return the number of deliveries queued to the background and UI executors
+     */
+    public long getQueuedCount() {
+        return mQueuedCount.get();
+    }
+
+    /**
+     * @return the number of deliveries allocated, the others were recycled
+     */
+    public long getAllocatedCount() {
+        return mAllocatedCount.get();
+    }
+
+    public String report() {
+        return "Events: " + getPublishedCount() + " published, " + getQueuedCount()
+                + " deliveries queued to the executors, " + getAllocatedCount() + " of them allocated";
+    }
+}
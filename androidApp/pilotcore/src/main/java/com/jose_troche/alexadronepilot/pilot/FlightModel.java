@@ -0,0 +1,415 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+/**
+ * A {@link DroneController} that flies a simple rigid body model of a MiniDrone.
+ * The drone only moves when {@link #advance(long)} is called, so the simulated time
+ * is whatever the caller decides: real time in the app, a virtual clock in
+ * {@link SimulationLoop} to fly faster than real time.
+ *
+ * The model: pitch and roll tilt the drone, which accelerates horizontally against
+ * a linear drag; gaz and yaw are vertical and rotation speed setpoints reached with
+ * a first order response. Take off climbs to {@link #TAKE_OFF_ALTITUDE_M}, landing
+ * descends to the ground, emergency cuts the motors. The battery drains while flying.
+ * With a {@link TelemetryStore}, the model records its telemetry as a MiniDrone streams
+ * its states, on the simulated time.
+ *
+ * Commands may come from any thread. The listener is called in the thread calling
+ * {@link #advance(long)}, never while the model is locked.
+ */
+public class FlightModel implements DroneController {
+
+    // flying states, in the order of the MiniDrone piloting states
+    public static final int STATE_LANDED = 0;
+    public static final int STATE_TAKING_OFF = 1;
+    public static final int STATE_HOVERING = 2;
+    public static final int STATE_FLYING = 3;
+    public static final int STATE_LANDING = 4;
+    public static final int STATE_EMERGENCY = 5;
+
+    private static final String[] STATE_NAMES = {
+            "landed", "taking off", "hovering", "flying", "landing", "emergency" };
+
+    public static final double TAKE_OFF_ALTITUDE_M = 1.0;
+
+    private static final double GRAVITY = 9.81;
+    private static final double MAX_TILT_RAD = Math.toRadians(15);
+    private static final double DRAG_PER_S = 1.5;
+    private static final double MAX_VERTICAL_SPEED = 0.7;
+    private static final double MAX_ROTATION_SPEED_RAD = Math.toRadians(180);
+    private static final double RESPONSE_TIME_S = 0.3;
+    private static final double TAKE_OFF_SPEED = 0.7;
+    private static final double LANDING_SPEED = 0.5;
+    // below this speed a drone without inputs is hovering
+    private static final double HOVERING_SPEED = 0.1;
+
+    // about eight minutes of flight, and a slow drain when on the ground
+    private static final double BATTERY_FLYING_PCT_PER_S = 100.0 / 480;
+    private static final double BATTERY_IDLE_PCT_PER_S = 100.0 / 7200;
+
+    // the continuous channels are recorded at this period, the states when they change
+    private static final long TELEMETRY_PERIOD_MS = 50;
+
+    public interface Listener {
+        /**
+         * Called when the flying state changes
+         * @param state one of the STATE_ constants
+         */
+        void onFlyingStateChanged(int state);
+
+        /**
+         * Called when the battery charge changes
+         * @param batteryPercentage the battery remaining (in percent)
+         */
+        void onBatteryChargeChanged(int batteryPercentage);
+
+        /**
+         * Called when a picture has been taken
+         */
+        void onPictureTaken();
+    }
+
+    private Listener mListener;
+    private TelemetryStore mTelemetry;
+    private long mNextTelemetryAt;
+
+    private int mState = STATE_LANDED;
+    private int mReportedState = STATE_LANDED;
+
+    // piloting inputs, in percent
+    private byte mRoll;
+    private byte mPitch;
+    private byte mYaw;
+    private byte mGaz;
+    private byte mFlag;
+
+    // world frame: x forward at take off, y to the left, z up, heading counterclockwise
+    private double mX;
+    private double mY;
+    private double mZ;
+    private double mHeading;
+    private double mVx;
+    private double mVy;
+    private double mVz;
+    private double mYawRate;
+
+    private double mBattery = 100;
+    private int mReportedBattery = 100;
+    private int mPendingPictures;
+
+    private long mTimeMs;
+    private long mFlyingTimeMs;
+    private int mFlipCount;
+    private int mPictureCount;
+    private int mIgnoredCount;
+
+    public static String stateName(int state) {
+        return STATE_NAMES[state];
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Record the telemetry of the model, recorded in the thread calling {@link #advance(long)}
+     * @param telemetry the store, null to stop recording
+     */
+    public synchronized void setTelemetryStore(TelemetryStore telemetry) {
+        mTelemetry = telemetry;
+        mNextTelemetryAt = mTimeMs;
+    }
+
+    //region DroneController
+    @Override
+    public synchronized void takeOff() {
+        if (mState != STATE_LANDED || mBattery < 1) {
+            mIgnoredCount++;
+            return;
+        }
+        mState = STATE_TAKING_OFF;
+    }
+
+    @Override
+    public synchronized void land() {
+        if (!isAirborne()) {
+            mIgnoredCount++;
+            return;
+        }
+        mState = STATE_LANDING;
+    }
+
+    @Override
+    public synchronized void emergency() {
+        if (mState == STATE_LANDED) {
+            return;
+        }
+        mState = STATE_EMERGENCY;
+    }
+
+    @Override
+    public synchronized void takePicture() {
+        mPictureCount++;
+        mPendingPictures++;
+    }
+
+    @Override
+    public synchronized void flip() {
+        if (mState != STATE_HOVERING && mState != STATE_FLYING) {
+            mIgnoredCount++;
+            return;
+        }
+        mFlipCount++;
+    }
+
+    @Override
+    public synchronized void setPitch(byte pitch) {
+        mPitch = pitch;
+    }
+
+    @Override
+    public synchronized void setRoll(byte roll) {
+        mRoll = roll;
+    }
+
+    @Override
+    public synchronized void setYaw(byte yaw) {
+        mYaw = yaw;
+    }
+
+    @Override
+    public synchronized void setGaz(byte gaz) {
+        mGaz = gaz;
+    }
+
+    @Override
+    public synchronized void setFlag(byte flag) {
+        mFlag = flag;
+    }
+    //endregion DroneController
+
+    /**
+     * Move the simulated time forward
+     * @param elapsedMs the time elapsed since the previous call, keep it short (tens of ms)
+     *                  for an accurate integration
+     */
+    public void advance(long elapsedMs) {
+        int state;
+        int battery;
+        int pictures;
+        synchronized (this) {
+            integrate(elapsedMs / 1000.0);
+            mTimeMs += elapsedMs;
+            if (isAirborne()) {
+                mFlyingTimeMs += elapsedMs;
+            }
+
+            state = (mState != mReportedState) ? mState : -1;
+            mReportedState = mState;
+            battery = (int) Math.ceil(mBattery);
+            if (battery == mReportedBattery) {
+                battery = -1;
+            } else {
+                mReportedBattery = battery;
+            }
+            pictures = mPendingPictures;
+            mPendingPictures = 0;
+
+            if (mTelemetry != null) {
+                recordTelemetry(state, battery);
+            }
+        }
+
+        Listener listener = mListener;
+        if (listener == null) {
+            return;
+        }
+        if (state >= 0) {
+            listener.onFlyingStateChanged(state);
+        }
+        if (battery >= 0) {
+            listener.onBatteryChargeChanged(battery);
+        }
+        for (int i = 0; i < pictures; i++) {
+            listener.onPictureTaken();
+        }
+    }
+
+    private void integrate(double dt) {
+        boolean airborne = isAirborne();
+        mBattery = Math.max(0, mBattery - dt * (airborne ? BATTERY_FLYING_PCT_PER_S : BATTERY_IDLE_PCT_PER_S));
+        if (airborne && mBattery <= 0) {
+            // out of battery: the drone lands by itself
+            mState = STATE_LANDING;
+        }
+
+        switch (mState) {
+            case STATE_LANDED:
+                return;
+
+            case STATE_TAKING_OFF:
+                mVz = TAKE_OFF_SPEED;
+                mZ += mVz * dt;
+                if (mZ >= TAKE_OFF_ALTITUDE_M) {
+                    mZ = TAKE_OFF_ALTITUDE_M;
+                    mVz = 0;
+                    mState = STATE_HOVERING;
+                }
+                return;
+
+            case STATE_LANDING:
+                brake(dt);
+                mVz = -LANDING_SPEED;
+                mZ += mVz * dt;
+                touchDown();
+                return;
+
+            case STATE_EMERGENCY:
+                // motors off: free fall, the momentum is kept
+                mVz -= GRAVITY * dt;
+                mX += mVx * dt;
+                mY += mVy * dt;
+                mZ += mVz * dt;
+                touchDown();
+                return;
+        }
+
+        // hovering or flying: the piloting inputs apply
+        double ax = 0;
+        double ay = 0;
+        if (mFlag != 0) {
+            // body frame: pitch forward, roll to the right
+            double forward = GRAVITY * Math.tan(mPitch / 100.0 * MAX_TILT_RAD);
+            double right = GRAVITY * Math.tan(mRoll / 100.0 * MAX_TILT_RAD);
+            double cos = Math.cos(mHeading);
+            double sin = Math.sin(mHeading);
+            ax = forward * cos + right * sin;
+            ay = forward * sin - right * cos;
+        }
+        mVx += (ax - DRAG_PER_S * mVx) * dt;
+        mVy += (ay - DRAG_PER_S * mVy) * dt;
+
+        double response = Math.min(1, dt / RESPONSE_TIME_S);
+        mVz += (mGaz / 100.0 * MAX_VERTICAL_SPEED - mVz) * response;
+        // positive yaw turns right, clockwise
+        mYawRate += (-mYaw / 100.0 * MAX_ROTATION_SPEED_RAD - mYawRate) * response;
+
+        mX += mVx * dt;
+        mY += mVy * dt;
+        mZ += mVz * dt;
+        mHeading += mYawRate * dt;
+        if (mZ < 0) {
+            // the drone stays in the air just above the ground
+            mZ = 0;
+            mVz = 0;
+        }
+
+        boolean inputs = mYaw != 0 || mGaz != 0 || (mFlag != 0 && (mPitch != 0 || mRoll != 0));
+        double speed = Math.sqrt(mVx * mVx + mVy * mVy + mVz * mVz);
+        mState = (inputs || speed > HOVERING_SPEED) ? STATE_FLYING : STATE_HOVERING;
+    }
+
+    // the store never blocks, it is fine to record with the model locked
+    private void recordTelemetry(int changedState, int changedBattery) {
+        if (changedState >= 0) {
+            mTelemetry.record(Telemetry.FLYING_STATE, mTimeMs, changedState);
+        }
+        if (changedBattery >= 0) {
+            mTelemetry.record(Telemetry.BATTERY, mTimeMs, changedBattery);
+        }
+        if (mTimeMs < mNextTelemetryAt) {
+            return;
+        }
+        mNextTelemetryAt = mTimeMs + TELEMETRY_PERIOD_MS;
+        // degrees per percent of the piloting inputs, when they apply
+        boolean tilted = (mFlag != 0) && (mState == STATE_HOVERING || mState == STATE_FLYING);
+        double tilt = tilted ? Math.toDegrees(MAX_TILT_RAD) / 100.0 : 0;
+        mTelemetry.record(Telemetry.ALTITUDE, mTimeMs, (float) mZ);
+        mTelemetry.record(Telemetry.SPEED_X, mTimeMs, (float) mVx);
+        mTelemetry.record(Telemetry.SPEED_Y, mTimeMs, (float) mVy);
+        mTelemetry.record(Telemetry.SPEED_Z, mTimeMs, (float) mVz);
+        mTelemetry.record(Telemetry.ROLL, mTimeMs, (float) (mRoll * tilt));
+        mTelemetry.record(Telemetry.PITCH, mTimeMs, (float) (mPitch * tilt));
+        mTelemetry.record(Telemetry.YAW, mTimeMs, (float) Math.toDegrees(mHeading));
+    }
+
+    private void brake(double dt) {
+        double decay = Math.max(0, 1 - DRAG_PER_S * dt);
+        mVx *= decay;
+        mVy *= decay;
+        mYawRate *= decay;
+        mX += mVx * dt;
+        mY += mVy * dt;
+        mHeading += mYawRate * dt;
+    }
+
+    private void touchDown() {
+        if (mZ <= 0) {
+            mZ = 0;
+            mVx = 0;
+            mVy = 0;
+            mVz = 0;
+            mYawRate = 0;
+            mState = STATE_LANDED;
+        }
+    }
+
+    private boolean isAirborne() {
+        return mState == STATE_TAKING_OFF || mState == STATE_HOVERING
+                || mState == STATE_FLYING || mState == STATE_LANDING;
+    }
+
+    //region getters
+    public synchronized int getState() {
+        return mState;
+    }
+
+    public synchronized double getX() {
+        return mX;
+    }
+
+    public synchronized double getY() {
+        return mY;
+    }
+
+    public synchronized double getAltitude() {
+        return mZ;
+    }
+
+    /**
+     * @return the heading in degrees, counterclockwise from the take off heading
+     */
+    public synchronized double getHeading() {
+        return Math.toDegrees(mHeading);
+    }
+
+    public synchronized double getBattery() {
+        return mBattery;
+    }
+
+    /**
+     * @return the simulated time, in milliseconds
+     */
+    public synchronized long getTimeMs() {
+        return mTimeMs;
+    }
+
+    public synchronized long getFlyingTimeMs() {
+        return mFlyingTimeMs;
+    }
+
+    public synchronized int getFlipCount() {
+        return mFlipCount;
+    }
+
+    public synchronized int getPictureCount() {
+        return mPictureCount;
+    }
+
+    /**
+     * @return the number of commands that the drone ignored in its state (take off in flight, ...)
+     */
+    public synchronized int getIgnoredCount() {
+        return mIgnoredCount;
+    }
+    //endregion getters
+}
@@ -0,0 +1,169 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+import java.nio.charset.Charset;
+
+/**
+ * Command line runner: flies scripted flights through the real command pipeline into a
+ * {@link FlightModel}, on a virtual clock, and checks where each flight ends.
+ * Every flight takes off, moves around, takes a picture, flips and lands; every tenth
+ * one is cut short by an emergency instead. Magnitudes and durations vary between
+ * flights. The telemetry recorded by the model must agree with where the flight ends.
+ *
+ * Usage: <code>java FlightSimulator [flights]</code>
+ */
+public class FlightSimulator {
+
+    private static final int DEFAULT_FLIGHTS = 5000;
+    private static final int EMERGENCY_EVERY = 10;
+
+    // the flight must be over this long after the last scripted command
+    private static final long SETTLE_MS = 10000;
+
+    // even the slowest forward move, one second in, goes that far
+    private static final double MIN_FORWARD_M = 0.1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static void main(String[] args) throws Exception {
+        int flights = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_FLIGHTS;
+        CommandTable table = PilotRunner.loadCommandTable();
+
+        int failed = 0;
+        long simulatedMs = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < flights; i++) {
+            FlightModel model = new FlightModel();
+            TelemetryStore telemetry = new TelemetryStore();
+            model.setTelemetryStore(telemetry);
+            String error = fly(table, model, i);
+            if (error == null) {
+                error = checkTelemetry(model, telemetry);
+            }
+            simulatedMs += model.getTimeMs();
+            if (error != null) {
+                failed++;
+                if (failed <= 10) {
+                    System.out.println("Flight " + i + " failed: " + error);
+                }
+            }
+        }
+        long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1000000);
+
+        System.out.println(flights + " flights in " + elapsedMs + " ms (" + (flights * 60000L / elapsedMs)
+                + " flights/min), " + (simulatedMs / 1000) + " s simulated, "
+                + (simulatedMs / elapsedMs) + "x real time");
+        System.out.println(failed == 0 ? "All flights ended as expected" : failed + " flights failed");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Fly one scripted flight
+     * @return null if the flight ended as expected, otherwise what went wrong
+     */
+    private static String fly(CommandTable table, FlightModel model, int flight) {
+        SimulationLoop loop = new SimulationLoop(model);
+        CommandPipeline pipeline = new CommandPipeline(model, loop, new CommandPipeline.Listener() {
+            @Override
+            public void onCommandDispatched(int command) {
+                // nothing to show
+            }
+        });
+        loop.setPipeline(pipeline);
+
+        int magnitude = 20 + flight % 80;
+        int duration = 500 + (flight * 37) % 2000;
+        boolean emergency = (flight % EMERGENCY_EVERY) == EMERGENCY_EVERY - 1;
+
+        long t = 0;
+        send(table, pipeline, loop, t, "take off");
+        t += 3000;
+        send(table, pipeline, loop, t, "up " + magnitude + " percent for " + duration + " milliseconds");
+        t += duration + 500;
+        send(table, pipeline, loop, t, "forward " + magnitude + " percent for 2 seconds");
+        t += 1000;
+        loop.runUntil(t);
+        double forward = model.getX();
+        if (emergency) {
+            // the emergency button of the app, there is no such voice command
+            loop.runUntil(t);
+            pipeline.submit(PackedCommand.of(Commands.EMERGENCY), System.nanoTime());
+        } else {
+            t += 1500;
+            send(table, pipeline, loop, t, "spin right for " + duration + " milliseconds");
+            t += duration + 500;
+            send(table, pipeline, loop, t, "take picture");
+            send(table, pipeline, loop, t, "flip");
+            t += 1000;
+            send(table, pipeline, loop, t, "left");
+            t += 1500;
+            send(table, pipeline, loop, t, "land");
+        }
+        loop.runUntil(t + SETTLE_MS);
+
+        if (model.getState() != FlightModel.STATE_LANDED) {
+            return "still " + FlightModel.stateName(model.getState());
+        }
+        if (model.getAltitude() != 0) {
+            return "landed at " + model.getAltitude() + " m";
+        }
+        if (forward < MIN_FORWARD_M) {
+            return "did not go forward, x=" + forward;
+        }
+        if (model.getIgnoredCount() != 0) {
+            return model.getIgnoredCount() + " commands ignored";
+        }
+        if (!emergency) {
+            if (model.getFlipCount() != 1 || model.getPictureCount() != 1) {
+                return model.getFlipCount() + " flips, " + model.getPictureCount() + " pictures";
+            }
+            if (model.getHeading() >= 0) {
+                return "did not spin right, heading=" + model.getHeading();
+            }
+        }
+        if (model.getBattery() >= 100) {
+            return "the battery did not drain";
+        }
+        return null;
+    }
+
+    /**
+     * @return null if the telemetry agrees with the model, otherwise what differs
+     */
+    private static String checkTelemetry(FlightModel model, TelemetryStore telemetry) {
+        if (telemetry.getLatest(Telemetry.FLYING_STATE) != model.getState()) {
+            return "telemetry state " + telemetry.getLatest(Telemetry.FLYING_STATE);
+        }
+        if (telemetry.getLatest(Telemetry.ALTITUDE) != (float) model.getAltitude()) {
+            return "telemetry altitude " + telemetry.getLatest(Telemetry.ALTITUDE);
+        }
+        long[] times = new long[telemetry.getCapacity()];
+        float[] altitudes = new float[telemetry.getCapacity()];
+        int n = telemetry.readLast(Telemetry.ALTITUDE, SETTLE_MS, times, altitudes);
+        if (n == 0 || times[n - 1] != telemetry.getNewestTime() || times[0] < times[n - 1] - SETTLE_MS) {
+            return "telemetry of the last " + SETTLE_MS + " ms: " + n + " samples";
+        }
+        // the drone was over the ground in the flight, and on the ground at the end
+        float highest = 0;
+        n = telemetry.readSince(Telemetry.ALTITUDE, 0, times, altitudes);
+        for (int i = 0; i < n; i++) {
+            highest = Math.max(highest, altitudes[i]);
+        }
+        if (highest < FlightModel.TAKE_OFF_ALTITUDE_M / 2 || altitudes[n - 1] != 0) {
+            return "telemetry altitudes up to " + highest + " m, last " + altitudes[n - 1] + " m";
+        }
+        return null;
+    }
+
+    private static void send(CommandTable table, CommandPipeline pipeline, SimulationLoop loop, long at,
+                             String phrase) {
+        loop.runUntil(at);
+        byte[] data = phrase.getBytes(UTF8);
+        long command = table.parse(data, 0, data.length);
+        if (command == PackedCommand.NONE) {
+            throw new IllegalArgumentException("Not a command: " + phrase);
+        }
+        pipeline.submit(command, System.nanoTime());
+    }
+}
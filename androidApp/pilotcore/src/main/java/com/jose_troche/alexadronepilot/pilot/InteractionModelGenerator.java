@@ -0,0 +1,321 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Command line generator of the Alexa interaction model from the command vocabulary,
+ * LIST_OF_COMMANDS, so that the skill and the app resolve the same phrases to the same
+ * commands. Each command of the vocabulary is a value of the slot type, named after
+ * {@link Commands#name(int)}, with its other phrases as synonyms, in the order they first
+ * appear. The id of a value is the command name in upper case, which the Lambda maps to
+ * its opcode.
+ * Given the Lambda too, rewrites its generated vocabulary: the opcode of every phrase and
+ * slot value id, and the words of the parameters as {@link CommandTable} parses them, so
+ * that the Lambda publishes only commands the app would accept.
+ * Fails when a phrase does not resolve to a command, as {@link CommandTable} does.
+ *
+ * Usage: <code>java InteractionModelGenerator [model file] [lambda file]</code>, the model to
+ * the standard output by default
+ */
+public class InteractionModelGenerator {
+
+    private static final String INVOCATION_NAME = "drone pilot";
+    private static final String[] STOP_SAMPLES = {"bye", "goodbye", "stop", "cancel"};
+
+    private static final String BEGIN_GENERATED = "// ---- generated from LIST_OF_COMMANDS by InteractionModelGenerator"
+            + " (gradle interactionmodel), do not edit ----\n";
+    private static final String END_GENERATED = "// ---- end of the generated vocabulary ----\n";
+    private static final int LINE_LENGTH = 100;
+
+    public static void main(String[] args) throws IOException {
+        List<String> phrases = loadPhrases();
+        String model = generate(phrases);
+        if (args.length == 0) {
+            System.out.print(model);
+            return;
+        }
+        write(args[0], model);
+        System.out.println("Wrote " + args[0] + " from " + phrases.size() + " phrases");
+        if (args.length > 1) {
+            write(args[1], withVocabulary(read(args[1]), generateVocabulary(phrases)));
+            System.out.println("Wrote the vocabulary of " + args[1]);
+        }
+    }
+
+    /**
+     * @param phrases the phrases of LIST_OF_COMMANDS
+     * @return the vocabulary of the Lambda, in JavaScript, between the generated markers
+     * @throws IllegalArgumentException if a phrase does not resolve to a command
+     */
+    static String generateVocabulary(List<String> phrases) {
+        List<String> entries = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        List<String> movements = new ArrayList<>();
+        int maxWords = 0;
+        for (String phrase : phrases) {
+            String p = CommandTable.normalize(phrase);
+            int opcode = resolve(p);
+            String entry = quoteJs(p) + ": " + opcode;
+            if (!entries.contains(entry)) {
+                entries.add(entry);
+            }
+            String id = quoteJs(idOf(Commands.name(opcode))) + ": " + opcode;
+            if (!ids.contains(id)) {
+                ids.add(id);
+            }
+            if (Commands.isMovement(opcode) && !movements.contains(String.valueOf(opcode))) {
+                movements.add(String.valueOf(opcode));
+            }
+            maxWords = Math.max(maxWords, p.split(" ").length);
+        }
+
+        StringBuilder sb = new StringBuilder(BEGIN_GENERATED);
+        sb.append("// The opcodes of the drone app (Commands.java), by phrase and by id of the LIST_OF_COMMANDS\n");
+        sb.append("// slot values. Emergency is not one of them: it is the button of the app, never a voice command\n");
+        appendJsObject(sb, "PHRASES", entries);
+        appendJsObject(sb, "OPCODE_IDS", ids);
+        sb.append("var MAX_PHRASE_WORDS = ").append(maxWords).append(";\n");
+        sb.append("// The commands that move the drone, the only ones taking a magnitude and a duration\n");
+        sb.append("var MOVEMENTS = [").append(join(movements)).append("];\n");
+        sb.append("// The words of the parameters, as CommandTable.java parses them\n");
+        appendJsArray(sb, "PERCENT_WORDS", CommandTable.PERCENT_WORDS);
+        appendJsArray(sb, "SECOND_WORDS", CommandTable.SECOND_WORDS);
+        appendJsArray(sb, "MILLISECOND_WORDS", CommandTable.MILLISECOND_WORDS);
+        appendJsArray(sb, "FILLER_WORDS", CommandTable.FILLERS);
+        appendJsArray(sb, "NUMBER_WORDS", CommandTable.UNITS);
+        appendJsArray(sb, "TENS_WORDS", CommandTable.TENS);
+        sb.append("var HUNDRED_WORD = ").append(quoteJs(CommandTable.HUNDRED)).append(";\n");
+        sb.append("var DEFAULT_MAGNITUDE = ").append(PackedCommand.DEFAULT_MAGNITUDE).append(";\n");
+        sb.append("var MAX_MAGNITUDE = ").append(PackedCommand.MAX_MAGNITUDE).append(";\n");
+        sb.append("var DEFAULT_DURATION_MS = ").append(PackedCommand.DEFAULT_DURATION_MS).append(";\n");
+        sb.append("var MAX_DURATION_MS = ").append(PackedCommand.MAX_DURATION_MS).append(";\n");
+        sb.append(END_GENERATED);
+        return sb.toString();
+    }
+
+    /**
+     * @return the source of the Lambda with the given vocabulary in place of its generated one
+     * @throws IllegalArgumentException if the source has no generated vocabulary
+     */
+    static String withVocabulary(String source, String vocabulary) {
+        int begin = source.indexOf(BEGIN_GENERATED);
+        int end = source.indexOf(END_GENERATED);
+        if ((begin < 0) || (end < begin)) {
+            throw new IllegalArgumentException("No generated vocabulary in the Lambda");
+        }
+        return source.substring(0, begin) + vocabulary + source.substring(end + END_GENERATED.length());
+    }
+
+    private static int resolve(String phrase) {
+        int opcode = CommandTable.resolve(phrase);
+        if (opcode == Commands.UNKNOWN) {
+            throw new IllegalArgumentException("Phrase does not resolve to a command: " + phrase);
+        }
+        return opcode;
+    }
+
+    // one declaration, wrapped at the line length
+    private static void appendJsObject(StringBuilder sb, String name, List<String> entries) {
+        sb.append("var ").append(name).append(" = {\n");
+        appendWrapped(sb, entries);
+        sb.append("};\n");
+    }
+
+    private static void appendJsArray(StringBuilder sb, String name, String[] words) {
+        List<String> values = new ArrayList<>();
+        for (String word : words) {
+            values.add((word != null) ? quoteJs(word) : "null");
+        }
+        String line = "var " + name + " = [" + join(values) + "];";
+        if (line.length() <= LINE_LENGTH) {
+            sb.append(line).append('\n');
+            return;
+        }
+        sb.append("var ").append(name).append(" = [\n");
+        appendWrapped(sb, values);
+        sb.append("];\n");
+    }
+
+    private static void appendWrapped(StringBuilder sb, List<String> values) {
+        StringBuilder line = new StringBuilder("   ");
+        for (int i = 0; i < values.size(); i++) {
+            String value = " " + values.get(i) + ((i < values.size() - 1) ? "," : "");
+            if ((line.length() + value.length() > LINE_LENGTH) && (line.length() > 3)) {
+                sb.append(line).append('\n');
+                line.setLength(3);
+            }
+            line.append(value);
+        }
+        sb.append(line).append('\n');
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            sb.append((sb.length() > 0) ? ", " : "").append(value);
+        }
+        return sb.toString();
+    }
+
+    // the words are lower case letters and blanks, nothing to escape
+    private static String quoteJs(String value) {
+        return "'" + value + "'";
+    }
+
+    private static String read(String path) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(new File(path)), "UTF-8");
+        try {
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[4096];
+            int n;
+            while ((n = reader.read(buffer)) > 0) {
+                sb.append(buffer, 0, n);
+            }
+            return sb.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void write(String path, String content) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(new File(path)), "UTF-8");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @param phrases the phrases of LIST_OF_COMMANDS
+     * @return the interaction model, in JSON
+     * @throws IllegalArgumentException if a phrase does not resolve to a command
+     */
+    static String generate(List<String> phrases) {
+        // the phrases of each command, commands in order of first appearance
+        List<Integer> opcodes = new ArrayList<>();
+        List<List<String>> synonyms = new ArrayList<>();
+        for (String phrase : phrases) {
+            String p = CommandTable.normalize(phrase);
+            int opcode = resolve(p);
+            int index = opcodes.indexOf(opcode);
+            if (index < 0) {
+                index = opcodes.size();
+                opcodes.add(opcode);
+                synonyms.add(new ArrayList<String>());
+            }
+            if (!p.equals(Commands.name(opcode)) && !synonyms.get(index).contains(p)) {
+                synonyms.get(index).add(p);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"interactionModel\": {\n");
+        sb.append("    \"languageModel\": {\n");
+        sb.append("      \"invocationName\": ").append(quote(INVOCATION_NAME)).append(",\n");
+        sb.append("      \"intents\": [\n");
+        sb.append("        {\n");
+        sb.append("          \"name\": \"CommandIntent\",\n");
+        sb.append("          \"slots\": [\n");
+        sb.append("            {\n");
+        sb.append("              \"name\": \"Command\",\n");
+        sb.append("              \"type\": \"LIST_OF_COMMANDS\"\n");
+        sb.append("            }\n");
+        sb.append("          ],\n");
+        sb.append("          \"samples\": [\n");
+        sb.append("            \"{Command}\"\n");
+        sb.append("          ]\n");
+        sb.append("        },\n");
+        sb.append("        {\n");
+        sb.append("          \"name\": \"AMAZON.HelpIntent\",\n");
+        sb.append("          \"samples\": []\n");
+        sb.append("        },\n");
+        sb.append("        {\n");
+        sb.append("          \"name\": \"AMAZON.StopIntent\",\n");
+        sb.append("          \"samples\": ");
+        appendList(sb, STOP_SAMPLES, "          ");
+        sb.append("\n");
+        sb.append("        }\n");
+        sb.append("      ],\n");
+        sb.append("      \"types\": [\n");
+        sb.append("        {\n");
+        sb.append("          \"name\": \"LIST_OF_COMMANDS\",\n");
+        sb.append("          \"values\": [\n");
+        for (int i = 0; i < opcodes.size(); i++) {
+            String name = Commands.name(opcodes.get(i));
+            sb.append("            {\n");
+            sb.append("              \"id\": ").append(quote(idOf(name))).append(",\n");
+            sb.append("              \"name\": {\n");
+            sb.append("                \"value\": ").append(quote(name)).append(",\n");
+            sb.append("                \"synonyms\": ");
+            appendList(sb, synonyms.get(i).toArray(new String[0]), "                ");
+            sb.append("\n");
+            sb.append("              }\n");
+            sb.append("            }").append(i < opcodes.size() - 1 ? ",\n" : "\n");
+        }
+        sb.append("          ]\n");
+        sb.append("        }\n");
+        sb.append("      ]\n");
+        sb.append("    }\n");
+        sb.append("  }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * @return the slot value id of a command name, as "TAKE_OFF"
+     */
+    static String idOf(String name) {
+        return name.toUpperCase(Locale.US).replace(' ', '_');
+    }
+
+    private static void appendList(StringBuilder sb, String[] values, String indent) {
+        if (values.length == 0) {
+            sb.append("[]");
+            return;
+        }
+        sb.append("[\n");
+        for (int i = 0; i < values.length; i++) {
+            sb.append(indent).append("  ").append(quote(values[i])).append(i < values.length - 1 ? ",\n" : "\n");
+        }
+        sb.append(indent).append("]");
+    }
+
+    // the phrases are lower case letters and blanks, nothing to escape
+    private static String quote(String value) {
+        return "\"" + value + "\"";
+    }
+
+    private static List<String> loadPhrases() throws IOException {
+        InputStream in = InteractionModelGenerator.class.getResourceAsStream(PilotRunner.COMMANDS_RESOURCE);
+        if (in == null) {
+            throw new IOException("Missing command vocabulary " + PilotRunner.COMMANDS_RESOURCE);
+        }
+        List<String> phrases = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    phrases.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return phrases;
+    }
+}
@@ -0,0 +1,107 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Preallocated latency histogram with HDR style log-linear buckets.
+ * Values are kept in microseconds, each power of two range is split in
+ * {@link #SUB_BUCKETS} linear buckets, so any recorded value is known within
+ * 1 / {@link #SUB_BUCKETS} of its magnitude. Recording is a couple of shifts
+ * and one atomic increment, it never allocates and can be called from any thread.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // values up to 2^MAX_VALUE_BITS microseconds (over an hour), larger values are clamped
+    private static final int MAX_VALUE_BITS = 32;
+    private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+    private static final int BUCKET_COUNT = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * Record a latency
+     * @param nanos the latency in nanoseconds, negative values count as 0
+     */
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    /**
+     * Record a latency
+     * @param micros the latency in microseconds, negative values count as 0
+     */
+    public void recordMicros(long micros) {
+        long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+        mCounts.incrementAndGet(bucketOf(value));
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Add the counts of this histogram to another one
+     */
+    public void addTo(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = mCounts.get(i);
+            if (count != 0) {
+                other.mCounts.addAndGet(i, count);
+            }
+        }
+    }
+
+    /**
+     * Get the value under which a given percentage of the recorded values fall
+     * @param percentile from 0 to 100
+     * @return the upper bound of the matching bucket, in microseconds, 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= target) {
+                return upperBoundOf(i);
+            }
+        }
+        return MAX_VALUE;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // shift the value so that it lands in [SUB_BUCKETS, 2 * SUB_BUCKETS):
+        // the shift picks the power of two range, the shifted value the linear bucket in it
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket / SUB_BUCKETS) - 1;
+        long subBucket = (bucket % SUB_BUCKETS) + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
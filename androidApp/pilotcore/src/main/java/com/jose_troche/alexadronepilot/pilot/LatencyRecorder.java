@@ -0,0 +1,105 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+import java.util.Locale;
+
+/**
+ * End to end latency of the commands, one {@link LatencyHistogram} per stage
+ * and per command opcode, all allocated up front.
+ * Every stage but {@link #STAGE_CLOUD} is measured from the moment the message
+ * is received by the device.
+ */
+public class LatencyRecorder {
+
+    /** From the publication by the Lambda (its timestamp) to the reception, skewed by the clocks offset */
+    public static final int STAGE_CLOUD = 0;
+    /** From the reception to the decoded command */
+    public static final int STAGE_DECODE = 1;
+    /** From the reception to the command taken by the control thread */
+    public static final int STAGE_DISPATCH = 2;
+    /** From the reception to the command sent to the drone */
+    public static final int STAGE_SEND = 3;
+
+    public static final int STAGE_COUNT = 4;
+
+    private static final String[] STAGE_NAMES = {"cloud", "decode", "dispatch", "send"};
+
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+
+    private final LatencyHistogram[][] mHistograms = new LatencyHistogram[STAGE_COUNT][Commands.COUNT];
+
+    public LatencyRecorder() {
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            for (int command = 0; command < Commands.COUNT; command++) {
+                mHistograms[stage][command] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * Record the latency of a command at a stage
+     * Can be called from any thread, never allocates
+     * @param stage one of the STAGE_ constants
+     * @param command the command opcode
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(int stage, int command, long nanos) {
+        if ((command < 0) || (command >= Commands.COUNT)) {
+            command = Commands.UNKNOWN;
+        }
+        mHistograms[stage][command].recordNanos(nanos);
+    }
+
+    /**
+     * @return the histogram of a stage for a command opcode
+     */
+    public LatencyHistogram getHistogram(int stage, int command) {
+        return mHistograms[stage][command];
+    }
+
+    /**
+     * @return the histogram of a stage for all commands together, a new snapshot
+     */
+    public LatencyHistogram getStageHistogram(int stage) {
+        LatencyHistogram all = new LatencyHistogram();
+        for (int command = 0; command < Commands.COUNT; command++) {
+            mHistograms[stage][command].addTo(all);
+        }
+        return all;
+    }
+
+    /**
+     * Build a human readable report of p50/p99/p999 per stage and per command
+     * Allocates, not meant for the command path.
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            appendLine(sb, STAGE_NAMES[stage], "all", getStageHistogram(stage));
+            for (int command = 0; command < Commands.COUNT; command++) {
+                LatencyHistogram histogram = mHistograms[stage][command];
+                if (histogram.getCount() > 0) {
+                    appendLine(sb, STAGE_NAMES[stage], Commands.name(command), histogram);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    public void reset() {
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            for (int command = 0; command < Commands.COUNT; command++) {
+                mHistograms[stage][command].reset();
+            }
+        }
+    }
+
+    static void appendLine(StringBuilder sb, String stage, String command, LatencyHistogram histogram) {
+        sb.append(String.format(Locale.US, "%-8s %-12s n=%d", stage, command, histogram.getCount()));
+        for (double percentile : PERCENTILES) {
+            sb.append(String.format(Locale.US, " p%s=%dus",
+                    (percentile == 99.9) ? "999" : String.valueOf((int) percentile),
+                    histogram.getValueAtPercentile(percentile)));
+        }
+        sb.append('\n');
+    }
+}
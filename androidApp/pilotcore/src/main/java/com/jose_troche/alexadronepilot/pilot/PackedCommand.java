@@ -0,0 +1,61 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+/**
+ * A command packed in a single long, so it can be passed between threads and
+ * stored in queues without allocating:
+ * bits 0-7 opcode, bits 8-15 magnitude (percent, 0 to 100),
+ * bits 16-47 duration (milliseconds), bits 48-55 route (the drone the command is for,
+ * see {@link com.jose_troche.alexadronepilot.aws_iot.ThingRoutes}).
+ * The packed value 0 is the unknown command.
+ */
+public final class PackedCommand {
+
+    /** Magnitude used when the command does not give one, in percent */
+    public static final int DEFAULT_MAGNITUDE = 50;
+    /** Duration used when the command does not give one, in milliseconds */
+    public static final long DEFAULT_DURATION_MS = 1000;
+
+    public static final int MAX_MAGNITUDE = 100;
+    /** Longest duration a single voice command may ask for, in milliseconds */
+    public static final long MAX_DURATION_MS = 10000;
+
+    public static final long NONE = 0;
+
+    private PackedCommand() {}
+
+    public static long pack(int opcode, int magnitude, long durationMs) {
+        return (opcode & 0xFFL)
+                | ((magnitude & 0xFFL) << 8)
+                | ((durationMs & 0xFFFFFFFFL) << 16);
+    }
+
+    /**
+     * Pack a command with the default magnitude and duration
+     */
+    public static long of(int opcode) {
+        return pack(opcode, DEFAULT_MAGNITUDE, DEFAULT_DURATION_MS);
+    }
+
+    public static int opcode(long command) {
+        return (int) (command & 0xFF);
+    }
+
+    public static int magnitude(long command) {
+        return (int) ((command >>> 8) & 0xFF);
+    }
+
+    public static long durationMs(long command) {
+        return (command >>> 16) & 0xFFFFFFFFL;
+    }
+
+    public static int route(long command) {
+        return (int) ((command >>> 48) & 0xFF);
+    }
+
+    /**
+     * @return the command, for the given route
+     */
+    public static long withRoute(long command, int route) {
+        return (command & ~(0xFFL << 48)) | ((route & 0xFFL) << 48);
+    }
+}
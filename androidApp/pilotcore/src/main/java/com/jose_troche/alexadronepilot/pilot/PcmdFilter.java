@@ -0,0 +1,150 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+/**
+ * Filters the PCMD values on their way to the {@link DroneController}, axis by axis, to
+ * spare the BLE link of the MiniDrone.
+ * A value equal to the last one sent on its axis is suppressed. A new value less than the
+ * minimum interval after the previous send on its axis is deferred: it goes out at the
+ * first {@link #flush(long)} once the interval has elapsed, unless a newer value replaces
+ * it first, so a burst of voice commands costs one send per axis and interval.
+ * Going back to neutral (0) is never deferred: stopping is never late. The flag has no
+ * interval of its own, but waits for the roll and pitch deferred with it: the drone never
+ * gets the flag of a movement with the roll and pitch of the previous one.
+ * Not thread safe: the owner calls every method from its control thread.
+ */
+public class PcmdFilter {
+
+    public static final long MIN_INTERVAL_MS = PilotingScheduler.TICK_PERIOD_MS;
+
+    // the piloting axes, then the flag
+    private static final int FLAG = PilotingScheduler.AXIS_COUNT;
+    private static final int CHANNEL_COUNT = PilotingScheduler.AXIS_COUNT + 1;
+
+    private final DroneController mDrone;
+
+    // per channel, the drone starts neutral
+    private final byte[] mSent = new byte[CHANNEL_COUNT];
+    private final long[] mSentAt = new long[CHANNEL_COUNT];
+    private final byte[] mPending = new byte[CHANNEL_COUNT];
+    private final boolean[] mHasPending = new boolean[CHANNEL_COUNT];
+
+    private long mSentCount;
+    private long mSuppressedCount;
+    private long mDeferredCount;
+
+    public PcmdFilter(DroneController drone) {
+        mDrone = drone;
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            mSentAt[i] = Long.MIN_VALUE / 2;
+        }
+    }
+
+    /**
+     * Offer a complete PCMD, each value goes to the drone or is suppressed or deferred
+     * @param now the current time (in milliseconds)
+     */
+    public void offer(byte roll, byte pitch, byte yaw, byte gaz, byte flag, long now) {
+        offer(PilotingScheduler.AXIS_ROLL, roll, now);
+        offer(PilotingScheduler.AXIS_PITCH, pitch, now);
+        offer(PilotingScheduler.AXIS_YAW, yaw, now);
+        offer(PilotingScheduler.AXIS_GAZ, gaz, now);
+        offer(FLAG, flag, now);
+    }
+
+    private void offer(int channel, byte value, long now) {
+        if (mHasPending[channel]) {
+            if (value == mPending[channel]) {
+                mSuppressedCount++;
+                return;
+            }
+            // replaced before it went out, counted once with the value replacing it
+            mHasPending[channel] = false;
+            mSuppressedCount++;
+            if (value == mSent[channel]) {
+                return;
+            }
+        }
+        if (value == mSent[channel]) {
+            mSuppressedCount++;
+        } else if (isDue(channel, value, now)) {
+            send(channel, value, now);
+        } else {
+            mPending[channel] = value;
+            mHasPending[channel] = true;
+            mDeferredCount++;
+        }
+    }
+
+    /**
+     * Send the deferred values whose interval has elapsed
+     * @param now the current time (in milliseconds)
+     * @return true if values are still deferred
+     */
+    public boolean flush(long now) {
+        boolean pending = false;
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if (mHasPending[channel]) {
+                // the flag last, once the roll and pitch it goes with are out
+                if (isDue(channel, mPending[channel], now)) {
+                    mHasPending[channel] = false;
+                    send(channel, mPending[channel], now);
+                } else {
+                    pending = true;
+                }
+            }
+        }
+        return pending;
+    }
+
+    private boolean isDue(int channel, byte value, long now) {
+        if (channel == FLAG) {
+            return !mHasPending[PilotingScheduler.AXIS_ROLL] && !mHasPending[PilotingScheduler.AXIS_PITCH];
+        }
+        return (value == 0) || (now - mSentAt[channel] >= MIN_INTERVAL_MS);
+    }
+
+    private void send(int channel, byte value, long now) {
+        mSent[channel] = value;
+        mSentAt[channel] = now;
+        mSentCount++;
+        switch (channel) {
+            case PilotingScheduler.AXIS_ROLL:
+                mDrone.setRoll(value);
+                break;
+            case PilotingScheduler.AXIS_PITCH:
+                mDrone.setPitch(value);
+                break;
+            case PilotingScheduler.AXIS_YAW:
+                mDrone.setYaw(value);
+                break;
+            case PilotingScheduler.AXIS_GAZ:
+                mDrone.setGaz(value);
+                break;
+            case FLAG:
+                mDrone.setFlag(value);
+                break;
+        }
+    }
+
+    /**
+     * @return the number of values sent to the drone
+     */
+    public long getSentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * @return the number of offered values that never went out: equal to the last one sent, or
+     *          deferred then replaced; a value replaced by the one already sent counts once
+     */
+    public long getSuppressedCount() {
+        return mSuppressedCount;
+    }
+
+    /**
+     * @return the number of values held back by the rate limit, sent later or replaced
+     */
+    public long getDeferredCount() {
+        return mDeferredCount;
+    }
+}
@@ -0,0 +1,168 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+import com.jose_troche.alexadronepilot.aws_iot.CommandDecoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Command line runner: pushes MQTT drone messages through the real decoding and
+ * dispatch path (decoder, queue, scheduler, safety lane) into a {@link SimulatedDrone},
+ * then prints the statistics of the pipeline.
+ *
+ * Usage: <code>java PilotRunner [messages] [producers] [drones]</code>
+ * With more than one drone, the messages are fanned out to a {@link DronePool} by a
+ * single producer, and the report gives the latency per drone and the skew.
+ * Run it with <code>gradle :pilotcore:run</code>, or under a profiler.
+ */
+public class PilotRunner {
+
+    static final String COMMANDS_RESOURCE = "/LIST_OF_COMMANDS";
+
+    private static final int DEFAULT_MESSAGES = 1000000;
+    private static final int DEFAULT_PRODUCERS = 2;
+
+    // a take off, a burst of movements, a few one shot commands and a landing, over and over
+    private static final String[] SCRIPT = {
+            "take off",
+            "go up 30 percent for 2 seconds",
+            "forward",
+            "forward 80 percent",
+            "spin right for 500 milliseconds",
+            "left twenty percent",
+            "backward",
+            "flip",
+            "take picture",
+            "down",
+            "land",
+    };
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MESSAGES;
+        int producers = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PRODUCERS;
+        int drones = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+        final CommandTable table = loadCommandTable();
+        final byte[][] payloads = new byte[SCRIPT.length + 1][];
+        Charset utf8 = Charset.forName("UTF-8");
+        for (int i = 0; i < SCRIPT.length; i++) {
+            payloads[i] = ("{ \"command\": \"" + SCRIPT[i] + "\", \"seq\": " + i + " }").getBytes(utf8);
+        }
+        // an unknown command, dropped by the decoder
+        payloads[SCRIPT.length] = "{ \"command\": \"barrel roll\" }".getBytes(utf8);
+
+        if (drones > 1) {
+            runFleet(table, payloads, messages, drones);
+            return;
+        }
+
+        SimulatedDrone drone = new SimulatedDrone();
+        ControlLoop loop = new ControlLoop("PilotRunner");
+        final CommandPipeline pipeline = new CommandPipeline(drone, loop, NO_LISTENER);
+        loop.start(pipeline);
+
+        final int perProducer = messages / producers;
+        Thread[] threads = new Thread[producers];
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    CommandDecoder decoder = new CommandDecoder(table);
+                    LatencyRecorder latencyRecorder = pipeline.getLatencyRecorder();
+                    for (int i = 0; i < perProducer; i++) {
+                        long receivedAt = System.nanoTime();
+                        long command = decoder.decode(payloads[i % payloads.length]);
+                        if (command == PackedCommand.NONE) {
+                            continue;
+                        }
+                        latencyRecorder.record(LatencyRecorder.STAGE_DECODE, PackedCommand.opcode(command),
+                                System.nanoTime() - receivedAt);
+                        pipeline.submit(command, receivedAt);
+                    }
+                }
+            }, "producer-" + p);
+            threads[p].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        waitForIdle(loop, pipeline);
+        long elapsed = System.nanoTime() - start;
+        loop.quit();
+
+        long total = (long) perProducer * producers;
+        System.out.println(total + " messages from " + producers + " producers in " + (elapsed / 1000000)
+                + " ms, " + (total * 1000000000L / Math.max(1, elapsed)) + " messages/s");
+        System.out.print(pipeline.report());
+        System.out.println(drone.report());
+    }
+
+    /**
+     * Fan the messages out to a fleet, from a single producer like the MQTT client thread
+     */
+    private static void runFleet(CommandTable table, byte[][] payloads, int messages, int drones)
+            throws InterruptedException {
+        DronePool pool = new DronePool();
+        SimulatedDrone[] members = new SimulatedDrone[drones];
+        ControlLoop[] loops = new ControlLoop[drones];
+        CommandPipeline[] pipelines = new CommandPipeline[drones];
+        for (int d = 0; d < drones; d++) {
+            members[d] = new SimulatedDrone();
+            loops[d] = new ControlLoop("drone-" + d);
+            pipelines[d] = new CommandPipeline(members[d], loops[d], NO_LISTENER);
+            pool.add("drone-" + d, pipelines[d]);
+            loops[d].start(pipelines[d]);
+        }
+
+        CommandDecoder decoder = new CommandDecoder(table);
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            long receivedAt = System.nanoTime();
+            long command = decoder.decode(payloads[i % payloads.length]);
+            if (command != PackedCommand.NONE) {
+                pool.submit(command, receivedAt);
+            }
+        }
+        for (int d = 0; d < drones; d++) {
+            waitForIdle(loops[d], pipelines[d]);
+        }
+        long elapsed = System.nanoTime() - start;
+        for (ControlLoop loop : loops) {
+            loop.quit();
+        }
+
+        System.out.println(messages + " messages to " + drones + " drones in " + (elapsed / 1000000)
+                + " ms, " + (messages * 1000000000L / Math.max(1, elapsed)) + " messages/s");
+        System.out.print(pool.report());
+    }
+
+    private static void waitForIdle(ControlLoop loop, CommandPipeline pipeline) {
+        while (!loop.isIdle() || pipeline.getCommandQueue().size() > 0) {
+            Thread.yield();
+        }
+    }
+
+    private static final CommandPipeline.Listener NO_LISTENER = new CommandPipeline.Listener() {
+        @Override
+        public void onCommandDispatched(int command) {
+            // nothing to show
+        }
+    };
+
+    /**
+     * @return the command vocabulary, compiled from the LIST_OF_COMMANDS resource
+     */
+    public static CommandTable loadCommandTable() throws IOException {
+        InputStream in = PilotRunner.class.getResourceAsStream(COMMANDS_RESOURCE);
+        if (in == null) {
+            throw new IOException("Missing command vocabulary " + COMMANDS_RESOURCE);
+        }
+        try {
+            return CommandTable.compile(in);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+/**
+ * Holds the target value and expiry deadline of each piloting axis and
+ * composes them into one PCMD update per tick.
+ * A new command on an axis replaces the previous one (value and deadline), so
+ * overlapping commands can no longer cut each other short. The flag is set
+ * automatically whenever roll or pitch is non zero.
+ * Not thread safe: the owner calls every method from its control thread.
+ */
+public class PilotingScheduler {
+
+    /** Tick period of the PCMD loop, in milliseconds */
+    public static final long TICK_PERIOD_MS = 50;
+
+    public static final int AXIS_ROLL = 0;
+    public static final int AXIS_PITCH = 1;
+    public static final int AXIS_YAW = 2;
+    public static final int AXIS_GAZ = 3;
+
+    public static final int AXIS_COUNT = 4;
+
+    /**
+     * Get the axis a movement command acts on
+     * @param command the command opcode
+     * @return one of the AXIS_ constants, -1 if the command is not a movement
+     */
+    public static int axisOf(int command) {
+        switch (command) {
+            case Commands.UP:
+            case Commands.DOWN:
+                return AXIS_GAZ;
+            case Commands.FORWARD:
+            case Commands.BACKWARD:
+                return AXIS_PITCH;
+            case Commands.RIGHT:
+            case Commands.LEFT:
+                return AXIS_ROLL;
+            case Commands.SPIN_RIGHT:
+            case Commands.SPIN_LEFT:
+                return AXIS_YAW;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return -1 if a movement command goes in the negative direction of its axis, 1 otherwise
+     */
+    public static int directionOf(int command) {
+        switch (command) {
+            case Commands.DOWN:
+            case Commands.BACKWARD:
+            case Commands.LEFT:
+            case Commands.SPIN_LEFT:
+                return -1;
+            default:
+                return 1;
+        }
+    }
+
+    public interface Output {
+        /**
+         * Called on each tick where the composed PCMD differs from the last one sent
+         * @param roll side angle, from -100 to 100
+         * @param pitch forward/backward angle, from -100 to 100
+         * @param yaw rotation speed, from -100 to 100
+         * @param gaz vertical speed, from -100 to 100
+         * @param flag 1 if roll and pitch should be used, 0 otherwise
+         */
+        void onPcmd(byte roll, byte pitch, byte yaw, byte gaz, byte flag);
+    }
+
+    private final Output mOutput;
+
+    private int mRollTarget;
+    private int mPitchTarget;
+    private int mYawTarget;
+    private int mGazTarget;
+    private long mRollDeadline;
+    private long mPitchDeadline;
+    private long mYawDeadline;
+    private long mGazDeadline;
+
+    private boolean mSentOnce;
+    private byte mSentRoll;
+    private byte mSentPitch;
+    private byte mSentYaw;
+    private byte mSentGaz;
+    private byte mSentFlag;
+
+    // tick timing statistics
+    private long mTickCount;
+    private long mLateTickCount;
+    private long mMaxJitterMs;
+    private long mTotalJitterMs;
+    private final LatencyHistogram mJitter = new LatencyHistogram();
+
+    public PilotingScheduler(Output output) {
+        mOutput = output;
+    }
+
+    /**
+     * Set an axis for a while
+     * @param axis one of the AXIS_ constants
+     * @param value the axis value, from -100 to 100
+     * @param now the current time (in milliseconds)
+     * @param duration how long the value is applied (in milliseconds)
+     */
+    public void setAxis(int axis, int value, long now, long duration) {
+        long deadline = now + duration;
+        switch (axis) {
+            case AXIS_ROLL:
+                mRollTarget = value;
+                mRollDeadline = deadline;
+                break;
+            case AXIS_PITCH:
+                mPitchTarget = value;
+                mPitchDeadline = deadline;
+                break;
+            case AXIS_YAW:
+                mYawTarget = value;
+                mYawDeadline = deadline;
+                break;
+            case AXIS_GAZ:
+                mGazTarget = value;
+                mGazDeadline = deadline;
+                break;
+        }
+    }
+
+    /**
+     * Drop every axis target, the next tick sends a neutral PCMD
+     */
+    public void clear() {
+        mRollDeadline = 0;
+        mPitchDeadline = 0;
+        mYawDeadline = 0;
+        mGazDeadline = 0;
+    }
+
+    /**
+     * Compose the axes and send the PCMD if it changed
+     * @param now the current time (in milliseconds)
+     * @param scheduledAt the time this tick was due (in milliseconds), used to measure jitter
+     * @return true if the loop should keep ticking (an axis is active or a neutral PCMD is still to be sent)
+     */
+    public boolean tick(long now, long scheduledAt) {
+        long jitter = now - scheduledAt;
+        mTickCount++;
+        mTotalJitterMs += jitter;
+        mJitter.recordMicros(jitter * 1000);
+        if (jitter > mMaxJitterMs) {
+            mMaxJitterMs = jitter;
+        }
+        if (jitter > TICK_PERIOD_MS) {
+            mLateTickCount++;
+        }
+
+        byte roll = (byte) ((now < mRollDeadline) ? mRollTarget : 0);
+        byte pitch = (byte) ((now < mPitchDeadline) ? mPitchTarget : 0);
+        byte yaw = (byte) ((now < mYawDeadline) ? mYawTarget : 0);
+        byte gaz = (byte) ((now < mGazDeadline) ? mGazTarget : 0);
+        byte flag = (byte) (((roll != 0) || (pitch != 0)) ? 1 : 0);
+
+        if (!mSentOnce || (roll != mSentRoll) || (pitch != mSentPitch) || (yaw != mSentYaw)
+                || (gaz != mSentGaz) || (flag != mSentFlag)) {
+            mOutput.onPcmd(roll, pitch, yaw, gaz, flag);
+            mSentOnce = true;
+            mSentRoll = roll;
+            mSentPitch = pitch;
+            mSentYaw = yaw;
+            mSentGaz = gaz;
+            mSentFlag = flag;
+        }
+
+        return (roll != 0) || (pitch != 0) || (yaw != 0) || (gaz != 0);
+    }
+
+    public long getTickCount() {
+        return mTickCount;
+    }
+
+    /**
+     * @return the number of ticks that ran more than one period late
+     */
+    public long getLateTickCount() {
+        return mLateTickCount;
+    }
+
+    public long getMaxJitterMs() {
+        return mMaxJitterMs;
+    }
+
+    public long getAverageJitterMs() {
+        return (mTickCount > 0) ? (mTotalJitterMs / mTickCount) : 0;
+    }
+
+    /**
+     * @return the distribution of the delay of the ticks past their due time
+     */
+    public LatencyHistogram getJitterHistogram() {
+        return mJitter;
+    }
+}
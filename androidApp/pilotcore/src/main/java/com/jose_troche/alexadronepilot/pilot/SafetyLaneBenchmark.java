@@ -0,0 +1,107 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+import java.util.Random;
+
+/**
+ * Command line measure of the latency of the safety lane under a flood: producer threads
+ * submit movements as fast as they can, keeping the queue and the control thread busy,
+ * while land and emergency commands come every few milliseconds. The latency of a land
+ * or emergency goes from its submission to its call on the drone, its worst case over the
+ * run is the bound of the lane.
+ * Measured with the submitting thread dedicated to the drone, where the safety commands
+ * are sent from that thread, and shared with other drones as in a {@link DronePool},
+ * where they are sent first thing on the control thread. Every safety command submitted
+ * must be sent, in both cases.
+ *
+ * Usage: <code>java SafetyLaneBenchmark [safety commands] [flood threads]</code>
+ */
+public class SafetyLaneBenchmark {
+
+    private static final long SAFETY_INTERVAL_MS = 2;
+    private static final int EMERGENCY_EVERY = 4;
+
+    private static final int[] MOVEMENTS = {
+            Commands.FORWARD, Commands.LEFT, Commands.UP, Commands.SPIN_RIGHT,
+            Commands.BACKWARD, Commands.RIGHT, Commands.DOWN, Commands.SPIN_LEFT,
+    };
+
+    private static volatile boolean sFlooding;
+
+    public static void main(String[] args) throws Exception {
+        int safetyCommands = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int floodThreads = args.length > 1 ? Integer.parseInt(args[1]) : 2 * Runtime.getRuntime().availableProcessors();
+
+        StringBuilder sb = new StringBuilder();
+        long dedicated = run(false, safetyCommands, floodThreads, sb);
+        long shared = run(true, safetyCommands, floodThreads, sb);
+        System.out.println("Reception to drone latency, " + floodThreads + " threads flooding the queue with movements");
+        System.out.print(sb);
+        System.out.println("Safety lane bound: " + dedicated + "us from a dedicated submitting thread, "
+                + shared + "us from a shared one");
+    }
+
+    /**
+     * @return the worst latency of the land and emergency commands, in microseconds
+     */
+    private static long run(boolean sharedSubmitter, int safetyCommands, int floodThreads, StringBuilder sb)
+            throws InterruptedException {
+        ControlLoop loop = new ControlLoop("SafetyLaneBenchmark");
+        final CommandPipeline pipeline = new CommandPipeline(new SimulatedDrone(), loop, NO_LISTENER);
+        pipeline.setSharedSubmitter(sharedSubmitter);
+        loop.start(pipeline);
+
+        sFlooding = true;
+        Thread[] flood = new Thread[floodThreads];
+        for (int t = 0; t < floodThreads; t++) {
+            final Random random = new Random(t);
+            flood[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (sFlooding) {
+                        int opcode = MOVEMENTS[random.nextInt(MOVEMENTS.length)];
+                        pipeline.submit(PackedCommand.pack(opcode, 1 + random.nextInt(PackedCommand.MAX_MAGNITUDE),
+                                PackedCommand.DEFAULT_DURATION_MS), System.nanoTime());
+                    }
+                }
+            }, "flood-" + t);
+            flood[t].start();
+        }
+
+        for (int i = 0; i < safetyCommands; i++) {
+            int opcode = (i % EMERGENCY_EVERY == EMERGENCY_EVERY - 1) ? Commands.EMERGENCY : Commands.LAND;
+            pipeline.submit(PackedCommand.of(opcode), System.nanoTime());
+            Thread.sleep(SAFETY_INTERVAL_MS);
+        }
+
+        sFlooding = false;
+        for (Thread thread : flood) {
+            thread.join();
+        }
+        while (!loop.isIdle()) {
+            Thread.yield();
+        }
+        loop.quit();
+
+        String mode = sharedSubmitter ? "shared" : "own";
+        LatencyRecorder recorder = pipeline.getLatencyRecorder();
+        LatencyHistogram safety = new LatencyHistogram();
+        recorder.getHistogram(LatencyRecorder.STAGE_SEND, Commands.LAND).addTo(safety);
+        recorder.getHistogram(LatencyRecorder.STAGE_SEND, Commands.EMERGENCY).addTo(safety);
+        LatencyHistogram movements = new LatencyHistogram();
+        for (int opcode : MOVEMENTS) {
+            recorder.getHistogram(LatencyRecorder.STAGE_SEND, opcode).addTo(movements);
+        }
+        LatencyRecorder.appendLine(sb, mode, "safety", safety);
+        LatencyRecorder.appendLine(sb, mode, "movements", movements);
+        sb.append(String.format("%-8s %-12s worst %dus, %d of %d sent, %d movements sent\n", mode, "safety",
+                safety.getValueAtPercentile(100), safety.getCount(), safetyCommands, pipeline.getDispatchedCount()));
+        return safety.getValueAtPercentile(100);
+    }
+
+    private static final CommandPipeline.Listener NO_LISTENER = new CommandPipeline.Listener() {
+        @Override
+        public void onCommandDispatched(int command) {
+            // nothing to show
+        }
+    };
+}
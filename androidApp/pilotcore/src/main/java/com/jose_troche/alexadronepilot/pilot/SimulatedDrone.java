@@ -0,0 +1,154 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+/**
+ * A {@link DroneController} without a drone: it follows the flying state machine of a
+ * MiniDrone and counts what it receives, so that the pipeline can run on a plain JVM.
+ * Transitions are immediate, there is no flight physics.
+ * Thread safe: the safety lane calls it from the submitting threads.
+ */
+public class SimulatedDrone implements DroneController {
+
+    public static final int STATE_LANDED = 0;
+    public static final int STATE_HOVERING = 1;
+    public static final int STATE_FLYING = 2;
+    public static final int STATE_EMERGENCY = 3;
+
+    private static final String[] STATE_NAMES = { "landed", "hovering", "flying", "emergency" };
+
+    private int mState = STATE_LANDED;
+
+    private byte mRoll;
+    private byte mPitch;
+    private byte mYaw;
+    private byte mGaz;
+    private byte mFlag;
+
+    private long mCommandCount;
+    private long mIgnoredCount;
+    private long mPcmdCount;
+    private long mTakeOffCount;
+    private long mLandingCount;
+    private long mEmergencyCount;
+    private long mFlipCount;
+    private long mPictureCount;
+
+    public static String stateName(int state) {
+        return STATE_NAMES[state];
+    }
+
+    public synchronized int getState() {
+        return mState;
+    }
+
+    @Override
+    public synchronized void takeOff() {
+        mCommandCount++;
+        if (isAirborne()) {
+            mIgnoredCount++;
+            return;
+        }
+        mTakeOffCount++;
+        mState = STATE_HOVERING;
+        updateMotion();
+    }
+
+    @Override
+    public synchronized void land() {
+        mCommandCount++;
+        if (mState != STATE_HOVERING && mState != STATE_FLYING) {
+            mIgnoredCount++;
+            return;
+        }
+        mLandingCount++;
+        mState = STATE_LANDED;
+    }
+
+    @Override
+    public synchronized void emergency() {
+        mCommandCount++;
+        mEmergencyCount++;
+        // the motors are cut, the drone stays down until the next take off
+        mState = STATE_EMERGENCY;
+    }
+
+    @Override
+    public synchronized void takePicture() {
+        mCommandCount++;
+        mPictureCount++;
+    }
+
+    @Override
+    public synchronized void flip() {
+        mCommandCount++;
+        if (!isAirborne()) {
+            mIgnoredCount++;
+            return;
+        }
+        mFlipCount++;
+    }
+
+    @Override
+    public synchronized void setPitch(byte pitch) {
+        mPitch = pitch;
+        onPcmd();
+    }
+
+    @Override
+    public synchronized void setRoll(byte roll) {
+        mRoll = roll;
+        onPcmd();
+    }
+
+    @Override
+    public synchronized void setYaw(byte yaw) {
+        mYaw = yaw;
+        onPcmd();
+    }
+
+    @Override
+    public synchronized void setGaz(byte gaz) {
+        mGaz = gaz;
+        onPcmd();
+    }
+
+    @Override
+    public synchronized void setFlag(byte flag) {
+        mFlag = flag;
+        onPcmd();
+    }
+
+    private boolean isAirborne() {
+        return mState == STATE_HOVERING || mState == STATE_FLYING;
+    }
+
+    private void onPcmd() {
+        mPcmdCount++;
+        updateMotion();
+    }
+
+    private void updateMotion() {
+        if (!isAirborne()) {
+            return;
+        }
+        boolean moving = mYaw != 0 || mGaz != 0 || (mFlag != 0 && (mRoll != 0 || mPitch != 0));
+        mState = moving ? STATE_FLYING : STATE_HOVERING;
+    }
+
+    public synchronized long getCommandCount() {
+        return mCommandCount;
+    }
+
+    public synchronized long getPcmdCount() {
+        return mPcmdCount;
+    }
+
+    /**
+     * @return a one line summary of what the drone received
+     */
+    public synchronized String report() {
+        return "Drone " + stateName(mState) + ": " + mCommandCount + " commands (" + mIgnoredCount
+                + " ignored), take off " + mTakeOffCount + ", landing " + mLandingCount
+                + ", emergency " + mEmergencyCount + ", flip " + mFlipCount
+                + ", picture " + mPictureCount + ", PCMD updates " + mPcmdCount;
+    }
+}
@@ -0,0 +1,95 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+/**
+ * A {@link CommandPipeline.Loop} on a virtual clock: the time only moves in
+ * {@link #runUntil(long)}, which flies the {@link FlightModel} and runs the PCMD ticks
+ * at their simulated time, as fast as the CPU allows.
+ * Everything happens in the calling thread, commands included: not thread safe.
+ */
+public class SimulationLoop implements CommandPipeline.Loop {
+
+    /** Integration step of the flight model */
+    public static final long STEP_MS = 10;
+
+    private static final long NO_TICK = Long.MAX_VALUE;
+
+    private final FlightModel mModel;
+    private CommandPipeline mPipeline;
+
+    private long mNow;
+    private boolean mDrainRequested;
+    private boolean mPreemptedRequested;
+    private long mTickAt = NO_TICK;
+
+    public SimulationLoop(FlightModel model) {
+        mModel = model;
+    }
+
+    /**
+     * @param pipeline a pipeline created with this loop
+     */
+    public void setPipeline(CommandPipeline pipeline) {
+        mPipeline = pipeline;
+    }
+
+    /**
+     * Run the pending requests, then move the virtual time forward
+     * @param time the virtual time to reach, in milliseconds
+     */
+    public void runUntil(long time) {
+        while (true) {
+            runPending();
+            if (mNow >= time) {
+                return;
+            }
+
+            long next = Math.min(time, mNow + STEP_MS);
+            if (mTickAt < next) {
+                next = Math.max(mTickAt, mNow);
+            }
+            mModel.advance(next - mNow);
+            mNow = next;
+
+            if (mTickAt <= mNow) {
+                mTickAt = NO_TICK;
+                mPipeline.tick();
+            }
+        }
+    }
+
+    private void runPending() {
+        if (mPreemptedRequested) {
+            mPreemptedRequested = false;
+            mPipeline.preempted();
+        }
+        if (mDrainRequested) {
+            mDrainRequested = false;
+            mPipeline.drain();
+        }
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return mNow;
+    }
+
+    @Override
+    public void requestDrain() {
+        mDrainRequested = true;
+    }
+
+    @Override
+    public void requestPreempted() {
+        mPreemptedRequested = true;
+    }
+
+    @Override
+    public void scheduleTick(long atMillis) {
+        mTickAt = atMillis;
+    }
+
+    @Override
+    public void cancelTick() {
+        mTickAt = NO_TICK;
+    }
+}
@@ -0,0 +1,216 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges the state updates of a drone, coming from the ARSDK threads, into one
+ * {@link DroneSnapshot} per display frame for the UI thread.
+ * An update only sets a field; the first update after a frame asks the loop for the
+ * next frame, no earlier than {@link #FRAME_INTERVAL_MS} after the previous one, and the
+ * updates until then are collapsed into that frame. A download reporting every percent
+ * of every media, or a drone streaming its states, costs the UI thread one message per
+ * frame at most instead of one per update.
+ * The updates can come from any thread, the frames are delivered on the loop thread.
+ */
+public class SnapshotPublisher {
+
+    /** Shortest time between two frames, in milliseconds: one display frame at 60 Hz */
+    public static final long FRAME_INTERVAL_MS = 16;
+
+    public interface Loop {
+        /**
+         * @return the current time in milliseconds, monotonic
+         */
+        long uptimeMillis();
+
+        /**
+         * Call {@link #deliverFrame()} on the loop thread at the given time
+         * Never called again before that frame has started
+         * @param atMillis the time, on the clock of {@link #uptimeMillis()}
+         */
+        void scheduleFrame(long atMillis);
+    }
+
+    public interface Listener {
+        /**
+         * Called on the loop thread, when the state changed since the previous frame
+         * @param snapshot the state now
+         * @param previous the state at the previous frame, never null
+         */
+        void onSnapshot(DroneSnapshot snapshot, DroneSnapshot previous);
+    }
+
+    private final Loop mLoop;
+    private final Listener mListener;
+
+    private final AtomicBoolean mFramePending = new AtomicBoolean();
+    private final AtomicLong mScheduledCount = new AtomicLong();
+
+    // the latest state, guarded by mLock: held for a few stores, never while calling out
+    private final Object mLock = new Object();
+    private long mVersion;
+    private int mConnectionState = DroneSnapshot.UNKNOWN;
+    private int mFlyingState = DroneSnapshot.UNKNOWN;
+    private int mBattery = DroneSnapshot.UNKNOWN;
+    private int mPictureCount;
+    private int mPictureError = DroneSnapshot.UNKNOWN;
+    private int mMediaCount = DroneSnapshot.UNKNOWN;
+    private int mMediaSearchCount;
+    private String mDownloadName;
+    private int mDownloadProgress;
+    private int mDownloadedCount;
+    private String mLastDownloadedName;
+
+    // written by the loop thread
+    private volatile DroneSnapshot mSnapshot = DroneSnapshot.EMPTY;
+    private volatile long mLastFrameAt = Long.MIN_VALUE / 2;
+    private volatile long mFrameCount;
+
+    public SnapshotPublisher(Loop loop, Listener listener) {
+        mLoop = loop;
+        mListener = listener;
+    }
+
+    //region updates, from any thread
+    public void setConnectionState(int state) {
+        synchronized (mLock) {
+            mConnectionState = state;
+            mVersion++;
+        }
+        requestFrame();
+    }
+
+    public void setFlyingState(int state) {
+        synchronized (mLock) {
+            mFlyingState = state;
+            mVersion++;
+        }
+        requestFrame();
+    }
+
+    public void setBattery(int batteryPercentage) {
+        synchronized (mLock) {
+            mBattery = batteryPercentage;
+            mVersion++;
+        }
+        requestFrame();
+    }
+
+    /**
+     * @param error 0 if the picture has been taken, otherwise why not
+     */
+    public void addPicture(int error) {
+        synchronized (mLock) {
+            mPictureCount++;
+            mPictureError = error;
+            mVersion++;
+        }
+        requestFrame();
+    }
+
+    /**
+     * @param mediaCount the number of medias found, that will be downloaded
+     */
+    public void addMediaSearch(int mediaCount) {
+        synchronized (mLock) {
+            mMediaSearchCount++;
+            mMediaCount = mediaCount;
+            mVersion++;
+        }
+        requestFrame();
+    }
+
+    public void setDownloadProgress(String mediaName, int progress) {
+        synchronized (mLock) {
+            mDownloadName = mediaName;
+            mDownloadProgress = progress;
+            mVersion++;
+        }
+        requestFrame();
+    }
+
+    public void addDownloaded(String mediaName) {
+        synchronized (mLock) {
+            mDownloadedCount++;
+            mLastDownloadedName = mediaName;
+            mVersion++;
+        }
+        requestFrame();
+    }
+    //endregion updates
+
+    private void requestFrame() {
+        if (mFramePending.compareAndSet(false, true)) {
+            mScheduledCount.incrementAndGet();
+            mLoop.scheduleFrame(Math.max(mLoop.uptimeMillis(), mLastFrameAt + FRAME_INTERVAL_MS));
+        }
+    }
+
+    /**
+     * Build the snapshot of the latest state and give it to the listener
+     * Called on the loop thread, when asked by {@link Loop#scheduleFrame(long)}
+     */
+    public void deliverFrame() {
+        // updates from now on ask for another frame
+        mFramePending.set(false);
+        mLastFrameAt = mLoop.uptimeMillis();
+
+        DroneSnapshot snapshot;
+        synchronized (mLock) {
+            if (mVersion == mSnapshot.getVersion()) {
+                return;
+            }
+            snapshot = new DroneSnapshot(mVersion, mConnectionState, mFlyingState, mBattery, mPictureCount,
+                    mPictureError, mMediaSearchCount, mMediaCount, mDownloadName, mDownloadProgress, mDownloadedCount,
+                    mLastDownloadedName);
+        }
+        DroneSnapshot previous = mSnapshot;
+        mSnapshot = snapshot;
+        mFrameCount++;
+        mListener.onSnapshot(snapshot, previous);
+    }
+
+    /**
+     * Can be called from any thread
+     * @return the snapshot of the last frame
+     */
+    public DroneSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * @return the number of updates merged, from any thread
+     */
+    public long getUpdateCount() {
+        synchronized (mLock) {
+            return mVersion;
+        }
+    }
+
+    /**
+     * @return the number of frames delivered to the listener
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return the number of frames asked to the loop, its messages
+     */
+    public long getScheduledCount() {
+        return mScheduledCount.get();
+    }
+
+    /**
+     * @return the number of updates that did not get a frame of their own
+     */
+    public long getCollapsedCount() {
+        return Math.max(0, getUpdateCount() - mFrameCount);
+    }
+
+    public String report() {
+        return "UI snapshots: " + getUpdateCount() + " updates, " + mScheduledCount.get() + " frames scheduled, "
+                + mFrameCount + " delivered, " + getCollapsedCount() + " updates collapsed";
+    }
+}
@@ -0,0 +1,69 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+/**
+ * Channels of the drone telemetry kept by a {@link TelemetryStore}.
+ * Like the command opcodes, channels are plain ints so that recording a sample
+ * never has to create anything. Every value is a float in the unit of its channel;
+ * the enumerated states are stored as their ordinal.
+ */
+public final class Telemetry {
+    public static final int BATTERY = 0;            // percent
+    public static final int FLYING_STATE = 1;       // FlightModel.STATE_ and MiniDrone flying states
+    public static final int ALERT_STATE = 2;        // MiniDrone alert states, 0 for none
+    public static final int ALTITUDE = 3;           // meters above the take off point
+    public static final int SPEED_X = 4;            // m/s, forward at take off
+    public static final int SPEED_Y = 5;            // m/s, to the left at take off
+    public static final int SPEED_Z = 6;            // m/s, up
+    public static final int ROLL = 7;               // degrees, right side down
+    public static final int PITCH = 8;              // degrees, nose down
+    public static final int YAW = 9;                // degrees, counterclockwise from the take off heading
+    public static final int WIFI_RSSI = 10;         // dBm
+    public static final int MAX_ALTITUDE = 11;      // meters, setting
+    public static final int MAX_TILT = 12;          // degrees, setting
+    public static final int MAX_VERTICAL_SPEED = 13; // m/s, setting
+    public static final int MAX_ROTATION_SPEED = 14; // degrees/s, setting
+    public static final int AUTO_TAKE_OFF = 15;     // 1 when armed
+    public static final int WHEELS = 16;            // 1 when present
+    public static final int PICTURE_STATE = 17;     // MiniDrone picture states
+    public static final int PICTURE_EVENT = 18;     // MiniDrone picture errors, 0 when taken
+    public static final int FLAT_TRIM = 19;         // 1 at each flat trim
+
+    public static final int COUNT = 20;
+
+    private static final String[] NAMES = {
+            "battery",
+            "flying state",
+            "alert state",
+            "altitude",
+            "speed x",
+            "speed y",
+            "speed z",
+            "roll",
+            "pitch",
+            "yaw",
+            "wifi rssi",
+            "max altitude",
+            "max tilt",
+            "max vertical speed",
+            "max rotation speed",
+            "auto take off",
+            "wheels",
+            "picture state",
+            "picture event",
+            "flat trim"
+    };
+
+    private Telemetry() {}
+
+    /**
+     * Get the display name of a channel
+     * @param channel the channel
+     * @return a constant String, never null
+     */
+    public static String name(int channel) {
+        if ((channel < 0) || (channel >= COUNT)) {
+            return "unknown";
+        }
+        return NAMES[channel];
+    }
+}
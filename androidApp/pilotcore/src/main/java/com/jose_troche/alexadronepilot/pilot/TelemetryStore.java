@@ -0,0 +1,201 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Recent drone telemetry: the last {@link #getCapacity()} samples of each {@link Telemetry}
+ * channel, in fixed rings of primitive columns (one for the times, one for the values)
+ * allocated up front, so that recording a sample never allocates.
+ * One thread at a time records (the thread of the drone callbacks), any number of threads read
+ * without locking: the UI, the logs, the control loop. The writer never waits for the
+ * readers and overwrites the oldest samples; a reader copies the samples it wants and
+ * then checks the sample count again, dropping the samples overwritten during the copy.
+ * The columns are atomic arrays so that this check is sound, and so that a long is never
+ * torn on 32 bit devices: the writer publishes in order (lazySet), the readers read in order.
+ * The times are milliseconds on any clock the writer chooses, never going back per channel.
+ */
+public class TelemetryStore {
+
+    public static final int DEFAULT_CAPACITY = 512;
+
+    private final int mCapacity;
+    private final int mMask;
+    // channel after channel, sample i of a channel in its slot i & mMask
+    private final AtomicLongArray mTimes;
+    private final AtomicIntegerArray mValues; // Float.floatToRawIntBits
+    private final AtomicLongArray mCounts = new AtomicLongArray(Telemetry.COUNT);
+    private final AtomicLong mNewestTime = new AtomicLong(Long.MIN_VALUE);
+
+    // only touched by the writer
+    private final long[] mLastTimes = new long[Telemetry.COUNT];
+    private final long[] mWriteCounts = new long[Telemetry.COUNT];
+    private long mWriteNewestTime = Long.MIN_VALUE;
+
+    public TelemetryStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity samples kept per channel, rounded up to a power of two
+     */
+    public TelemetryStore(int capacity) {
+        mCapacity = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mMask = mCapacity - 1;
+        mTimes = new AtomicLongArray(Telemetry.COUNT * mCapacity);
+        mValues = new AtomicIntegerArray(Telemetry.COUNT * mCapacity);
+        for (int i = 0; i < Telemetry.COUNT; i++) {
+            mLastTimes[i] = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Record a sample
+     * Called by one thread at a time, the writer
+     * @param channel a {@link Telemetry} channel
+     * @param timeMs when the value was measured, an earlier time than the last one of the
+     *               channel is taken as the last one
+     * @param value the value, in the unit of the channel
+     */
+    public void record(int channel, long timeMs, float value) {
+        long time = Math.max(timeMs, mLastTimes[channel]);
+        mLastTimes[channel] = time;
+        long count = mWriteCounts[channel]++;
+        int slot = channel * mCapacity + (int) (count & mMask);
+        mTimes.lazySet(slot, time);
+        mValues.lazySet(slot, Float.floatToRawIntBits(value));
+        mCounts.lazySet(channel, count + 1);
+        if (time > mWriteNewestTime) {
+            mWriteNewestTime = time;
+            mNewestTime.lazySet(time);
+        }
+    }
+
+    /**
+     * Copy the samples of a channel measured at or after a time, oldest first
+     * Can be called from any thread
+     * @param channel a {@link Telemetry} channel
+     * @param sinceMs the time of the oldest sample wanted
+     * @param times receives the times of the samples
+     * @param values receives the values of the samples
+     * @return the number of samples copied, the newest ones if the arrays are too short
+     */
+    public int readSince(int channel, long sinceMs, long[] times, float[] values) {
+        int max = Math.min(times.length, values.length);
+        long end = mCounts.get(channel);
+        long start = Math.max(0, end - mCapacity);
+        int base = channel * mCapacity;
+
+        // newest first, from the end of the arrays back
+        int n = 0;
+        for (long i = end - 1; (i >= start) && (n < max); i--) {
+            int slot = base + (int) (i & mMask);
+            long time = mTimes.get(slot);
+            if (time < sinceMs) {
+                break;
+            }
+            times[max - 1 - n] = time;
+            values[max - 1 - n] = Float.intBitsToFloat(mValues.get(slot));
+            n++;
+        }
+
+        // the writer may have overwritten the oldest samples meanwhile: the one it is
+        // recording is at index mCounts, in the slot of index mCounts - mCapacity
+        long oldest = Math.max(end - n, mCounts.get(channel) - mCapacity + 1);
+        n = (int) Math.max(0, end - oldest);
+        System.arraycopy(times, max - n, times, 0, n);
+        System.arraycopy(values, max - n, values, 0, n);
+        return n;
+    }
+
+    /**
+     * Copy the samples of a channel of the last milliseconds, oldest first
+     * Can be called from any thread
+     * @param channel a {@link Telemetry} channel
+     * @param windowMs how far back from the newest sample of the store
+     * @param times receives the times of the samples
+     * @param values receives the values of the samples
+     * @return the number of samples copied, the newest ones if the arrays are too short
+     */
+    public int readLast(int channel, long windowMs, long[] times, float[] values) {
+        long newest = mNewestTime.get();
+        if (newest == Long.MIN_VALUE) {
+            return 0;
+        }
+        return readSince(channel, newest - windowMs, times, values);
+    }
+
+    /**
+     * Can be called from any thread
+     * @return the last value of a channel, NaN if none was recorded
+     */
+    public float getLatest(int channel) {
+        while (true) {
+            long count = mCounts.get(channel);
+            if (count == 0) {
+                return Float.NaN;
+            }
+            float value = Float.intBitsToFloat(mValues.get(channel * mCapacity + (int) ((count - 1) & mMask)));
+            if (mCounts.get(channel) < count - 1 + mCapacity) {
+                return value;
+            }
+            // lapped by the writer while reading, rare
+        }
+    }
+
+    /**
+     * Can be called from any thread
+     * @return the time of the last value of a channel, -1 if none was recorded
+     */
+    public long getLatestTime(int channel) {
+        while (true) {
+            long count = mCounts.get(channel);
+            if (count == 0) {
+                return -1;
+            }
+            long time = mTimes.get(channel * mCapacity + (int) ((count - 1) & mMask));
+            if (mCounts.get(channel) < count - 1 + mCapacity) {
+                return time;
+            }
+        }
+    }
+
+    /**
+     * @return the number of samples ever recorded on a channel, kept or not
+     */
+    public long getSampleCount(int channel) {
+        return mCounts.get(channel);
+    }
+
+    /**
+     * @return the time of the newest sample of any channel, Long.MIN_VALUE if none was recorded
+     */
+    public long getNewestTime() {
+        return mNewestTime.get();
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return the last value and the sample count of every channel recorded
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder("Telemetry:");
+        for (int channel = 0; channel < Telemetry.COUNT; channel++) {
+            long count = getSampleCount(channel);
+            if (count > 0) {
+                sb.append(' ').append(Telemetry.name(channel)).append('=').append(getLatest(channel))
+                        .append(" (").append(count).append(" samples),");
+            }
+        }
+        if (sb.charAt(sb.length() - 1) == ',') {
+            sb.setLength(sb.length() - 1);
+        } else {
+            sb.append(" none");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,84 @@
+package com.jose_troche.alexadronepilot.pilot;
+
+/**
+ * Command line measure of the jitter of the PCMD tick: how late each tick of the
+ * {@link PilotingScheduler} runs past its due time, on the control thread of a
+ * {@link ControlLoop}, while other threads keep every core busy.
+ * An axis is held active for the whole run, so that the loop ticks every
+ * {@link PilotingScheduler#TICK_PERIOD_MS}. A late tick never makes the following ones
+ * catch up: the jitter of a tick is bounded by the delay of that tick alone.
+ *
+ * Usage: <code>java TickJitterBenchmark [seconds per load]</code>
+ */
+public class TickJitterBenchmark {
+
+    // renewed before it ends, with another magnitude so that the PCMD changes
+    private static final long MOVE_DURATION_MS = PackedCommand.MAX_DURATION_MS;
+    private static final long MOVE_EVERY_MS = MOVE_DURATION_MS / 2;
+
+    private static volatile boolean sLoaded;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] loads = {0, cores, 2 * cores, 4 * cores};
+
+        System.out.println(String.format("%-14s %6s %8s %8s %8s %8s %5s", "busy threads", "ticks", "avg",
+                "p50", "p99", "max", "late"));
+        for (int load : loads) {
+            run(load, seconds * 1000L);
+        }
+        System.out.println("Tick period " + PilotingScheduler.TICK_PERIOD_MS + " ms, a tick is late past one period");
+    }
+
+    private static void run(int busyThreads, long durationMs) throws InterruptedException {
+        sLoaded = true;
+        Thread[] busy = new Thread[busyThreads];
+        for (int i = 0; i < busyThreads; i++) {
+            busy[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long sink = 0;
+                    while (sLoaded) {
+                        sink += System.nanoTime();
+                    }
+                    if (sink == 42) {
+                        System.out.println();
+                    }
+                }
+            }, "busy-" + i);
+            busy[i].setDaemon(true);
+            busy[i].start();
+        }
+
+        ControlLoop loop = new ControlLoop("TickJitterBenchmark");
+        CommandPipeline pipeline = new CommandPipeline(new SimulatedDrone(), loop, NO_LISTENER);
+        loop.start(pipeline);
+        long end = System.nanoTime() + durationMs * 1000000L;
+        int magnitude = PackedCommand.DEFAULT_MAGNITUDE;
+        while (System.nanoTime() < end) {
+            pipeline.submit(PackedCommand.pack(Commands.FORWARD, magnitude++, MOVE_DURATION_MS), System.nanoTime());
+            Thread.sleep(Math.min(MOVE_EVERY_MS, Math.max(1, (end - System.nanoTime()) / 1000000L)));
+        }
+        loop.quit();
+
+        sLoaded = false;
+        for (Thread thread : busy) {
+            thread.join();
+        }
+
+        // read once the control thread has stopped
+        PilotingScheduler scheduler = pipeline.getScheduler();
+        LatencyHistogram jitter = scheduler.getJitterHistogram();
+        System.out.println(String.format("%-14d %6d %6dms %6dms %6dms %6dms %5d", busyThreads,
+                scheduler.getTickCount(), scheduler.getAverageJitterMs(), jitter.getValueAtPercentile(50) / 1000,
+                jitter.getValueAtPercentile(99) / 1000, scheduler.getMaxJitterMs(), scheduler.getLateTickCount()));
+    }
+
+    private static final CommandPipeline.Listener NO_LISTENER = new CommandPipeline.Listener() {
+        @Override
+        public void onCommandDispatched(int command) {
+            // nothing to show
+        }
+    };
+}